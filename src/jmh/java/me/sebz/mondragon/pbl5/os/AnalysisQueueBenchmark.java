@@ -0,0 +1,64 @@
+package me.sebz.mondragon.pbl5.os;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Cost of handing a task to an analysis server and getting the result back,
+// with the simulated processing time switched off
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(2)
+@State(Scope.Benchmark)
+public class AnalysisQueueBenchmark {
+
+    private FaceDetectServer detectServer;
+    private FaceEmbeddingServer embeddingServer;
+    private Thread detectThread;
+    private Thread embeddingThread;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        BenchmarkSupport.silenceConsole();
+        detectServer = new FaceDetectServer(0, 0);
+        embeddingServer = new FaceEmbeddingServer(0, 0);
+        detectThread = new Thread(detectServer, "FaceDetectServerThread");
+        embeddingThread = new Thread(embeddingServer, "FaceEmbeddingServerThread");
+        detectThread.start();
+        embeddingThread.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        detectServer.stop();
+        embeddingServer.stop();
+        detectThread.join();
+        embeddingThread.join();
+    }
+
+    // Detection fails at random ("No Face"); either outcome is a completed handoff
+    @Benchmark
+    public Boolean detectHandoff() {
+        return detectServer.analyzePhoto(1).handle((result, ex) -> result).join();
+    }
+
+    @Benchmark
+    public float[] embeddingHandoff() {
+        return embeddingServer.analyzePhoto(1).join();
+    }
+}
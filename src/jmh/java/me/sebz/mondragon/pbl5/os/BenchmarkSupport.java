@@ -0,0 +1,26 @@
+package me.sebz.mondragon.pbl5.os;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+
+final class BenchmarkSupport {
+
+    static final int DIMENSIONS = 128;
+
+    private BenchmarkSupport() {
+    }
+
+    // The servers log every step; in a forked benchmark VM that would be most of what we measure
+    static void silenceConsole() {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    static float[] randomEmbedding(Random random) {
+        float[] embedding = new float[DIMENSIONS];
+        for (int i = 0; i < embedding.length; i++) {
+            embedding[i] = random.nextFloat();
+        }
+        return embedding;
+    }
+}
@@ -0,0 +1,94 @@
+package me.sebz.mondragon.pbl5.os;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Every Database call goes through its single-thread executor; several benchmark
+// threads calling at once measure how that serialization behaves under contention
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class DatabaseBenchmark {
+
+    private static final int GROUPS = 100;
+    private static final int MEMBERS_PER_GROUP = 10;
+    private static final String PASSWORD = "benchmark";
+
+    private Database database;
+    private Group group;
+    private Long sessionId;
+    private int firstPersonId;
+    private int personCount;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        BenchmarkSupport.silenceConsole();
+        Random random = new Random(42);
+        database = new Database();
+        for (int g = 0; g < GROUPS; g++) {
+            Group created = new Group();
+            for (int m = 0; m < MEMBERS_PER_GROUP; m++) {
+                Person person = new Person();
+                person.setFaceEmbedding(BenchmarkSupport.randomEmbedding(random));
+                created.addMember(person);
+                if (g == 0 && m == 0) {
+                    firstPersonId = person.getId();
+                }
+            }
+            database.addGroup(created).join();
+            group = created;
+        }
+        personCount = GROUPS * MEMBERS_PER_GROUP;
+        group.setPassword(PASSWORD);
+        sessionId = database.signIn(group.getId(), PASSWORD).join();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        database.shutdown().join();
+    }
+
+    // Dominated by BCrypt, which runs on the database thread
+    @Benchmark
+    public Long signIn() {
+        return database.signIn(group.getId(), PASSWORD).join();
+    }
+
+    @Benchmark
+    public Group getGroupFromSession() {
+        return database.getGroupFromSession(sessionId).join();
+    }
+
+    @Benchmark
+    public Person getPersonById(ThreadCursor cursor) {
+        return database.getPersonById(firstPersonId + cursor.next(personCount)).join();
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadCursor {
+        private int position;
+
+        int next(int bound) {
+            position = (position + 7) % bound;
+            return position;
+        }
+    }
+}
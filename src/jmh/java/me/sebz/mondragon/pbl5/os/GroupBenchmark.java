@@ -0,0 +1,86 @@
+package me.sebz.mondragon.pbl5.os;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Linear similarity search over a group
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GroupBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    int members;
+
+    private Group group;
+    private Group cachedGroup;
+    private float[][] queries;
+    private float[][] frames;
+    private int next;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        group = new Group();
+        group.setCacheEnabled(false);
+        cachedGroup = new Group();
+        List<Person> persons = new ArrayList<>(members);
+        for (int i = 0; i < members; i++) {
+            Person person = new Person();
+            person.setFaceEmbedding(BenchmarkSupport.randomEmbedding(random));
+            persons.add(person);
+        }
+        group.addMembers(persons);
+        cachedGroup.addMembers(persons);
+        queries = new float[64][];
+        for (int i = 0; i < queries.length; i++) {
+            queries[i] = BenchmarkSupport.randomEmbedding(random);
+        }
+        // Consecutive frames of one enrolled face: the same embedding with a little noise
+        float[] face = persons.get(members / 2).getFaceEmbedding();
+        frames = new float[64][];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = face.clone();
+            frames[i][i % face.length] += 0.001f;
+        }
+    }
+
+    @Benchmark
+    public Person closestMember() {
+        next = (next + 1) & (queries.length - 1);
+        return group.getClosestMember(queries[next]);
+    }
+
+    // The same face frame after frame, answered by the group's identify cache
+    @Benchmark
+    public Person closestMemberRepeatedFrames() {
+        next = (next + 1) & (frames.length - 1);
+        return cachedGroup.getClosestMember(frames[next]);
+    }
+
+    // Identify against one group from several threads; reads share the published snapshot
+    @Benchmark
+    @Threads(4)
+    public Person closestMemberContended() {
+        return group.getClosestMember(queries[ThreadLocalRandom.current().nextInt(queries.length)]);
+    }
+}
@@ -0,0 +1,77 @@
+package me.sebz.mondragon.pbl5.os;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// HttpFrontend request overhead: back-to-back /login calls over keep-alive connections,
+// answered by a server that returns at once, so only parsing, dispatch and the reply count
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HttpFrontendBenchmark {
+
+    private static class InstantServer extends NodeRedServer {
+        InstantServer() {
+            super(new FaceDetectServer(0, 0), new FaceEmbeddingServer(0, 0));
+        }
+
+        @Override
+        public CompletableFuture<Long> login(int groupId, String password) {
+            return CompletableFuture.completedFuture(7L);
+        }
+    }
+
+    private NodeRedServer server;
+    private HttpFrontend frontend;
+    private HttpClient client;
+    private HttpRequest request;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        BenchmarkSupport.silenceConsole();
+        server = new InstantServer();
+        frontend = new HttpFrontend(new InetSocketAddress("127.0.0.1", 0), server);
+        frontend.start();
+        client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        request = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + frontend.getAddress().getPort()
+                + "/login?groupId=1&password=pw")).POST(HttpRequest.BodyPublishers.noBody()).build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        frontend.stop().join();
+        server.shutdown().join();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public int loginOverKeepAlive() throws Exception {
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 200) {
+            throw new IllegalStateException("unexpected status " + response.statusCode());
+        }
+        return response.statusCode();
+    }
+}
@@ -0,0 +1,74 @@
+package me.sebz.mondragon.pbl5.os;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// NodeRedServer.identify end to end (session check, detect, embed, match)
+// with the analysis servers' simulated processing time switched off. The detect server
+// normally finds a face half the time at random; here it is told which way to go, so the
+// match path and the no-face path are measured separately.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IdentifyBenchmark {
+
+    // Answers nextBoolean, which is what FaceDetectServer asks, from a flag
+    private static class ScriptedRandom extends Random {
+        volatile boolean faces = true;
+
+        @Override
+        public boolean nextBoolean() {
+            return faces;
+        }
+    }
+
+    @Param({"100"})
+    int members;
+
+    @Param({"true", "false"})
+    boolean faceDetected;
+
+    private final ScriptedRandom detection = new ScriptedRandom();
+
+    private NodeRedServer server;
+    private Long sessionId;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        BenchmarkSupport.silenceConsole();
+        server = new NodeRedServer(new FaceDetectServer(0, 0, detection), new FaceEmbeddingServer(0, 0));
+        int groupId = server.signup("benchmark").join();
+        sessionId = server.login(groupId, "benchmark").join();
+        for (int photoId = 1; photoId <= members; photoId++) {
+            server.addPerson(sessionId, "person " + photoId, photoId).join();
+        }
+        detection.faces = faceDetected;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.shutdown().join();
+    }
+
+    @Benchmark
+    public String identify() {
+        return server.identify(sessionId, 1).handle((info, ex) -> info).join();
+    }
+}
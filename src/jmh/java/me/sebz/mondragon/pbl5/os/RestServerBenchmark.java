@@ -0,0 +1,97 @@
+package me.sebz.mondragon.pbl5.os;
+
+import java.lang.reflect.Field;
+import java.util.Random;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Latency of the REST operations NodeRedServer calls most, plus how many tasks each one
+// hands to RestServer's executor (the restTasks counter, per iteration)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RestServerBenchmark {
+
+    @Param({"100"})
+    int members;
+
+    private RestServer server;
+    private ThreadPoolExecutor executor;
+    private Long sessionId;
+    private int personId;
+    private float[] query;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Handoffs {
+        public long restTasks;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            restTasks = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        BenchmarkSupport.silenceConsole();
+        Log.setLevel(Log.Level.WARN);
+        server = new RestServer();
+        Field field = RestServer.class.getDeclaredField("executor");
+        field.setAccessible(true);
+        executor = (ThreadPoolExecutor) field.get(server);
+        int groupId = server.createGroup("benchmark").join();
+        sessionId = server.newSession(groupId, "benchmark").join();
+        Random random = new Random(42);
+        for (int i = 0; i < members; i++) {
+            personId = server.createPerson(sessionId, "person " + i, BenchmarkSupport.randomEmbedding(random)).join();
+        }
+        query = BenchmarkSupport.randomEmbedding(random);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.shutdown().join();
+    }
+
+    @Benchmark
+    public Group validateSession(Handoffs handoffs) {
+        long before = executor.getTaskCount();
+        Group group = server.getValidatedGroup(sessionId).join();
+        handoffs.restTasks += executor.getTaskCount() - before;
+        return group;
+    }
+
+    @Benchmark
+    public void editPersonInfo(Handoffs handoffs) {
+        long before = executor.getTaskCount();
+        server.editPersonInfo(sessionId, personId, "renamed").join();
+        handoffs.restTasks += executor.getTaskCount() - before;
+    }
+
+    @Benchmark
+    public String identifyPerson(Handoffs handoffs) {
+        long before = executor.getTaskCount();
+        String info = server.identifyPerson(sessionId, query).join();
+        handoffs.restTasks += executor.getTaskCount() - before;
+        return info;
+    }
+}
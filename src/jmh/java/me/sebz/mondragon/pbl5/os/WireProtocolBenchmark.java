@@ -0,0 +1,51 @@
+package me.sebz.mondragon.pbl5.os;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// One identify request frame encoded into a direct buffer and decoded back
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WireProtocolBenchmark {
+
+    @Param({"false", "true"})
+    boolean float16;
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(1024);
+    private final WireDecoder decoder = new WireDecoder();
+    private float[] embedding;
+    private float[] decoded;
+    private long sessionId;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        embedding = BenchmarkSupport.randomEmbedding(new Random(3));
+        decoded = new float[embedding.length];
+    }
+
+    @Benchmark
+    public float[] encodeDecodeIdentifyRequest() {
+        buffer.clear();
+        WireEncoder.encodeIdentifyRequest(buffer, sessionId++, embedding, float16);
+        buffer.flip();
+        return decoder.wrap(buffer).readEmbedding(decoded);
+    }
+}
@@ -0,0 +1,201 @@
+package me.sebz.mondragon.pbl5.os;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+// Stops calling a downstream that keeps failing. Closed, it records the outcome of the last
+// windowSize calls and opens once at least minimumCalls have been seen and the failure rate
+// reaches the threshold. Open, calls fail at once with CircuitOpenException until openMillis
+// have passed; then a single probe is let through (half-open), and its outcome closes or
+// reopens the breaker. Calls admitted before the breaker opened may still complete while it is
+// half-open; only the probe decides. A probe that has not answered within openMillis counts as
+// failed. IllegalArgumentException ("No Face", an invalid session) is a normal
+// answer from a healthy downstream and counts as a success, as do our own overload rejections.
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    public static class CircuitOpenException extends OverloadException {
+        public CircuitOpenException(String downstream) {
+            super(downstream + " circuit is open");
+        }
+    }
+
+    private final String downstream;
+    private final int windowSize;
+    private final int minimumCalls;
+    private final double failureThreshold;
+    private final long openNanos;
+    // Tickets handed out by allowRequest: a closed call, a refused one, or the number of a probe
+    private static final long CLOSED_CALL = 0;
+    private static final long REFUSED = -1;
+
+    private final Lock mutex = new ReentrantLock();
+    private final boolean[] failures;
+    private final Metrics.Counter rejected;
+    private volatile State state = State.CLOSED;
+    private int calls;
+    private int next;
+    private int failureCount;
+    private long openedAt;
+    private long probe;
+    private long probeStartedAt;
+    private boolean probing;
+
+    public CircuitBreaker(String downstream) {
+        this(downstream, 20, 10, 0.5, 2000);
+    }
+
+    public CircuitBreaker(String downstream, int windowSize, int minimumCalls, double failureThreshold, long openMillis) {
+        this.downstream = downstream;
+        this.windowSize = windowSize;
+        this.minimumCalls = minimumCalls;
+        this.failureThreshold = failureThreshold;
+        this.openNanos = openMillis * 1_000_000L;
+        this.failures = new boolean[windowSize];
+        rejected = Metrics.counter("circuit_breaker_rejected_total", "Calls failed fast by an open circuit breaker",
+                "downstream", downstream);
+        Metrics.gauge("circuit_breaker_state", "Circuit breaker state: 0 closed, 1 open, 2 half-open",
+                () -> state.ordinal(), "downstream", downstream);
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public <T> CompletableFuture<T> call(Supplier<CompletableFuture<T>> request) {
+        long ticket = allowRequest();
+        if (ticket == REFUSED) {
+            rejected.increment();
+            return CompletableFuture.failedFuture(new CircuitOpenException(downstream));
+        }
+        CompletableFuture<T> future;
+        try {
+            future = request.get();
+        } catch (RuntimeException e) {
+            record(ticket, e);
+            throw e;
+        }
+        return future.whenComplete((result, ex) -> record(ticket, ex));
+    }
+
+    // A batch is admitted or refused as a whole; every item's outcome is recorded
+    public <T> List<CompletableFuture<T>> callAll(int count, Supplier<List<CompletableFuture<T>>> batch) {
+        long ticket = allowRequest();
+        if (ticket == REFUSED) {
+            rejected.increment();
+            List<CompletableFuture<T>> failed = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                failed.add(CompletableFuture.failedFuture(new CircuitOpenException(downstream)));
+            }
+            return failed;
+        }
+        List<CompletableFuture<T>> futures;
+        try {
+            futures = batch.get();
+        } catch (RuntimeException e) {
+            record(ticket, e);
+            throw e;
+        }
+        for (CompletableFuture<T> future : futures) {
+            future.whenComplete((result, ex) -> record(ticket, ex));
+        }
+        return futures;
+    }
+
+    private long allowRequest() {
+        if (state == State.CLOSED) {
+            return CLOSED_CALL;
+        }
+        mutex.lock();
+        try {
+            long now = System.nanoTime();
+            if (state == State.HALF_OPEN && probing && now - probeStartedAt >= openNanos) {
+                Log.warn("Circuit breaker probe {} for {} timed out", probe, downstream);
+                open();
+            }
+            if (state == State.OPEN && now - openedAt >= openNanos) {
+                state = State.HALF_OPEN;
+                probing = false;
+            }
+            if (state == State.HALF_OPEN && !probing) {
+                probing = true;
+                probeStartedAt = now;
+                return ++probe;
+            }
+            return state == State.CLOSED ? CLOSED_CALL : REFUSED;
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    private void record(long ticket, Throwable ex) {
+        boolean failed = isFailure(ex);
+        mutex.lock();
+        try {
+            if (ticket != CLOSED_CALL) {
+                // A probe decides only while it is the current one; later answers from it,
+                // or from a probe that timed out, are ignored
+                if (state != State.HALF_OPEN || ticket != probe) {
+                    return;
+                }
+                if (failed) {
+                    open();
+                } else {
+                    reset();
+                    state = State.CLOSED;
+                    Log.info("Circuit breaker for {} closed", downstream);
+                }
+                return;
+            }
+            if (state != State.CLOSED) {
+                return;
+            }
+            if (failures[next]) {
+                failureCount--;
+            }
+            failures[next] = failed;
+            if (failed) {
+                failureCount++;
+            }
+            next = (next + 1) % windowSize;
+            calls = Math.min(calls + 1, windowSize);
+            if (calls >= minimumCalls && failureCount >= failureThreshold * calls) {
+                open();
+            }
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openedAt = System.nanoTime();
+        probing = false;
+        reset();
+        Log.warn("Circuit breaker for {} opened, failing calls for {} ms", downstream, openNanos / 1_000_000);
+    }
+
+    private void reset() {
+        calls = 0;
+        next = 0;
+        failureCount = 0;
+        Arrays.fill(failures, false);
+    }
+
+    private static boolean isFailure(Throwable ex) {
+        if (ex == null) {
+            return false;
+        }
+        Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+        return !(cause instanceof IllegalArgumentException || cause instanceof OverloadException);
+    }
+}
@@ -0,0 +1,121 @@
+package me.sebz.mondragon.pbl5.os;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+// AIMD limit on requests in flight. Every successful completion is a latency sample compared
+// with the best latency seen recently (the unloaded baseline). A sample within tolerance, taken
+// while at least half the limit was in use, earns growth: one more slot per limit's worth of
+// such samples. A slower sample means requests are queueing somewhere, and the limit is cut by
+// the backoff ratio. Requests over the limit fail at once with an OverloadException instead
+// of waiting in the executors' queues.
+public class ConcurrencyLimiter {
+
+    private static final double TOLERANCE = 2.0;
+    private static final double BACKOFF = 0.9;
+    // The baseline is re-taken from each window's fastest sample, rising at most 10% per window
+    private static final int BASELINE_WINDOW = 500;
+
+    private final String name;
+    private final int minLimit;
+    private final int maxLimit;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Metrics.Counter rejected;
+    private final Lock mutex = new ReentrantLock();
+    private volatile int limit;
+    private long baselineNanos = Long.MAX_VALUE;
+    private long windowMinNanos = Long.MAX_VALUE;
+    private int windowSamples;
+    private int growthSamples;
+
+    public ConcurrencyLimiter(String name, int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit < 1 || minLimit > initialLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("limits must satisfy 1 <= min <= initial <= max");
+        }
+        this.name = name;
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        rejected = Metrics.counter("concurrency_rejected_total", "Requests rejected by admission control", "limiter", name);
+        Metrics.gauge("concurrency_limit", "Current adaptive concurrency limit", () -> this.limit, "limiter", name);
+        Metrics.gauge("concurrency_in_flight", "Requests admitted and not yet completed", inFlight::get, "limiter", name);
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    // Admits the request, or runs onRejected and returns a future failed with OverloadException
+    public <T> CompletableFuture<T> run(Runnable onRejected, Supplier<CompletableFuture<T>> request) {
+        if (!tryAcquire()) {
+            onRejected.run();
+            return CompletableFuture.failedFuture(new OverloadException(name + " requests are at the limit of " + limit));
+        }
+        long start = System.nanoTime();
+        CompletableFuture<T> future;
+        try {
+            future = request.get();
+        } catch (RuntimeException e) {
+            release(System.nanoTime() - start, false);
+            throw e;
+        }
+        return future.whenComplete((result, ex) -> release(System.nanoTime() - start, ex == null));
+    }
+
+    boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= limit) {
+                rejected.increment();
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    // Failed requests only free their slot: a fast rejection downstream says nothing about load
+    void release(long latencyNanos, boolean succeeded) {
+        int inFlightBefore = inFlight.getAndDecrement();
+        if (!succeeded) {
+            return;
+        }
+        mutex.lock();
+        try {
+            sample(latencyNanos, inFlightBefore);
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    private void sample(long latencyNanos, int inFlightBefore) {
+        windowMinNanos = Math.min(windowMinNanos, latencyNanos);
+        baselineNanos = Math.min(baselineNanos, latencyNanos);
+        if (++windowSamples >= BASELINE_WINDOW) {
+            baselineNanos = Math.min(windowMinNanos, (long) (baselineNanos * 1.1));
+            windowMinNanos = Long.MAX_VALUE;
+            windowSamples = 0;
+        }
+
+        int current = limit;
+        if (latencyNanos > baselineNanos * TOLERANCE) {
+            limit = Math.max(minLimit, (int) (current * BACKOFF));
+            growthSamples = 0;
+        } else if (inFlightBefore * 2 >= current && ++growthSamples >= current) {
+            limit = Math.min(maxLimit, current + 1);
+            growthSamples = 0;
+        }
+    }
+}
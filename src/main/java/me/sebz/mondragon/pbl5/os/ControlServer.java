@@ -0,0 +1,365 @@
+package me.sebz.mondragon.pbl5.os;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+public class ControlServer implements Runnable {
+
+    public interface CommandHandler {
+        String handle(String command);
+
+        // Called on the selector thread. Commands that take a while return a pending future;
+        // its reply goes out in order with the connection's other replies once it completes.
+        default CompletableFuture<String> handleAsync(String command) {
+            return CompletableFuture.completedFuture(handle(command));
+        }
+
+        // Called on the selector thread; the frame is only valid until this method returns
+        default CompletableFuture<Reply> handleFrame(WireDecoder frame) {
+            return CompletableFuture.completedFuture(errorReply("unsupported frame type " + frame.type()));
+        }
+    }
+
+    public static class Reply {
+        private final int maxSize;
+        private final Consumer<ByteBuffer> writer;
+
+        Reply(int maxSize, Consumer<ByteBuffer> writer) {
+            this.maxSize = maxSize;
+            this.writer = writer;
+        }
+    }
+
+    public static Reply textReply(String line) {
+        return new Reply(WireEncoder.maxUtf8Length(line) + 1, out -> {
+            WireEncoder.putUtf8(out, line);
+            out.put((byte) '\n');
+        });
+    }
+
+    public static Reply frameReply(int maxSize, Consumer<ByteBuffer> encoder) {
+        return new Reply(maxSize, encoder);
+    }
+
+    public static Reply errorReply(String message) {
+        return new Reply(WireEncoder.errorMaxSize(message), out -> WireEncoder.encodeError(out, message));
+    }
+
+    // Also the longest command line; the buffer grows to MAX_FRAME_SIZE for a larger frame
+    private static final int READ_BUFFER_SIZE = 4096;
+    private static final int MAX_FRAME_SIZE = WireFormat.HEADER_SIZE + WireFormat.MAX_PAYLOAD;
+    private static final int WRITE_BUFFER_SIZE = 4096;
+    // Once this many response bytes are waiting for a slow client we stop reading its commands
+    private static final int MAX_PENDING_WRITE_BYTES = 64 * 1024;
+    private static final int MAX_PENDING_REPLIES = 1024;
+
+    private class Connection {
+        final SocketChannel channel;
+        ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        ByteBuffer writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+        // Replies leave in request order even when a later command completes first
+        final Queue<CompletableFuture<Reply>> pending = new ArrayDeque<>();
+        // After an overlong line, the rest of it up to the next newline is not a command
+        boolean discarding;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    private final InetSocketAddress address;
+    private final CommandHandler handler;
+    private final WireDecoder decoder = new WireDecoder();
+    private final Queue<SelectionKey> completed = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+    private volatile Selector selector;
+    private final CompletableFuture<InetSocketAddress> boundFuture = new CompletableFuture<>();
+    private final CompletableFuture<Void> terminationFuture = new CompletableFuture<>();
+
+    public ControlServer(InetSocketAddress address, CommandHandler handler) {
+        this.address = address;
+        this.handler = handler;
+    }
+
+    public void run() {
+        try (Selector selector = Selector.open();
+             ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            this.selector = selector;
+            serverChannel.bind(address, 50);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            System.out.println("TCP Server listening on " + address.getHostString() + ":" + address.getPort());
+            boundFuture.complete((InetSocketAddress) serverChannel.getLocalAddress());
+
+            while (running) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (key.isAcceptable()) {
+                            accept(serverChannel, selector);
+                        } else {
+                            if (key.isReadable()) {
+                                read(key);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                flush(key);
+                            }
+                        }
+                    } catch (IOException e) {
+                        close(key);
+                    }
+                }
+                SelectionKey key;
+                while ((key = completed.poll()) != null) {
+                    if (key.isValid()) {
+                        try {
+                            flush(key);
+                        } catch (IOException e) {
+                            close(key);
+                        }
+                    }
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                close(key);
+            }
+            terminationFuture.complete(null);
+        } catch (IOException | ClosedSelectorException e) {
+            System.err.println("Could not listen on " + address.getHostString() + ":" + address.getPort());
+            boundFuture.completeExceptionally(e);
+            terminationFuture.completeExceptionally(e);
+        }
+    }
+
+    public CompletableFuture<InetSocketAddress> bound() {
+        return boundFuture;
+    }
+
+    public CompletableFuture<Void> stop() {
+        running = false;
+        Selector s = selector;
+        if (s != null) {
+            s.wakeup();
+        }
+        return terminationFuture;
+    }
+
+    private void accept(ServerSocketChannel serverChannel, Selector selector) throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+        }
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        ByteBuffer in = connection.readBuffer;
+
+        int n = connection.channel.read(in);
+        if (n < 0) {
+            close(key);
+            return;
+        }
+
+        // Answer every complete command already buffered, so pipelined commands cost one read
+        in.flip();
+        if (connection.discarding) {
+            skipLine(connection, in);
+        }
+        while (in.hasRemaining()) {
+            boolean consumed = in.get(in.position()) == WireFormat.MAGIC
+                    ? readFrame(key, connection, in)
+                    : readLine(key, connection, in);
+            if (!consumed) {
+                break;
+            }
+        }
+        in.compact();
+
+        if (!in.hasRemaining()) {
+            boolean frame = in.get(0) == WireFormat.MAGIC;
+            if (frame && in.capacity() < MAX_FRAME_SIZE) {
+                // frameLength has checked the header, so the frame fits once the buffer has grown
+                ByteBuffer bigger = ByteBuffer.allocate(MAX_FRAME_SIZE);
+                in.flip();
+                bigger.put(in);
+                connection.readBuffer = bigger;
+            } else {
+                in.clear();
+                connection.discarding = !frame;
+                Reply tooLong = frame ? errorReply("frame larger than " + in.capacity() + " bytes") : textReply("LINE_TOO_LONG");
+                enqueue(key, connection, CompletableFuture.completedFuture(tooLong));
+            }
+        } else if (in.position() == 0 && in.capacity() > READ_BUFFER_SIZE) {
+            connection.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        }
+
+        flush(key);
+    }
+
+    // Drops bytes up to and including the next newline, or all of them if there is none yet
+    private static void skipLine(Connection connection, ByteBuffer in) {
+        for (int i = in.position(); i < in.limit(); i++) {
+            if (in.get(i) == '\n') {
+                in.position(i + 1);
+                connection.discarding = false;
+                return;
+            }
+        }
+        in.position(in.limit());
+    }
+
+    private boolean readLine(SelectionKey key, Connection connection, ByteBuffer in) {
+        int lineStart = in.position();
+        for (int i = lineStart; i < in.limit(); i++) {
+            if (in.get(i) == '\n') {
+                int end = i;
+                if (end > lineStart && in.get(end - 1) == '\r') {
+                    end--;
+                }
+                String line = new String(in.array(), lineStart, end - lineStart, StandardCharsets.UTF_8);
+                in.position(i + 1);
+                CompletableFuture<String> reply;
+                try {
+                    reply = handler.handleAsync(line);
+                } catch (RuntimeException e) {
+                    // A failing command must not take the selector thread down with it
+                    reply = CompletableFuture.failedFuture(e);
+                }
+                enqueue(key, connection, reply.handle((text, ex) -> {
+                    if (ex == null) {
+                        return textReply(text);
+                    }
+                    Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+                    return textReply("ERROR " + cause.getMessage());
+                }));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean readFrame(SelectionKey key, Connection connection, ByteBuffer in) {
+        int length;
+        try {
+            length = WireDecoder.frameLength(in);
+        } catch (IllegalArgumentException e) {
+            // The stream can no longer be framed: answer, then drop whatever else was buffered
+            in.position(in.limit());
+            enqueue(key, connection, CompletableFuture.completedFuture(errorReply(e.getMessage())));
+            return true;
+        }
+        if (length < 0) {
+            return false;
+        }
+
+        CompletableFuture<Reply> reply;
+        try {
+            reply = handler.handleFrame(decoder.wrap(in));
+        } catch (RuntimeException e) {
+            reply = CompletableFuture.completedFuture(errorReply(e.getMessage()));
+        }
+        enqueue(key, connection, reply);
+        return true;
+    }
+
+    private void enqueue(SelectionKey key, Connection connection, CompletableFuture<Reply> reply) {
+        connection.pending.add(reply);
+        if (!reply.isDone()) {
+            reply.whenComplete((r, ex) -> {
+                completed.add(key);
+                selector.wakeup();
+            });
+        }
+    }
+
+    private void writeReplies(Connection connection) {
+        CompletableFuture<Reply> head;
+        while ((head = connection.pending.peek()) != null && head.isDone()) {
+            connection.pending.poll();
+            Reply reply;
+            try {
+                reply = head.join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause() != null ? e.getCause() : e;
+                reply = errorReply(String.valueOf(cause.getMessage()));
+            }
+            while (connection.writeBuffer.remaining() < reply.maxSize) {
+                grow(connection);
+            }
+            int mark = connection.writeBuffer.position();
+            while (true) {
+                try {
+                    reply.writer.accept(connection.writeBuffer);
+                    break;
+                } catch (BufferOverflowException e) {
+                    // maxSize is only an estimate when the reply reads mutable state
+                    connection.writeBuffer.position(mark);
+                    grow(connection);
+                } catch (RuntimeException e) {
+                    // A reply that cannot be encoded is answered with an error frame instead
+                    connection.writeBuffer.position(mark);
+                    reply = errorReply("could not encode reply: " + e.getMessage());
+                    while (connection.writeBuffer.remaining() < reply.maxSize) {
+                        grow(connection);
+                    }
+                }
+            }
+        }
+    }
+
+    private void grow(Connection connection) {
+        ByteBuffer bigger = ByteBuffer.allocate(connection.writeBuffer.capacity() * 2);
+        connection.writeBuffer.flip();
+        bigger.put(connection.writeBuffer);
+        connection.writeBuffer = bigger;
+    }
+
+    private void flush(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        writeReplies(connection);
+        ByteBuffer out = connection.writeBuffer;
+
+        out.flip();
+        connection.channel.write(out);
+        out.compact();
+
+        int pending = out.position();
+        int ops = pending > 0 ? SelectionKey.OP_WRITE : 0;
+        if (pending < MAX_PENDING_WRITE_BYTES && connection.pending.size() < MAX_PENDING_REPLIES) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if (pending == 0 && out.capacity() > WRITE_BUFFER_SIZE) {
+            connection.writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+        }
+        key.interestOps(ops);
+    }
+
+    private void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+}
@@ -2,24 +2,28 @@ package me.sebz.mondragon.pbl5.os;
 
 import java.security.SecureRandom;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 public class Database {
     private Set<Group> groups;
     private Map<Long, Group> sessions;
     private Random random = new SecureRandom();
+    private final FaceIndex faceIndex = new FaceIndex();
 
     // single-threaded executor to serialize DB operations
-    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final ThreadPoolExecutor executor =
+            new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
 
     public Database() {
+        Metrics.monitor("database", executor);
         groups = new LinkedHashSet<>();
         sessions = new HashMap<>();
     }
@@ -29,15 +33,29 @@ public class Database {
     }
 
     public CompletableFuture<Void> addGroup(Group group) {
-        return CompletableFuture.runAsync(() -> groups.add(group), executor);
+        return CompletableFuture.runAsync(() -> {
+            if (groups.add(group)) {
+                group.attachIndex(faceIndex);
+            }
+        }, executor);
     }
 
     public CompletableFuture<Void> removeGroup(Group group) {
-        return CompletableFuture.runAsync(() -> groups.remove(group), executor);
+        return CompletableFuture.runAsync(() -> {
+            if (groups.remove(group)) {
+                group.detachIndex();
+            }
+        }, executor);
     }
 
     public CompletableFuture<Void> removeGroup(int groupId) {
-        return CompletableFuture.runAsync(() -> groups.removeIf(group -> groupId == group.getId()), executor);
+        return CompletableFuture.runAsync(() -> groups.removeIf(group -> {
+            if (groupId != group.getId()) {
+                return false;
+            }
+            group.detachIndex();
+            return true;
+        }), executor);
     }
 
     public CompletableFuture<Group> getGroupById(int groupId) {
@@ -74,8 +92,16 @@ public class Database {
         }, executor);
     }
 
+    // A session outlives its group only until the next lookup
     public CompletableFuture<Group> getGroupFromSession(Long sessionId) {
-        return CompletableFuture.supplyAsync(() -> sessions.get(sessionId), executor);
+        return CompletableFuture.supplyAsync(() -> {
+            Group group = sessions.get(sessionId);
+            if (group != null && !groups.contains(group)) {
+                sessions.remove(sessionId);
+                return null;
+            }
+            return group;
+        }, executor);
     }
 
     public CompletableFuture<Person> getPersonById(int personId) {
@@ -88,6 +114,16 @@ public class Database {
         , executor);
     }
 
+    // Which groups have this face: the k closest faces across all groups. The search runs
+    // off the database thread so a large index does not hold up session lookups.
+    public CompletableFuture<List<FaceIndex.Match>> findFace(float[] embedding, int k) {
+        return CompletableFuture.supplyAsync(() -> faceIndex.search(embedding, k));
+    }
+
+    public FaceIndex getFaceIndex() {
+        return faceIndex;
+    }
+
     // Graceful shutdown for the executor
     public CompletableFuture<Void> shutdown() {
         return CompletableFuture.runAsync(() -> {
@@ -0,0 +1,36 @@
+package me.sebz.mondragon.pbl5.os;
+
+import java.util.concurrent.CompletionException;
+
+// Outcome of enrolling one person in a bulk request: the new person's ID or a per-item error
+public class EnrollmentResult {
+
+    private final int personId;
+    private final Throwable error;
+
+    private EnrollmentResult(int personId, Throwable error) {
+        this.personId = personId;
+        this.error = error;
+    }
+
+    public static EnrollmentResult enrolled(int personId) {
+        return new EnrollmentResult(personId, null);
+    }
+
+    public static EnrollmentResult failed(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        return new EnrollmentResult(-1, cause);
+    }
+
+    public boolean isEnrolled() {
+        return error == null;
+    }
+
+    public int getPersonId() {
+        return personId;
+    }
+
+    public Throwable getError() {
+        return error;
+    }
+}
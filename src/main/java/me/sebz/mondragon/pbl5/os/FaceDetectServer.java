@@ -1,10 +1,12 @@
 package me.sebz.mondragon.pbl5.os;
 
-import java.security.SecureRandom;
 import java.util.Random;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -13,22 +15,60 @@ public class FaceDetectServer implements Runnable {
 
     private class Task {
         int id;
+        Photo photo;
+        Trace trace;
         CompletableFuture<Boolean> future;
+        final long enqueuedAt = System.nanoTime();
 
-        Task(int id) {
+        Task(int id, Photo photo, Trace trace) {
             this.id = id;
+            this.photo = photo;
+            this.trace = trace;
             this.future = new CompletableFuture<>();
         }
     }
 
-    private static Random random = new SecureRandom();
+    static final int DEFAULT_MIN_DELAY_MS = 100;
+    static final int DEFAULT_MAX_DELAY_MS = 200;
+
+    private static final Metrics.Histogram analysisLatency =
+            Metrics.latency("analysis_duration_seconds", "Time spent analyzing one photo", "server", "detect");
+    private static final Metrics.Counter analyzed =
+            Metrics.counter("analysis_tasks_total", "Photos analyzed", "server", "detect", "outcome", "ok");
+    private static final Metrics.Counter failed =
+            Metrics.counter("analysis_tasks_total", "Photos analyzed", "server", "detect", "outcome", "error");
+    // Simulated processing time; a zero range skips the sleep (used by the benchmarks)
+    private final int minDelayMs;
+    private final int maxDelayMs;
+    // Decides whether a face is found, and the processing time
+    private final Random random;
     private volatile boolean running = true;
     private final Lock mutex = new ReentrantLock();
     private final Condition hasTasks = mutex.newCondition();
     private final Queue<Task> queue = new ArrayDeque<>();
     private final CompletableFuture<Void> terminationFuture = new CompletableFuture<>();
+    // Several threads may run the same server; it has terminated once the last one exits
+    private final AtomicInteger workers = new AtomicInteger();
+    // First failure that ended a worker; reported once the last one exits
+    private volatile Throwable crash;
+
+    public FaceDetectServer() {
+        this(DEFAULT_MIN_DELAY_MS, DEFAULT_MAX_DELAY_MS);
+    }
+
+    public FaceDetectServer(int minDelayMs, int maxDelayMs) {
+        this(minDelayMs, maxDelayMs, Simulation.newRandom("detect"));
+    }
+
+    FaceDetectServer(int minDelayMs, int maxDelayMs, Random random) {
+        this.minDelayMs = minDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.random = random;
+        Metrics.gauge("analysis_queue_depth", "Photos waiting for an analysis worker", this::queueDepth, "server", "detect");
+    }
 
     public void run() {
+        workers.incrementAndGet();
         try {
             while (running) {
                 Task task;
@@ -52,16 +92,49 @@ public class FaceDetectServer implements Runnable {
                 if (task == null) continue;
 
                 // Execute outside the lock
+                PipelineEvents.queueWait("detect", task.id, task.enqueuedAt);
+                PipelineEvents.Analysis event = new PipelineEvents.Analysis();
+                event.begin();
+                long start = System.nanoTime();
+                boolean result = false;
+                Exception failure = null;
                 try {
-                    boolean result = innerAnalyzePhoto(task.id);
-                    task.future.complete(result);
+                    result = innerAnalyzePhoto(task.id, task.photo);
+                    analyzed.increment();
+                    event.succeeded = true;
+                    traceTask(task, start, false);
                 } catch (Exception e) {
-                    task.future.completeExceptionally(e);
+                    failed.increment();
+                    traceTask(task, start, true);
+                    failure = e;
+                } finally {
+                    analysisLatency.recordNanos(System.nanoTime() - start);
+                    event.end();
+                    if (event.shouldCommit()) {
+                        event.server = "detect";
+                        event.photoId = task.id;
+                        event.commit();
+                    }
+                }
+                // Only now, so a caller that has the result also finds the analysis recorded
+                if (failure == null) {
+                    task.future.complete(result);
+                } else {
+                    task.future.completeExceptionally(failure);
+                }
+            }
+        } catch (RuntimeException e) {
+            Log.error("FaceDetectServer worker stopped: {}", e);
+            crash = e;
+        } finally {
+            if (workers.decrementAndGet() == 0) {
+                Throwable failure = crash;
+                if (failure != null) {
+                    terminationFuture.completeExceptionally(failure);
+                } else {
+                    terminationFuture.complete(null);
                 }
             }
-            terminationFuture.complete(null);
-        } catch (Exception e) {
-            terminationFuture.completeExceptionally(e);
         }
     }
 
@@ -77,8 +150,81 @@ public class FaceDetectServer implements Runnable {
     }
 
     public CompletableFuture<Boolean> analyzePhoto(int photoId) {
-        Task task = new Task(photoId);
+        return analyzePhoto(photoId, null);
+    }
+
+    // The trace, when given, gets a queue wait and an analysis span for the photo
+    public CompletableFuture<Boolean> analyzePhoto(int photoId, Trace trace) {
+        return enqueue(new Task(photoId, null, trace));
+    }
+
+    // The photo is borrowed: the caller keeps ownership and releases it once the future completes
+    public CompletableFuture<Boolean> analyzePhoto(Photo photo) {
+        return analyzePhoto(photo, null);
+    }
+
+    public CompletableFuture<Boolean> analyzePhoto(Photo photo, Trace trace) {
+        return enqueue(new Task(photo.getId(), photo, trace));
+    }
+
+    // Queues the whole batch under one lock acquisition; futures are in photoIds order
+    public List<CompletableFuture<Boolean>> analyzePhotos(int[] photoIds) {
+        return analyzePhotos(photoIds, null);
+    }
 
+    public List<CompletableFuture<Boolean>> analyzePhotos(int[] photoIds, Trace trace) {
+        List<Task> tasks = new ArrayList<>(photoIds.length);
+        for (int photoId : photoIds) {
+            tasks.add(new Task(photoId, null, trace));
+        }
+        return enqueueAll(tasks);
+    }
+
+    // The photos are borrowed, as in analyzePhoto(Photo)
+    public List<CompletableFuture<Boolean>> analyzePhotos(Photo[] photos) {
+        return analyzePhotos(photos, null);
+    }
+
+    public List<CompletableFuture<Boolean>> analyzePhotos(Photo[] photos, Trace trace) {
+        List<Task> tasks = new ArrayList<>(photos.length);
+        for (Photo photo : photos) {
+            tasks.add(new Task(photo.getId(), photo, trace));
+        }
+        return enqueueAll(tasks);
+    }
+
+    private static void traceTask(Task task, long start, boolean failed) {
+        if (task.trace != null) {
+            task.trace.record("detect.queue photo " + task.id, task.enqueuedAt, start, false);
+            task.trace.record("detect photo " + task.id, start, System.nanoTime(), failed);
+        }
+    }
+
+    private List<CompletableFuture<Boolean>> enqueueAll(List<Task> tasks) {
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>(tasks.size());
+        mutex.lock();
+        try {
+            for (Task task : tasks) {
+                queue.add(task);
+                futures.add(task.future);
+            }
+            hasTasks.signalAll();
+        } finally {
+            mutex.unlock();
+        }
+        return futures;
+    }
+
+    private long queueDepth() {
+        mutex.lock();
+        try {
+            return queue.size();
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    private CompletableFuture<Boolean> enqueue(Task task) {
         mutex.lock();
         try {
             queue.add(task);
@@ -91,24 +237,24 @@ public class FaceDetectServer implements Runnable {
     }
 
     private boolean innerAnalyzePhoto(int photoId) {
+        return innerAnalyzePhoto(photoId, null);
+    }
+
+    private boolean innerAnalyzePhoto(int photoId, Photo photo) {
         boolean faceDetected = random.nextBoolean();
-        StringBuilder analysis = new StringBuilder();
-        System.out.println("FaceDetectServer started analyzing photo " + photoId);
-        try {
-            Thread.sleep(random.nextInt(100, 200));
-        } catch (InterruptedException e) {
-            // Auto-generated catch block
-            e.printStackTrace();
-        } // Simulate processing time
-        analysis.append("Analysis result: ");
-        if (faceDetected) {
-            analysis.append("Face detected in photo ");
-        } else {
-            analysis.append("No face detected in photo ");
+        Log.debug("FaceDetectServer started analyzing photo {}", photoId);
+        if (photo != null) {
+            photo.checksum();
+        }
+        if (maxDelayMs > 0) {
+            try {
+                Thread.sleep(maxDelayMs > minDelayMs ? random.nextInt(minDelayMs, maxDelayMs) : maxDelayMs);
+            } catch (InterruptedException e) {
+                // Stopping: keep the flag so the worker loop sees it once this photo is done
+                Thread.currentThread().interrupt();
+            } // Simulate processing time
         }
-        analysis.append(photoId).append(".");
-        System.out.println("FaceDetectServer analyzed photo " + photoId);
-        System.out.println(analysis.toString());
+        Log.info("FaceDetectServer analyzed photo {}: {}", photoId, faceDetected ? "face detected" : "no face detected");
         if (!faceDetected) {
             throw new IllegalArgumentException("No Face");
         }
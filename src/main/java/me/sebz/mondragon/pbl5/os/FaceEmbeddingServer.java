@@ -1,53 +1,123 @@
 package me.sebz.mondragon.pbl5.os;
 
-import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class FaceEmbeddingServer implements Runnable {
 
 	private class Task {
 		int id;
+		Photo photo;
+		Trace trace;
 		CompletableFuture<float[]> future;
 		final boolean poison;
+		final long enqueuedAt = System.nanoTime();
 
-		Task(int id) {
-			this(id, false);
+		Task(int id, Photo photo, Trace trace) {
+			this(id, photo, trace, false);
 		}
 
-		Task(int id, boolean poison) {
+		Task(int id, Photo photo, Trace trace, boolean poison) {
 			this.id = id;
+			this.photo = photo;
+			this.trace = trace;
 			this.poison = poison;
 			this.future = poison ? null : new CompletableFuture<>();
 		}
 	}
 
-	private static Random random = new SecureRandom();
+	static final int DEFAULT_MIN_DELAY_MS = 400;
+	static final int DEFAULT_MAX_DELAY_MS = 500;
+
+	private static Random random = Simulation.newRandom("embedding");
+	private static final Metrics.Histogram analysisLatency =
+			Metrics.latency("analysis_duration_seconds", "Time spent analyzing one photo", "server", "embedding");
+	private static final Metrics.Counter analyzed =
+			Metrics.counter("analysis_tasks_total", "Photos analyzed", "server", "embedding", "outcome", "ok");
+	private static final Metrics.Counter failed =
+			Metrics.counter("analysis_tasks_total", "Photos analyzed", "server", "embedding", "outcome", "error");
+	// Simulated processing time; a zero range skips the sleep (used by the benchmarks)
+	private final int minDelayMs;
+	private final int maxDelayMs;
 	private final BlockingQueue<Task> queue = new LinkedBlockingQueue<>();
-	private final Task POISON = new Task(-1, true);
+	private final Task POISON = new Task(-1, null, null, true);
 	private final CompletableFuture<Void> terminationFuture = new CompletableFuture<>();
+	// Several threads may run the same server; it has terminated once the last one exits
+	private final AtomicInteger workers = new AtomicInteger();
+	// First failure that ended a worker; reported once the last one exits
+	private volatile Throwable crash;
+
+	public FaceEmbeddingServer() {
+		this(DEFAULT_MIN_DELAY_MS, DEFAULT_MAX_DELAY_MS);
+	}
+
+	public FaceEmbeddingServer(int minDelayMs, int maxDelayMs) {
+		this.minDelayMs = minDelayMs;
+		this.maxDelayMs = maxDelayMs;
+		Metrics.gauge("analysis_queue_depth", "Photos waiting for an analysis worker", queue::size, "server", "embedding");
+	}
 
 	public void run() {
+		workers.incrementAndGet();
 		try {
 			while (true) {
 				Task task = queue.take();
 				if (task.poison) {
+					// Leave it for the next worker
+					queue.offer(task);
 					break;
 				}
 
+				PipelineEvents.queueWait("embedding", task.id, task.enqueuedAt);
+				PipelineEvents.Analysis event = new PipelineEvents.Analysis();
+				event.begin();
+				long start = System.nanoTime();
+				float[] embedding = null;
+				Exception failure = null;
 				try {
-					float[] embedding = innerAnalyzePhoto(task.id);
-					task.future.complete(embedding);
+					embedding = innerAnalyzePhoto(task.id, task.photo);
+					analyzed.increment();
+					event.succeeded = true;
+					traceTask(task, start, false);
 				} catch (Exception e) {
-					task.future.completeExceptionally(e);
+					failed.increment();
+					traceTask(task, start, true);
+					failure = e;
+				} finally {
+					analysisLatency.recordNanos(System.nanoTime() - start);
+					event.end();
+					if (event.shouldCommit()) {
+						event.server = "embedding";
+						event.photoId = task.id;
+						event.commit();
+					}
+				}
+				// Only now, so a caller that has the embedding also finds the analysis recorded
+				if (failure == null) {
+					task.future.complete(embedding);
+				} else {
+					task.future.completeExceptionally(failure);
 				}
 			}
 		} catch (InterruptedException e) {
 			Thread.currentThread().interrupt();
+		} catch (RuntimeException e) {
+			Log.error("FaceEmbeddingServer worker stopped: {}", e);
+			crash = e;
 		} finally {
-			terminationFuture.complete(null);
+			if (workers.decrementAndGet() == 0) {
+				Throwable failure = crash;
+				if (failure != null) {
+					terminationFuture.completeExceptionally(failure);
+				} else {
+					terminationFuture.complete(null);
+				}
+			}
 		}
 	}
 
@@ -62,7 +132,66 @@ public class FaceEmbeddingServer implements Runnable {
 	}
 
 	public CompletableFuture<float[]> analyzePhoto(int photoId) {
-		Task task = new Task(photoId);
+		return analyzePhoto(photoId, null);
+	}
+
+	// The trace, when given, gets a queue wait and an analysis span for the photo
+	public CompletableFuture<float[]> analyzePhoto(int photoId, Trace trace) {
+		return enqueue(new Task(photoId, null, trace));
+	}
+
+	// The photo is borrowed: the caller keeps ownership and releases it once the future completes
+	public CompletableFuture<float[]> analyzePhoto(Photo photo) {
+		return analyzePhoto(photo, null);
+	}
+
+	public CompletableFuture<float[]> analyzePhoto(Photo photo, Trace trace) {
+		return enqueue(new Task(photo.getId(), photo, trace));
+	}
+
+	// Futures are in photoIds order
+	public List<CompletableFuture<float[]>> analyzePhotos(int[] photoIds) {
+		return analyzePhotos(photoIds, null);
+	}
+
+	public List<CompletableFuture<float[]>> analyzePhotos(int[] photoIds, Trace trace) {
+		List<Task> tasks = new ArrayList<>(photoIds.length);
+		for (int photoId : photoIds) {
+			tasks.add(new Task(photoId, null, trace));
+		}
+		return enqueueAll(tasks);
+	}
+
+	// The photos are borrowed, as in analyzePhoto(Photo)
+	public List<CompletableFuture<float[]>> analyzePhotos(Photo[] photos) {
+		return analyzePhotos(photos, null);
+	}
+
+	public List<CompletableFuture<float[]>> analyzePhotos(Photo[] photos, Trace trace) {
+		List<Task> tasks = new ArrayList<>(photos.length);
+		for (Photo photo : photos) {
+			tasks.add(new Task(photo.getId(), photo, trace));
+		}
+		return enqueueAll(tasks);
+	}
+
+	private static void traceTask(Task task, long start, boolean failed) {
+		if (task.trace != null) {
+			task.trace.record("embedding.queue photo " + task.id, task.enqueuedAt, start, false);
+			task.trace.record("embedding photo " + task.id, start, System.nanoTime(), failed);
+		}
+	}
+
+	private List<CompletableFuture<float[]>> enqueueAll(List<Task> tasks) {
+		List<CompletableFuture<float[]>> futures = new ArrayList<>(tasks.size());
+		for (Task task : tasks) {
+			futures.add(task.future);
+		}
+		queue.addAll(tasks);
+		return futures;
+	}
+
+	private CompletableFuture<float[]> enqueue(Task task) {
 		try {
 			queue.put(task);
 		} catch (InterruptedException e) {
@@ -75,17 +204,26 @@ public class FaceEmbeddingServer implements Runnable {
 	}
 
 	private float[] innerAnalyzePhoto(int photoId) {
+		return innerAnalyzePhoto(photoId, null);
+	}
+
+	private float[] innerAnalyzePhoto(int photoId, Photo photo) {
 		float[] embedding = new float[128]; // Simulate a 128-dimensional embedding
-        System.out.println("FaceEmbeddingServer started analyzing photo " + photoId);
-		try {
-			Thread.sleep(random.nextInt(400, 500));
-		} catch (InterruptedException e) {
-			Thread.currentThread().interrupt();
+        Log.debug("FaceEmbeddingServer started analyzing photo {}", photoId);
+		if (photo != null) {
+			photo.checksum();
+		}
+		if (maxDelayMs > 0) {
+			try {
+				Thread.sleep(maxDelayMs > minDelayMs ? random.nextInt(minDelayMs, maxDelayMs) : maxDelayMs);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
 		}
 		for (int i = 0; i < 128; i++) {
 			embedding[i] = random.nextFloat();
 		}
-		System.out.println("FaceEmbeddingServer analyzed photo " + photoId);
+		Log.info("FaceEmbeddingServer analyzed photo {}", photoId);
 		return embedding;
 	}
 }
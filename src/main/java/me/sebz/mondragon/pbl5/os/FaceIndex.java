@@ -0,0 +1,424 @@
+package me.sebz.mondragon.pbl5.os;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Inverted-file index over the faces of every group, for asking which group, if any, has a
+// face. Each person is stored once, as the unit-length centroid of their templates, in the
+// posting list of the nearest coarse centroid; a search only scans the nprobe lists whose
+// centroids are closest to the query. Until MIN_TRAINING_SIZE faces are indexed there is a
+// single list. Training (spherical k-means on a sample) runs outside the lock in the
+// background whenever the index has grown fourfold since the last one, and the lists are
+// rebuilt under the lock in one pass. Posting lists publish each change as a new slice, so a
+// search only takes the lock to read the current centroids and lists and scans them without it.
+// Groups keep the index up to date as members change.
+public class FaceIndex {
+
+    public static final int DEFAULT_NPROBE = 8;
+    static final int MIN_TRAINING_SIZE = 1024;
+    private static final int SAMPLES_PER_PARTITION = 64;
+    private static final int MAX_PARTITIONS = 4096;
+    private static final int ITERATIONS = 10;
+
+    public static final class Match {
+        private final int groupId;
+        private final int personId;
+        private final float score;
+
+        Match(int groupId, int personId, float score) {
+            this.groupId = groupId;
+            this.personId = personId;
+            this.score = score;
+        }
+
+        public int getGroupId() {
+            return groupId;
+        }
+
+        public int getPersonId() {
+            return personId;
+        }
+
+        public float getScore() {
+            return score;
+        }
+
+        @Override
+        public String toString() {
+            return "group " + groupId + " person " + personId + " (" + score + ")";
+        }
+    }
+
+    // Replaced, not modified, when a face changes; the position fields are guarded by mutex
+    private static final class Entry {
+        final int groupId;
+        final int personId;
+        final float[] vector;
+        int partition;
+        int slot;
+        // Partition under the centroids being trained, -1 for entries newer than the training
+        // sample; written by the training thread before it takes the lock to rebuild the lists
+        int trained = -1;
+
+        Entry(int groupId, int personId, float[] vector) {
+            this.groupId = groupId;
+            this.personId = personId;
+            this.vector = vector;
+        }
+    }
+
+    // The entries a search scans: the first size slots of the array. Never changed once
+    // published, except that slots past size may be filled in before a larger size is published
+    private static final class Slice {
+        final Entry[] entries;
+        final int size;
+
+        Slice(Entry[] entries, int size) {
+            this.entries = entries;
+            this.size = size;
+        }
+    }
+
+    // Changed under mutex by publishing a new slice: a search keeps scanning the one it read.
+    // Adds fill the spare capacity, doubling it when full, so n adds cost O(n) copying overall;
+    // a remove copies the array, since swapping into the hole in place would be seen by readers
+    private static final class Postings {
+        volatile Slice slice;
+
+        Postings(Entry[] entries) {
+            for (int i = 0; i < entries.length; i++) {
+                entries[i].slot = i;
+            }
+            this.slice = new Slice(entries, entries.length);
+        }
+
+        void add(Entry entry) {
+            Slice current = slice;
+            Entry[] next = current.entries;
+            if (current.size == next.length) {
+                next = Arrays.copyOf(next, Math.max(4, next.length * 2));
+            }
+            entry.slot = current.size;
+            next[current.size] = entry;
+            slice = new Slice(next, current.size + 1);
+        }
+
+        // Swaps the last entry into the hole
+        void remove(Entry entry) {
+            Slice current = slice;
+            int size = current.size - 1;
+            Entry[] next = Arrays.copyOf(current.entries, current.entries.length);
+            if (entry.slot < size) {
+                Entry last = next[size];
+                next[entry.slot] = last;
+                last.slot = entry.slot;
+            }
+            next[size] = null;
+            slice = new Slice(next, size);
+        }
+    }
+
+    private final Lock mutex = new ReentrantLock();
+    private final AtomicBoolean training = new AtomicBoolean(false);
+    private final Random random;
+    // Person ids are unique across groups
+    private final IntObjectMap<Entry> byPerson = new IntObjectMap<>();
+    private float[][] centroids = new float[0][];
+    private Postings[] postings = {new Postings(new Entry[0])};
+    private int dimension = -1;
+    private int nextTraining = MIN_TRAINING_SIZE;
+
+    public FaceIndex() {
+        this(new Random(42));
+    }
+
+    FaceIndex(Random random) {
+        this.random = random;
+        Metrics.gauge("face_index_entries", "Faces in the cross-group index", this::size);
+        Metrics.gauge("face_index_partitions", "Posting lists in the cross-group index", this::getPartitionCount);
+    }
+
+    public int size() {
+        mutex.lock();
+        try {
+            return byPerson.size();
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    public int getPartitionCount() {
+        mutex.lock();
+        try {
+            return postings.length;
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    // Indexes the person's current face, or drops them if they have none. Faces whose length
+    // differs from the first one indexed are left out.
+    public void put(int groupId, Person person) {
+        Person.Face face = person.peekFace();
+        float[] vector = face == null ? null : unit(face.centroid);
+        boolean train = false;
+        mutex.lock();
+        try {
+            removeLocked(person.getId());
+            if (vector == null) {
+                return;
+            }
+            if (dimension < 0) {
+                dimension = vector.length;
+            } else if (vector.length != dimension) {
+                return;
+            }
+            Entry entry = new Entry(groupId, person.getId(), vector);
+            byPerson.putIfAbsent(entry.personId, entry);
+            entry.partition = nearest(centroids, vector);
+            postings[entry.partition].add(entry);
+            if (byPerson.size() >= nextTraining) {
+                nextTraining = byPerson.size() * 4;
+                train = true;
+            }
+        } finally {
+            mutex.unlock();
+        }
+        if (train) {
+            CompletableFuture.runAsync(this::train);
+        }
+    }
+
+    public void remove(int personId) {
+        mutex.lock();
+        try {
+            removeLocked(personId);
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    public List<Match> search(float[] query, int k) {
+        return search(query, k, DEFAULT_NPROBE);
+    }
+
+    // The k most similar faces among the nprobe partitions closest to the query, best first
+    public List<Match> search(float[] query, int k, int nprobe) {
+        if (k <= 0 || nprobe <= 0) {
+            throw new IllegalArgumentException("k and nprobe must be positive");
+        }
+        float[] q = unit(query);
+        Entry[] best = new Entry[k];
+        float[] scores = new float[k];
+        int found = 0;
+        float[][] centers;
+        Postings[] lists;
+        mutex.lock();
+        try {
+            if (q == null || q.length != dimension) {
+                return List.of();
+            }
+            centers = centroids;
+            lists = postings;
+        } finally {
+            mutex.unlock();
+        }
+        for (int partition : closestPartitions(centers, q, nprobe)) {
+            Slice slice = lists[partition].slice;
+            for (int i = 0; i < slice.size; i++) {
+                Entry entry = slice.entries[i];
+                float score = dot(q, entry.vector);
+                if (found == k && score <= scores[k - 1]) continue;
+                int at = found < k ? found++ : k - 1;
+                while (at > 0 && scores[at - 1] < score) {
+                    best[at] = best[at - 1];
+                    scores[at] = scores[at - 1];
+                    at--;
+                }
+                best[at] = entry;
+                scores[at] = score;
+            }
+        }
+        List<Match> matches = new ArrayList<>(found);
+        for (int i = 0; i < found; i++) {
+            matches.add(new Match(best[i].groupId, best[i].personId, scores[i]));
+        }
+        return matches;
+    }
+
+    // Learns sqrt(size) coarse centroids and redistributes every face; returns false when the
+    // index is too small or another training is under way
+    public boolean train() {
+        if (!training.compareAndSet(false, true)) {
+            return false;
+        }
+        try {
+            Entry[] entries;
+            mutex.lock();
+            try {
+                if (byPerson.size() < MIN_TRAINING_SIZE) {
+                    return false;
+                }
+                entries = byPerson.values(new Entry[byPerson.size()]);
+            } finally {
+                mutex.unlock();
+            }
+
+            int partitions = Math.min(MAX_PARTITIONS, (int) Math.sqrt(entries.length));
+            float[][] trained = kMeans(entries, partitions);
+            for (Entry entry : entries) {
+                entry.trained = nearest(trained, entry.vector);
+            }
+
+            mutex.lock();
+            try {
+                // Faces added or changed while training get placed against the new centroids
+                Entry[] current = byPerson.values(new Entry[byPerson.size()]);
+                int[] counts = new int[trained.length];
+                for (Entry entry : current) {
+                    entry.partition = entry.trained >= 0 ? entry.trained : nearest(trained, entry.vector);
+                    counts[entry.partition]++;
+                }
+                Entry[][] grouped = new Entry[trained.length][];
+                for (int i = 0; i < grouped.length; i++) {
+                    grouped[i] = new Entry[counts[i]];
+                    counts[i] = 0;
+                }
+                for (Entry entry : current) {
+                    grouped[entry.partition][counts[entry.partition]++] = entry;
+                }
+                Postings[] lists = new Postings[trained.length];
+                for (int i = 0; i < lists.length; i++) {
+                    lists[i] = new Postings(grouped[i]);
+                }
+                centroids = trained;
+                postings = lists;
+            } finally {
+                mutex.unlock();
+            }
+            Log.info("Face index trained: {} faces in {} partitions", entries.length, trained.length);
+            return true;
+        } finally {
+            training.set(false);
+        }
+    }
+
+    private float[][] kMeans(Entry[] entries, int partitions) {
+        int sampleSize = Math.min(entries.length, partitions * SAMPLES_PER_PARTITION);
+        float[][] sample = new float[sampleSize][];
+        // Partial Fisher-Yates over a copy, so the caller's order is left alone
+        Entry[] shuffled = entries.clone();
+        for (int i = 0; i < sampleSize; i++) {
+            int j = i + random.nextInt(shuffled.length - i);
+            Entry swap = shuffled[i];
+            shuffled[i] = shuffled[j];
+            shuffled[j] = swap;
+            sample[i] = shuffled[i].vector;
+        }
+
+        float[][] centers = new float[partitions][];
+        for (int c = 0; c < partitions; c++) {
+            centers[c] = sample[c].clone();
+        }
+        int[] assignment = new int[sampleSize];
+        for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+            for (int i = 0; i < sampleSize; i++) {
+                assignment[i] = nearest(centers, sample[i]);
+            }
+            float[][] sums = new float[partitions][sample[0].length];
+            int[] counts = new int[partitions];
+            for (int i = 0; i < sampleSize; i++) {
+                float[] sum = sums[assignment[i]];
+                for (int d = 0; d < sum.length; d++) {
+                    sum[d] += sample[i][d];
+                }
+                counts[assignment[i]]++;
+            }
+            for (int c = 0; c < partitions; c++) {
+                float[] center = counts[c] == 0 ? null : unit(sums[c]);
+                // An empty or degenerate cluster restarts from a random face
+                centers[c] = center != null ? center : sample[random.nextInt(sampleSize)].clone();
+            }
+        }
+        return centers;
+    }
+
+    // Must hold mutex
+    private void removeLocked(int personId) {
+        Entry entry = byPerson.remove(personId);
+        if (entry != null) {
+            postings[entry.partition].remove(entry);
+            entry.partition = -1;
+        }
+    }
+
+    private static int[] closestPartitions(float[][] centroids, float[] query, int nprobe) {
+        if (centroids.length == 0) {
+            return new int[]{0};
+        }
+        int n = Math.min(nprobe, centroids.length);
+        int[] best = new int[n];
+        float[] scores = new float[n];
+        int found = 0;
+        for (int c = 0; c < centroids.length; c++) {
+            float score = dot(query, centroids[c]);
+            if (found == n && score <= scores[n - 1]) continue;
+            int at = found < n ? found++ : n - 1;
+            while (at > 0 && scores[at - 1] < score) {
+                best[at] = best[at - 1];
+                scores[at] = scores[at - 1];
+                at--;
+            }
+            best[at] = c;
+            scores[at] = score;
+        }
+        return best;
+    }
+
+    private static int nearest(float[][] centers, float[] vector) {
+        int best = 0;
+        float bestScore = -Float.MAX_VALUE;
+        for (int c = 0; c < centers.length; c++) {
+            float score = dot(vector, centers[c]);
+            if (score > bestScore) {
+                bestScore = score;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    private static float dot(float[] a, float[] b) {
+        float dot = 0f;
+        for (int i = 0; i < a.length; i++) {
+            dot += a[i] * b[i];
+        }
+        return dot;
+    }
+
+    // A unit-length copy, or null for a missing or all-zero vector
+    private static float[] unit(float[] v) {
+        if (v == null) {
+            return null;
+        }
+        float norm = 0f;
+        for (float x : v) {
+            norm += x * x;
+        }
+        if (norm == 0f) {
+            return null;
+        }
+        float scale = (float) (1.0 / Math.sqrt(norm));
+        float[] unit = new float[v.length];
+        for (int i = 0; i < v.length; i++) {
+            unit[i] = v[i] * scale;
+        }
+        return unit;
+    }
+}
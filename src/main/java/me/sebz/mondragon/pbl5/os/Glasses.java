@@ -1,5 +1,6 @@
 package me.sebz.mondragon.pbl5.os;
 
+import java.nio.ByteBuffer;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class Glasses {
@@ -7,18 +8,38 @@ public class Glasses {
     private int id;
     private static AtomicInteger lastPhotoId = new AtomicInteger(0);
     private static AtomicInteger lastId = new AtomicInteger(0);
+    private static final PhotoBufferPool pool = new PhotoBufferPool(PhotoBufferPool.DEFAULT_FRAME_SIZE, 64);
 
     public Glasses() {
         id = lastId.incrementAndGet();
     }
 
     public int takePhoto() {
-        int photoId = lastPhotoId.incrementAndGet();
-        System.out.println("Glasses " + id + " took photo " + photoId);
+        int photoId = nextPhotoId();
+        Log.debug("Glasses {} took photo {}", id, photoId);
         return photoId;
     }
 
+    // The caller owns the returned photo and must release it (or hand it to NodeRedServer, which does)
+    public Photo capturePhoto() {
+        Photo photo = pool.acquire(takePhoto());
+        ByteBuffer frame = photo.getWritablePayload();
+        frame.putInt(photo.getId());
+        frame.putInt(id);
+        frame.putLong(System.nanoTime());
+        frame.clear();
+        return photo;
+    }
+
     public String speak(String message) {
         return "Glasses " + id + " says: " + message;
     }
+
+    static int nextPhotoId() {
+        return lastPhotoId.incrementAndGet();
+    }
+
+    static PhotoBufferPool getPool() {
+        return pool;
+    }
 }
@@ -1,19 +1,158 @@
 package me.sebz.mondragon.pbl5.os;
 
-import java.util.LinkedHashSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
 import org.mindrot.jbcrypt.BCrypt;
-import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class Group {
+
+    // Members whose centroid scores best get their individual templates compared
+    static final int CANDIDATES = 8;
+    // Above this a duplicate enrollment is the same photo sent again, not a new view of the face
+    static final float SAME_PHOTO_SIMILARITY = 0.999f;
+    // Below this a scan is about as cheap as a cache lookup
+    static final int CACHE_MIN_MEMBERS = 64;
+
+    // Immutable view of the members and their templates. Identify reads it without locking.
+    // A change only marks it stale; the next read rebuilds it once under mutex, so a run of
+    // changes with no read in between (a bulk enrollment, a batch of removals) costs one
+    // O(members) rebuild instead of one per change.
+    private static final class Snapshot {
+        final long version;
+        final Person[] members;
+        // Filled here and never written again, so concurrent gets need no lock
+        final IntObjectMap<Person> byId;
+        final float[][] centroids;
+        final float[] centroidNorms;
+        final float[][][] templates;
+        // False while every member has at most one template, whose centroid is the template
+        final boolean multiTemplate;
+
+        Snapshot(long version, Person[] members) {
+            this.version = version;
+            this.members = members;
+            byId = new IntObjectMap<>(members.length);
+            for (Person member : members) {
+                byId.putIfAbsent(member.getId(), member);
+            }
+            centroids = new float[members.length][];
+            centroidNorms = new float[members.length];
+            templates = new float[members.length][][];
+            boolean multi = false;
+            for (int m = 0; m < members.length; m++) {
+                Person.Face face = members[m].peekFace();
+                if (face == null) continue;
+                centroids[m] = face.centroid;
+                centroidNorms[m] = squaredNorm(face.centroid);
+                templates[m] = face.templates;
+                multi |= face.templates.length > 1;
+            }
+            multiTemplate = multi;
+        }
+    }
+
+    // The best centroid scores seen so far, highest first; equal scores keep member order
+    private static final class Candidates {
+        final int[] members;
+        final float[] scores;
+        int count;
+
+        Candidates(int capacity) {
+            members = new int[capacity];
+            scores = new float[capacity];
+        }
+
+        void offer(int member, float score) {
+            if (count == members.length && score <= scores[count - 1]) return;
+            int i = count < members.length ? count++ : count - 1;
+            while (i > 0 && scores[i - 1] < score) {
+                members[i] = members[i - 1];
+                scores[i] = scores[i - 1];
+                i--;
+            }
+            members[i] = member;
+            scores[i] = score;
+        }
+
+        // other must cover later members, so ties still go to the earlier one
+        Candidates merge(Candidates other) {
+            for (int i = 0; i < other.count; i++) {
+                offer(other.members[i], other.scores[i]);
+            }
+            return this;
+        }
+    }
+
+    // Splits a centroid scan into chunks; each keeps its own best candidates and the halves
+    // are merged on the way back up
+    private static final class ScanTask extends RecursiveTask<Candidates> {
+        private final Snapshot snapshot;
+        private final float[] embedding;
+        private final int from;
+        private final int to;
+        private final int keep;
+
+        ScanTask(Snapshot snapshot, float[] embedding, int from, int to, int keep) {
+            this.snapshot = snapshot;
+            this.embedding = embedding;
+            this.from = from;
+            this.to = to;
+            this.keep = keep;
+        }
+
+        @Override
+        protected Candidates compute() {
+            if (to - from <= SCAN_CHUNK) {
+                return scanRange(snapshot, embedding, from, to, keep);
+            }
+            int middle = (from + to) >>> 1;
+            ScanTask left = new ScanTask(snapshot, embedding, from, middle, keep);
+            left.fork();
+            Candidates right = new ScanTask(snapshot, embedding, middle, to, keep).compute();
+            return left.join().merge(right);
+        }
+    }
+
+    // Groups at least this large are scanned in parallel when the scan pool has a free worker
+    static final int PARALLEL_SCAN_THRESHOLD = 32768;
+    private static final int SCAN_CHUNK = 8192;
+    private static final ForkJoinPool scanPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors(), pool -> {
+        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        thread.setName("GroupScanThread-" + thread.getPoolIndex());
+        return thread;
+    }, null, false);
+    private static final Metrics.Counter parallelScans =
+            Metrics.counter("group_parallel_scans_total", "Large group scans split across the scan pool");
+    private static final Metrics.Counter rebuilds =
+            Metrics.counter("group_snapshot_rebuilds_total", "Member snapshots rebuilt after a change");
+    private static final Metrics.Counter scanBackoffs =
+            Metrics.counter("group_parallel_scan_backoffs_total", "Large group scans run on the caller because the scan pool was busy");
+
+    private static final Snapshot EMPTY = new Snapshot(0, new Person[0]);
+
     private final int id;
     private static final Lock staticMutex = new ReentrantLock();
     private static int lastId = 0;
     private final Lock mutex = new ReentrantLock();
-    private final Set<Person> members = new LinkedHashSet<>();
+    // Keyed by person id, in insertion order
+    private final IntObjectMap<Person> members = new IntObjectMap<>();
     private final AtomicReference<String> passwordHash = new AtomicReference<String>(null);
+    private volatile Snapshot snapshot = EMPTY;
+    // Written under mutex; while stale, snapshot is missing changes up to version
+    private volatile boolean stale;
+    private volatile long version;
+    private final IdentifyCache cache = new IdentifyCache();
+    private volatile boolean cacheEnabled = true;
+    // The cross-group index this group is part of, if any; guarded by mutex
+    private FaceIndex index;
 
     public Group() {
         staticMutex.lock();
@@ -25,18 +164,41 @@ public class Group {
     }
 
     public Person[] getMembers() {
+        return current().members.clone();
+    }
+
+    // Bumped on every membership or embedding change
+    public long getVersion() {
+        return version;
+    }
+
+    public void addMember(Person person) {
         mutex.lock();
         try {
-            return members.toArray(new Person[0]);
+            if (members.putIfAbsent(person.getId(), person) == null) {
+                person.setGroup(this);
+                if (index != null) index.put(id, person);
+                publish();
+            }
         } finally {
             mutex.unlock();
         }
     }
 
-    public void addMember(Person person) {
+    public void addMembers(Collection<Person> persons) {
         mutex.lock();
         try {
-            members.add(person);
+            boolean added = false;
+            for (Person person : persons) {
+                if (members.putIfAbsent(person.getId(), person) == null) {
+                    person.setGroup(this);
+                    if (index != null) index.put(id, person);
+                    added = true;
+                }
+            }
+            if (added) {
+                publish();
+            }
         } finally {
             mutex.unlock();
         }
@@ -45,7 +207,12 @@ public class Group {
     public void removeMember(Person person) {
         mutex.lock();
         try {
-            members.remove(person);
+            Person removed = members.remove(person.getId());
+            if (removed != null) {
+                removed.clearGroup(this);
+                if (index != null) index.remove(removed.getId());
+                publish();
+            }
         } finally {
             mutex.unlock();
         }
@@ -54,52 +221,348 @@ public class Group {
     public void removeMember(int personId) {
         mutex.lock();
         try {
-            members.removeIf(person -> personId == person.getId());
+            Person removed = members.remove(personId);
+            if (removed != null) {
+                removed.clearGroup(this);
+                if (index != null) index.remove(personId);
+                publish();
+            }
         } finally {
             mutex.unlock();
         }
     }
 
-    public int getId() {
-        return id;
+    // For measuring the scan itself
+    void setCacheEnabled(boolean enabled) {
+        cacheEnabled = enabled;
     }
 
-    public Person getMemberById(int personId) {
+    // Called by a member after its embedding changed
+    void memberChanged(Person person) {
         mutex.lock();
         try {
-            return members.stream()
-                    .filter(person -> person.getId() == personId)
-                    .findFirst()
-                    .orElse(null);
+            if (members.get(person.getId()) != person) {
+                return;
+            }
+            if (index != null) index.put(id, person);
+            publish();
         } finally {
             mutex.unlock();
         }
     }
 
+    // From now on every member change is mirrored into index
+    void attachIndex(FaceIndex index) {
+        mutex.lock();
+        try {
+            this.index = index;
+            for (Person person : current().members) {
+                index.put(id, person);
+            }
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    void detachIndex() {
+        mutex.lock();
+        try {
+            if (index != null) {
+                for (Person person : current().members) {
+                    index.remove(person.getId());
+                }
+                index = null;
+            }
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    // Must hold mutex
+    private void publish() {
+        version++;
+        stale = true;
+    }
+
+    // Readers see either the old or the new snapshot, never a partial one
+    private Snapshot current() {
+        if (!stale) {
+            return snapshot;
+        }
+        mutex.lock();
+        try {
+            if (stale) {
+                snapshot = new Snapshot(version, members.values(new Person[members.size()]));
+                stale = false;
+                rebuilds.increment();
+            }
+            return snapshot;
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public Person getMemberById(int personId) {
+        return current().byId.get(personId);
+    }
+
     public void setPassword(String password) {
+        PipelineEvents.PasswordHash event = new PipelineEvents.PasswordHash();
+        event.begin();
         passwordHash.set(BCrypt.hashpw(password, BCrypt.gensalt()));
+        event.end();
+        if (event.shouldCommit()) {
+            event.groupId = id;
+            event.commit();
+        }
     }
 
     public boolean checkPassword(String password) {
+        PipelineEvents.PasswordHash event = new PipelineEvents.PasswordHash();
+        event.begin();
         String hash = passwordHash.get();
-        return hash != null && BCrypt.checkpw(password, hash);
+        boolean matched = hash != null && BCrypt.checkpw(password, hash);
+        event.end();
+        if (event.shouldCommit()) {
+            event.groupId = id;
+            event.verification = true;
+            event.matched = matched;
+            event.commit();
+        }
+        return matched;
     }
 
+    // A person scores as their best template. Centroids are scanned first and only the
+    // templates of the CANDIDATES best centroids are compared, so extra templates do not
+    // multiply the scan. Larger groups first ask their IdentifyCache, which answers repeated
+    // frames of a face with what the scan would return (up to the template prefilter picking
+    // other candidates for the new frame).
     public Person getClosestMember(float[] embedding) {
-        Person[] snapshot = getMembers(); // already locks
-        Person best = null;
-        float bestScore = -Float.MAX_VALUE;
+        PipelineEvents.SimilarityScan event = new PipelineEvents.SimilarityScan();
+        event.begin();
+        Snapshot current = current();
+        boolean cacheable = cacheEnabled && current.members.length >= CACHE_MIN_MEMBERS;
+        if (cacheable) {
+            Person cached = cache.get(current.version, embedding);
+            if (cached != null) {
+                event.cacheHit = true;
+                commitScan(event, current.members.length, 1);
+                return cached;
+            }
+        }
+        long start = System.nanoTime();
+        Candidates ranked = rank(current, embedding);
+        Person best = ranked.count == 0 ? null : current.members[ranked.members[0]];
+        if (cacheable && best != null) {
+            float margin = ranked.count == 1 ? Float.POSITIVE_INFINITY : ranked.scores[0] - ranked.scores[1];
+            cache.put(current.version, embedding, best, margin, System.nanoTime() - start);
+        }
+        commitScan(event, current.members.length, 1);
+        return best;
+    }
 
-        for (Person person : snapshot) {
-            float[] fe = person.getFaceEmbedding();
+    // Adds person unless a member's best template already reaches threshold against one of
+    // theirs; that member is returned instead, and learns the new photo as a template unless
+    // it is the same photo again. Checking and adding under one lock keeps concurrent retries
+    // of the same enrollment from both getting in.
+    public Person addMemberUnlessDuplicate(Person person, float threshold) {
+        mutex.lock();
+        try {
+            Person existing = findDuplicate(person, threshold, List.of());
+            if (existing != null) {
+                return existing;
+            }
+            addMember(person);
+            return person;
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    // The batch form: result i is persons[i] or the member it duplicates, which may be an
+    // earlier entry of the same batch. New members join in a single update.
+    public Person[] addMembersUnlessDuplicate(List<Person> persons, float threshold) {
+        Person[] enrolled = new Person[persons.size()];
+        mutex.lock();
+        try {
+            List<Person> added = new ArrayList<>(persons.size());
+            for (int i = 0; i < enrolled.length; i++) {
+                Person person = persons.get(i);
+                Person existing = findDuplicate(person, threshold, added);
+                if (existing == null) {
+                    added.add(person);
+                    enrolled[i] = person;
+                } else {
+                    enrolled[i] = existing;
+                }
+            }
+            addMembers(added);
+            return enrolled;
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    // Must hold mutex, so the snapshot is current
+    private Person findDuplicate(Person person, float threshold, List<Person> pending) {
+        Person.Face face = person.peekFace();
+        if (face == null) {
+            return null;
+        }
+        Person match = null;
+        float matchScore = -Float.MAX_VALUE;
+        Snapshot current = current();
+        int best = closest(current, face.centroid);
+        if (best >= 0) {
+            match = current.members[best];
+            matchScore = templateScore(current.templates[best], face.templates);
+        }
+        for (Person other : pending) {
+            Person.Face otherFace = other.peekFace();
+            float score = otherFace == null ? -Float.MAX_VALUE : templateScore(otherFace.templates, face.templates);
+            if (score > matchScore) { matchScore = score; match = other; }
+        }
+        if (match == null || matchScore < threshold) {
+            return null;
+        }
+        if (matchScore < SAME_PHOTO_SIMILARITY) {
+            for (float[] template : face.templates) {
+                match.addFaceTemplate(template);
+            }
+        }
+        return match;
+    }
+
+    private float templateScore(float[][] templates, float[][] queries) {
+        float best = -Float.MAX_VALUE;
+        for (float[] template : templates) {
+            for (float[] query : queries) {
+                best = Math.max(best, cosineSimilarity(query, template));
+            }
+        }
+        return best;
+    }
+
+    private int closest(Snapshot current, float[] embedding) {
+        Candidates ranked = rank(current, embedding);
+        return ranked.count == 0 ? -1 : ranked.members[0];
+    }
+
+    // The two best members and their scores
+    private Candidates rank(Snapshot current, float[] embedding) {
+        int keep = current.multiTemplate ? CANDIDATES : 2;
+        int size = current.members.length;
+        Candidates candidates;
+        if (size < PARALLEL_SCAN_THRESHOLD) {
+            candidates = scanRange(current, embedding, 0, size, keep);
+        } else if (scanPool.getQueuedSubmissionCount() == 0 && scanPool.getActiveThreadCount() < scanPool.getParallelism()) {
+            parallelScans.increment();
+            candidates = scanPool.invoke(new ScanTask(current, embedding, 0, size, keep));
+        } else {
+            // Other scans already keep the pool busy; splitting this one would only queue it
+            scanBackoffs.increment();
+            candidates = scanRange(current, embedding, 0, size, keep);
+        }
+        if (current.multiTemplate) {
+            return rankTemplates(current, embedding, candidates, 2);
+        }
+        return candidates;
+    }
+
+    private static Candidates scanRange(Snapshot current, float[] embedding, int from, int to, int keep) {
+        Candidates candidates = new Candidates(keep);
+        for (int m = from; m < to; m++) {
+            float[] fe = current.centroids[m];
             if (fe == null) continue;
             float score = cosineSimilarity(embedding, fe);
-            if (score > bestScore) { bestScore = score; best = person; }
+            if (score > -Float.MAX_VALUE) candidates.offer(m, score);
+        }
+        return candidates;
+    }
+
+    // One pass over the members for several queries, using the norms kept in the snapshot.
+    // Same scoring and tie-breaking as getClosestMember.
+    public Person[] getClosestMembers(float[][] embeddings) {
+        PipelineEvents.SimilarityScan event = new PipelineEvents.SimilarityScan();
+        event.begin();
+        Snapshot current = current();
+        Person[] best = new Person[embeddings.length];
+        float[] bestScores = new float[embeddings.length];
+        float[] queryNorms = new float[embeddings.length];
+        Candidates[] candidates = current.multiTemplate ? new Candidates[embeddings.length] : null;
+        for (int q = 0; q < embeddings.length; q++) {
+            bestScores[q] = -Float.MAX_VALUE;
+            queryNorms[q] = embeddings[q] == null ? 0f : squaredNorm(embeddings[q]);
+            if (candidates != null) candidates[q] = new Candidates(CANDIDATES);
+        }
+
+        for (int m = 0; m < current.members.length; m++) {
+            float[] fe = current.centroids[m];
+            if (fe == null) continue;
+            float memberNorm = current.centroidNorms[m];
+            if (memberNorm == 0f) continue;
+            for (int q = 0; q < embeddings.length; q++) {
+                float[] query = embeddings[q];
+                if (query == null || query.length != fe.length || queryNorms[q] == 0f) continue;
+                float dot = 0f;
+                for (int i = 0; i < fe.length; i++) {
+                    dot += query[i] * fe[i];
+                }
+                float score = (float)(dot / (Math.sqrt(queryNorms[q]) * Math.sqrt(memberNorm)));
+                if (candidates != null) {
+                    candidates[q].offer(m, score);
+                } else if (score > bestScores[q]) { bestScores[q] = score; best[q] = current.members[m]; }
+            }
         }
+        if (candidates != null) {
+            for (int q = 0; q < embeddings.length; q++) {
+                Candidates ranked = rankTemplates(current, embeddings[q], candidates[q], 1);
+                best[q] = ranked.count == 0 ? null : current.members[ranked.members[0]];
+            }
+        }
+        commitScan(event, current.members.length, embeddings.length);
         return best;
     }
 
-    private float cosineSimilarity(float[] a, float[] b) {
+    // Ranks the candidates by their best template. They are offered in member order, so ties go
+    // to the member added first, as in a plain scan.
+    private static Candidates rankTemplates(Snapshot current, float[] embedding, Candidates candidates, int keep) {
+        int[] order = Arrays.copyOf(candidates.members, candidates.count);
+        Arrays.sort(order);
+        Candidates ranked = new Candidates(keep);
+        for (int m : order) {
+            float best = -Float.MAX_VALUE;
+            for (float[] template : current.templates[m]) {
+                best = Math.max(best, cosineSimilarity(embedding, template));
+            }
+            if (best > -Float.MAX_VALUE) ranked.offer(m, best);
+        }
+        return ranked;
+    }
+
+    private void commitScan(PipelineEvents.SimilarityScan event, int members, int queries) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.groupId = id;
+            event.members = members;
+            event.queries = queries;
+            event.commit();
+        }
+    }
+
+    private static float squaredNorm(float[] v) {
+        float norm = 0f;
+        for (float x : v) {
+            norm += x * x;
+        }
+        return norm;
+    }
+
+    private static float cosineSimilarity(float[] a, float[] b) {
         if (a == null || b == null) return -Float.MAX_VALUE;
         if (a.length != b.length) return -Float.MAX_VALUE;
 
@@ -0,0 +1,380 @@
+package me.sebz.mondragon.pbl5.os;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class HttpFrontend {
+
+    private interface Operation<T> {
+        CompletableFuture<T> call(Map<String, String> params, Photo photo);
+    }
+
+    private static final String JSON = "application/json";
+    private static final int READ_CHUNK = 16 * 1024;
+    private static final int MAX_QUEUED_EXCHANGES = 1000;
+    private static final int OVERFLOW_THREADS = 2;
+    private static final int MAX_SHED_EXCHANGES = 64;
+    private static final int FIND_FACE_MATCHES = 5;
+
+    private static final Metrics.Counter shed =
+            Metrics.counter("http_requests_shed_total", "HTTP requests answered 503 because the handler pool was full");
+    // Set on the overflow threads, whose only job is to turn requests away
+    private static final ThreadLocal<Boolean> shedding = ThreadLocal.withInitial(() -> false);
+    // Set while the dispatcher runs an exchange the overflow threads had no room for either
+    private static final ThreadLocal<Boolean> closing = ThreadLocal.withInitial(() -> false);
+
+    static {
+        // Headers and body go out as separate small writes; without TCP_NODELAY every
+        // keep-alive response waits on Nagle plus the client's delayed ACK (~40 ms)
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    private final HttpServer server;
+    private final ThreadPoolExecutor executor;
+    private final ThreadPoolExecutor overflow;
+    private final PhotoBufferPool pool = new PhotoBufferPool(PhotoBufferPool.DEFAULT_FRAME_SIZE, 64);
+    private final ThreadLocal<JsonWriter> writers = ThreadLocal.withInitial(JsonWriter::new);
+    private final ThreadLocal<ByteBuffer> frames =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(WireFormat.HEADER_SIZE + WireFormat.MAX_PAYLOAD));
+    private final ThreadLocal<byte[]> chunks = ThreadLocal.withInitial(() -> new byte[READ_CHUNK]);
+
+    public HttpFrontend(InetSocketAddress address, NodeRedServer nodeRedServer) throws IOException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        // Exchanges the pool has no room for go to the overflow threads, which answer them 503.
+        // Running them on the caller would stall the HttpServer dispatcher for every client.
+        // Past the overflow queue's bound the dispatcher only closes the connection: it never
+        // reads a request body, so a slow client cannot hold it up.
+        overflow = new ThreadPoolExecutor(OVERFLOW_THREADS, OVERFLOW_THREADS, 30L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(MAX_SHED_EXCHANGES), runnable -> {
+            Thread thread = new Thread(() -> {
+                shedding.set(true);
+                runnable.run();
+            }, "HttpOverflowThread");
+            thread.setDaemon(true);
+            return thread;
+        }, (task, pool) -> {
+            closing.set(true);
+            try {
+                task.run();
+            } finally {
+                closing.set(false);
+            }
+        });
+        executor = new ThreadPoolExecutor(threads, threads, 30L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(MAX_QUEUED_EXCHANGES), (task, pool) -> overflow.execute(task));
+        server = HttpServer.create(address, 128);
+        server.setExecutor(executor);
+
+        route("/signup", false, (params, photo) ->
+                nodeRedServer.signup(required(params, "password")),
+                (json, groupId) -> json.name("groupId").value(groupId));
+        route("/login", false, (params, photo) ->
+                nodeRedServer.login(intParam(params, "groupId"), required(params, "password"))
+                        .thenApply(HttpFrontend::requireSession),
+                (json, sessionId) -> json.name("sessionId").value(sessionId));
+        route("/deleteAccount", false, (params, photo) ->
+                nodeRedServer.deleteAccount(session(params)),
+                (json, ignored) -> json.name("deleted").value(true));
+        route("/addPerson", true, (params, photo) ->
+                nodeRedServer.addPerson(session(params), required(params, "info"), photo),
+                (json, personId) -> json.name("personId").value(personId));
+        route("/deletePerson", false, (params, photo) ->
+                nodeRedServer.deletePerson(session(params), intParam(params, "personId")),
+                (json, ignored) -> json.name("deleted").value(true));
+        route("/editPersonInfo", false, (params, photo) ->
+                nodeRedServer.editPersonInfo(session(params), intParam(params, "personId"), required(params, "info")),
+                (json, ignored) -> json.name("updated").value(true));
+        route("/editPersonFace", true, (params, photo) ->
+                nodeRedServer.editPersonFace(session(params), intParam(params, "personId"), photo),
+                (json, ignored) -> json.name("updated").value(true));
+        route("/addPersonFace", true, (params, photo) ->
+                nodeRedServer.addPersonFace(session(params), intParam(params, "personId"), photo),
+                (json, ignored) -> json.name("added").value(true));
+        route("/identify", true, (params, photo) ->
+                nodeRedServer.identify(session(params), photo),
+                (json, info) -> json.name("info").value(info));
+        route("/findFace", true, (params, photo) ->
+                nodeRedServer.findFace(session(params), photo, params.containsKey("k") ? intParam(params, "k") : FIND_FACE_MATCHES),
+                (json, matches) -> {
+                    json.name("matches").beginArray();
+                    for (FaceIndex.Match match : matches) {
+                        json.beginObject()
+                                .name("groupId").value(match.getGroupId())
+                                .name("personId").value(match.getPersonId())
+                                .name("score").value(match.getScore())
+                                .endObject();
+                    }
+                    json.endArray();
+                });
+        context("/identifyEmbedding", exchange -> handleIdentifyFrame(exchange, nodeRedServer));
+        context("/metrics", this::handleMetrics);
+        Metrics.monitor("http", executor);
+        Metrics.monitor("http_overflow", overflow);
+    }
+
+    public void start() {
+        server.start();
+        System.out.println("HTTP Server listening on " + getAddress());
+    }
+
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    public CompletableFuture<Void> stop() {
+        return CompletableFuture.runAsync(() -> {
+            server.stop(0);
+            executor.shutdown();
+            overflow.shutdown();
+            try {
+                if (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                    executor.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        });
+    }
+
+    private <T> void route(String path, boolean takesPhoto, Operation<T> operation, BiConsumer<JsonWriter, T> body) {
+        context(path, exchange -> handle(exchange, takesPhoto, operation, body));
+    }
+
+    private void context(String path, HttpHandler handler) {
+        server.createContext(path, exchange -> {
+            if (closing.get()) {
+                shed.increment();
+                exchange.close();
+                return;
+            }
+            if (shedding.get()) {
+                shed.increment();
+                drain(exchange);
+                sendError(exchange, 503, "server busy");
+                return;
+            }
+            handler.handle(exchange);
+        });
+    }
+
+    private <T> void handle(HttpExchange exchange, boolean takesPhoto, Operation<T> operation,
+                            BiConsumer<JsonWriter, T> body) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            drain(exchange);
+            sendError(exchange, 405, "method not allowed");
+            return;
+        }
+
+        Photo photo = null;
+        CompletableFuture<T> result;
+        try {
+            Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery(), new HashMap<>());
+            if (takesPhoto) {
+                photo = readPhoto(exchange.getRequestBody());
+            } else {
+                parseQuery(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8), params);
+            }
+            // Parameters are parsed before NodeRedServer is called, which then owns the photo
+            result = operation.call(params, photo);
+        } catch (IllegalArgumentException e) {
+            if (photo != null) {
+                photo.release();
+            }
+            drain(exchange);
+            sendError(exchange, 400, e.getMessage());
+            return;
+        }
+
+        result.whenCompleteAsync((value, ex) -> {
+            try {
+                if (ex != null) {
+                    Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+                    sendError(exchange, statusFor(cause), cause.getMessage());
+                } else {
+                    JsonWriter json = writers.get().reset().beginObject();
+                    body.accept(json, value);
+                    send(exchange, 200, json.endObject());
+                }
+            } catch (IOException | RuntimeException e) {
+                exchange.close();
+            }
+        }, executor);
+    }
+
+    // Binary variant of /identify: an IDENTIFY_REQUEST frame in, an IDENTIFY_RESULT frame out
+    private void handleIdentifyFrame(HttpExchange exchange, NodeRedServer nodeRedServer) throws IOException {
+        CompletableFuture<Person> result;
+        try {
+            // The frame is fully decoded before this thread can reuse its buffer for a response
+            ByteBuffer in = frames.get();
+            in.clear();
+            in.limit(exchange.getRequestBody().readNBytes(in.array(), 0, in.capacity()));
+            drain(exchange);
+            WireDecoder frame = new WireDecoder().wrap(in);
+            result = nodeRedServer.identifyEmbedding(frame.sessionId(), frame.readEmbedding());
+        } catch (IllegalArgumentException e) {
+            drain(exchange);
+            sendFrame(exchange, 400, out -> WireEncoder.encodeError(out, e.getMessage()));
+            return;
+        }
+        result.whenCompleteAsync((person, ex) -> {
+            try {
+                sendFrame(exchange, ex == null ? 200 : statusFor(ex.getCause() != null ? ex.getCause() : ex),
+                        out -> WireEncoder.encodeIdentifyResult(out, person, ex));
+            } catch (IOException | RuntimeException e) {
+                exchange.close();
+            }
+        }, executor);
+    }
+
+    // Prometheus scrape endpoint; the only route that answers GET
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        drain(exchange);
+        byte[] body = Metrics.scrape().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", Metrics.CONTENT_TYPE);
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private void sendFrame(HttpExchange exchange, int status, Consumer<ByteBuffer> encoder) throws IOException {
+        ByteBuffer out = frames.get();
+        out.clear();
+        try {
+            encoder.accept(out);
+        } catch (RuntimeException e) {
+            out.clear();
+            WireEncoder.encodeError(out, "could not encode reply: " + e.getMessage());
+            status = 500;
+        }
+        exchange.getResponseHeaders().set("Content-Type", WireFormat.CONTENT_TYPE);
+        exchange.sendResponseHeaders(status, out.position());
+        try (OutputStream body = exchange.getResponseBody()) {
+            body.write(out.array(), 0, out.position());
+        }
+    }
+
+    private static int statusFor(Throwable cause) {
+        if (cause instanceof IllegalArgumentException) {
+            return 400;
+        }
+        if (cause instanceof SecurityException) {
+            return 401;
+        }
+        if (cause instanceof OverloadException) {
+            return 503;
+        }
+        return 500;
+    }
+
+    // NodeRedServer.login reports bad credentials as a null session
+    private static Long requireSession(Long sessionId) {
+        if (sessionId == null) {
+            throw new SecurityException("invalid credentials");
+        }
+        return sessionId;
+    }
+
+    private void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        JsonWriter json = writers.get().reset().beginObject().name("error").value(message).endObject();
+        send(exchange, status, json);
+    }
+
+    private void send(HttpExchange exchange, int status, JsonWriter json) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", JSON);
+        exchange.sendResponseHeaders(status, json.size());
+        try (OutputStream out = exchange.getResponseBody()) {
+            json.writeTo(out);
+        }
+    }
+
+    private Photo readPhoto(InputStream in) throws IOException {
+        Photo photo = pool.acquire(Glasses.nextPhotoId());
+        ByteBuffer frame = photo.getWritablePayload();
+        byte[] chunk = chunks.get();
+        int n;
+        while ((n = in.read(chunk)) > 0) {
+            if (n > frame.remaining()) {
+                photo.release();
+                throw new IllegalArgumentException("photo larger than " + pool.getBufferSize() + " bytes");
+            }
+            frame.put(chunk, 0, n);
+        }
+        frame.flip();
+        if (!frame.hasRemaining()) {
+            photo.release();
+            throw new IllegalArgumentException("missing photo body");
+        }
+        return photo;
+    }
+
+    // Keep-alive only works once the request body has been fully consumed
+    private void drain(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        byte[] chunk = chunks.get();
+        while (in.read(chunk) > 0) {
+            // discard
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query, Map<String, String> params) {
+        if (query == null || query.isEmpty()) {
+            return params;
+        }
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq <= 0) {
+                continue;
+            }
+            params.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                    URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+
+    private static String required(Map<String, String> params, String name) {
+        String value = params.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("missing parameter " + name);
+        }
+        return value;
+    }
+
+    private static int intParam(Map<String, String> params, String name) {
+        try {
+            return Integer.parseInt(required(params, name));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid parameter " + name);
+        }
+    }
+
+    private static Long session(Map<String, String> params) {
+        try {
+            return Long.parseLong(required(params, "session"));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid parameter session");
+        }
+    }
+}
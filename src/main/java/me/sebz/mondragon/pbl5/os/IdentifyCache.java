@@ -0,0 +1,146 @@
+package me.sebz.mondragon.pbl5.os;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Recent identify answers of one group. Queries are bucketed by a SimHash signature (the
+// signs of their projections on SIGNATURE_BITS random hyperplanes), so consecutive frames of
+// the same face land on the same entry. An entry stores the unit query, the answer and its
+// margin over the runner-up. Moving a unit query by distance d changes every cosine score by
+// at most d, so as long as the new query is within margin / 2 of the cached one the runner-up
+// cannot overtake and the cached answer is the one a scan would return. Entries carry the
+// group version and are ignored once the group changes.
+public class IdentifyCache {
+
+    static final int SIGNATURE_BITS = 16;
+    private static final int SLOTS = 1024;
+    // Float rounding slack for the margin test
+    private static final float EPSILON = 1e-5f;
+
+    private static final Metrics.Counter hits =
+            Metrics.counter("identify_cache_hits_total", "Identify requests answered from the group's cache");
+    private static final Metrics.Counter misses =
+            Metrics.counter("identify_cache_misses_total", "Identify requests that had to scan the group");
+    private static final Metrics.Counter savedMicros =
+            Metrics.counter("identify_cache_saved_microseconds_total", "Scan time avoided by cache hits, estimated from recent scans");
+
+    static {
+        Metrics.gauge("identify_cache_hit_ratio_percent", "Share of cacheable identify requests answered from cache", () -> {
+            long h = hits.get();
+            long total = h + misses.get();
+            return total == 0 ? 0 : h * 100 / total;
+        });
+    }
+
+    private static final class Entry {
+        final long version;
+        final int signature;
+        final float[] query;
+        final Person person;
+        final float margin;
+
+        Entry(long version, int signature, float[] query, Person person, float margin) {
+            this.version = version;
+            this.signature = signature;
+            this.query = query;
+            this.person = person;
+            this.margin = margin;
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> slots = new AtomicReferenceArray<>(SLOTS);
+    private volatile float[][] planes = new float[0][];
+    // Moving average of the scans this cache stood in for
+    private volatile long scanNanos;
+
+    // The cached answer for a query, or null on a miss
+    public Person get(long version, float[] query) {
+        long start = System.nanoTime();
+        float norm = norm(query);
+        if (norm == 0f) {
+            return null;
+        }
+        int signature = signature(query);
+        Entry entry = slots.get(slot(signature));
+        if (entry == null || entry.version != version || entry.signature != signature
+                || entry.query.length != query.length) {
+            misses.increment();
+            return null;
+        }
+        float cosine = 0f;
+        for (int i = 0; i < query.length; i++) {
+            cosine += query[i] * entry.query[i];
+        }
+        cosine /= norm;
+        float distance = (float) Math.sqrt(Math.max(0f, 2f - 2f * cosine));
+        if (2f * distance + EPSILON >= entry.margin) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        savedMicros.add(Math.max(0, scanNanos - (System.nanoTime() - start)) / 1000);
+        return entry.person;
+    }
+
+    // margin is the answer's score minus the runner-up's
+    public void put(long version, float[] query, Person person, float margin, long scanNanos) {
+        this.scanNanos = this.scanNanos == 0 ? scanNanos : (this.scanNanos * 7 + scanNanos) / 8;
+        float norm = norm(query);
+        if (norm == 0f || person == null) {
+            return;
+        }
+        float[] unit = new float[query.length];
+        for (int i = 0; i < unit.length; i++) {
+            unit[i] = query[i] / norm;
+        }
+        int signature = signature(query);
+        slots.set(slot(signature), new Entry(version, signature, unit, person, margin));
+    }
+
+    int signature(float[] query) {
+        float[][] current = planes;
+        if (current.length == 0 || current[0].length != query.length) {
+            current = hyperplanes(query.length);
+            planes = current;
+        }
+        int signature = 0;
+        for (int b = 0; b < SIGNATURE_BITS; b++) {
+            float[] plane = current[b];
+            float dot = 0f;
+            for (int i = 0; i < query.length; i++) {
+                dot += query[i] * plane[i];
+            }
+            if (dot >= 0f) {
+                signature |= 1 << b;
+            }
+        }
+        return signature;
+    }
+
+    // Seeded by the length, so every cache draws the same planes for the same embeddings
+    private static float[][] hyperplanes(int length) {
+        Random random = new Random(length);
+        float[][] planes = new float[SIGNATURE_BITS][length];
+        for (float[] plane : planes) {
+            for (int i = 0; i < length; i++) {
+                plane[i] = (float) random.nextGaussian();
+            }
+        }
+        return planes;
+    }
+
+    private static int slot(int signature) {
+        return (signature * 0x9E3779B9) >>> 22;
+    }
+
+    private static float norm(float[] v) {
+        if (v == null) {
+            return 0f;
+        }
+        float norm = 0f;
+        for (float x : v) {
+            norm += x * x;
+        }
+        return (float) Math.sqrt(norm);
+    }
+}
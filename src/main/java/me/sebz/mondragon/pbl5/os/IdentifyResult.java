@@ -0,0 +1,46 @@
+package me.sebz.mondragon.pbl5.os;
+
+import java.util.concurrent.CompletionException;
+
+// Outcome of identifying one face: a matched member, no member to match, or a per-item error
+public class IdentifyResult {
+
+    private final int personId;
+    private final String info;
+    private final Throwable error;
+
+    private IdentifyResult(int personId, String info, Throwable error) {
+        this.personId = personId;
+        this.info = info;
+        this.error = error;
+    }
+
+    public static IdentifyResult match(Person person) {
+        return person == null ? noMatch() : new IdentifyResult(person.getId(), person.getInfo(), null);
+    }
+
+    public static IdentifyResult noMatch() {
+        return new IdentifyResult(-1, null, null);
+    }
+
+    public static IdentifyResult failed(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        return new IdentifyResult(-1, null, cause);
+    }
+
+    public boolean isMatch() {
+        return personId >= 0;
+    }
+
+    public int getPersonId() {
+        return personId;
+    }
+
+    public String getInfo() {
+        return info;
+    }
+
+    public Throwable getError() {
+        return error;
+    }
+}
@@ -0,0 +1,144 @@
+package me.sebz.mondragon.pbl5.os;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+// Continuous identify for one phone. Frames arrive through Flow and only one is identified at
+// a time; a frame that arrives while another is in flight replaces any frame already waiting,
+// which is released unprocessed. However fast a phone sends, it therefore holds at most one
+// frame in the pipeline and one waiting. Results are published to the stream's subscribers,
+// buffered up to RESULT_BUFFER per subscriber; when a subscriber falls further behind the
+// newest results are dropped rather than blocking the pipeline.
+public class IdentifyStream implements Flow.Processor<Photo, IdentifyResult> {
+
+    static final int RESULT_BUFFER = 16;
+
+    private static final Metrics.Counter processed =
+            Metrics.counter("stream_frames_total", "Frames received by identify streams", "outcome", "processed");
+    private static final Metrics.Counter conflated =
+            Metrics.counter("stream_frames_total", "Frames received by identify streams", "outcome", "conflated");
+    private static final Metrics.Counter droppedResults =
+            Metrics.counter("stream_results_dropped_total", "Identify stream results dropped for a slow subscriber");
+
+    private final Function<Photo, CompletableFuture<IdentifyResult>> identify;
+    private final SubmissionPublisher<IdentifyResult> results;
+    private final AtomicReference<Photo> waiting = new AtomicReference<>(null);
+    private final AtomicBoolean busy = new AtomicBoolean(false);
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private volatile Flow.Subscription subscription;
+    private volatile boolean completed;
+    private volatile Throwable failure;
+
+    // Subscribers are called on the common pool, never on the pipeline's own threads
+    IdentifyStream(Function<Photo, CompletableFuture<IdentifyResult>> identify) {
+        this.identify = identify;
+        this.results = new SubmissionPublisher<>(ForkJoinPool.commonPool(), RESULT_BUFFER);
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super IdentifyResult> subscriber) {
+        results.subscribe(subscriber);
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        if (this.subscription != null) {
+            subscription.cancel();
+            return;
+        }
+        this.subscription = subscription;
+        // Conflation keeps memory bounded whatever the rate, so demand need not be
+        subscription.request(Long.MAX_VALUE);
+    }
+
+    @Override
+    public void onNext(Photo photo) {
+        if (completed) {
+            photo.release();
+            return;
+        }
+        Photo stale = waiting.getAndSet(photo);
+        if (stale != null) {
+            stale.release();
+            conflated.increment();
+        }
+        drain();
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        failure = throwable;
+        onComplete();
+    }
+
+    @Override
+    public void onComplete() {
+        completed = true;
+        Photo stale = waiting.getAndSet(null);
+        if (stale != null) {
+            stale.release();
+            conflated.increment();
+        }
+        drain();
+    }
+
+    // Stops taking frames; results already in flight are still delivered
+    public void cancel() {
+        Flow.Subscription current = subscription;
+        if (current != null) {
+            current.cancel();
+        }
+        onComplete();
+    }
+
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    private void drain() {
+        while (busy.compareAndSet(false, true)) {
+            Photo photo = waiting.getAndSet(null);
+            if (photo != null) {
+                processed.increment();
+                identify(photo).whenComplete((result, ex) -> {
+                    publish(ex == null ? result : IdentifyResult.failed(ex));
+                    busy.set(false);
+                    drain();
+                });
+                return;
+            }
+            busy.set(false);
+            // A frame may have arrived after the check; otherwise this stream is idle
+            if (waiting.get() == null) {
+                if (completed && closed.compareAndSet(false, true)) {
+                    if (failure != null) {
+                        results.closeExceptionally(failure);
+                    } else {
+                        results.close();
+                    }
+                }
+                return;
+            }
+        }
+    }
+
+    private CompletableFuture<IdentifyResult> identify(Photo photo) {
+        try {
+            return identify.apply(photo);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private void publish(IdentifyResult result) {
+        results.offer(result, (subscriber, dropped) -> {
+            droppedResults.increment();
+            return false;
+        });
+    }
+}
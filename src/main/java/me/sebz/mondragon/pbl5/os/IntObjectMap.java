@@ -0,0 +1,178 @@
+package me.sebz.mondragon.pbl5.os;
+
+import java.util.Arrays;
+
+// Map from int keys to non-null values with no boxing. Entries are appended to dense key/value
+// arrays, which keeps insertion order for values(); a linear-probing table of dense indexes
+// finds them. Removal empties the dense entry and backward-shifts the probe chain, so lookups
+// never walk tombstones. Not thread-safe.
+public class IntObjectMap<V> {
+
+    private int[] keys;
+    private Object[] values;
+    // Dense index + 1 of the entry in each slot, 0 when the slot is empty
+    private int[] slots;
+    private int mask;
+    private int end;
+    private int size;
+
+    public IntObjectMap() {
+        this(8);
+    }
+
+    public IntObjectMap(int expectedSize) {
+        int capacity = Math.max(8, expectedSize);
+        keys = new int[capacity];
+        values = new Object[capacity];
+        slots = new int[tableSizeFor(capacity)];
+        mask = slots.length - 1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        int slot = find(key);
+        return slot < 0 ? null : (V) values[slots[slot] - 1];
+    }
+
+    public boolean containsKey(int key) {
+        return find(key) >= 0;
+    }
+
+    // Returns the value already mapped to key, or null after inserting value
+    @SuppressWarnings("unchecked")
+    public V putIfAbsent(int key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("null values are not supported");
+        }
+        int slot = find(key);
+        if (slot >= 0) {
+            return (V) values[slots[slot] - 1];
+        }
+        if (end == keys.length) {
+            if (size <= end / 2) {
+                compact();
+            } else {
+                keys = Arrays.copyOf(keys, keys.length * 2);
+                values = Arrays.copyOf(values, values.length * 2);
+            }
+        }
+        if ((size + 1) * 2 > slots.length) {
+            slots = new int[slots.length * 2];
+            mask = slots.length - 1;
+            rehash();
+        }
+        keys[end] = key;
+        values[end] = value;
+        end++;
+        size++;
+        slots[freeSlot(key)] = end;
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(int key) {
+        int slot = find(key);
+        if (slot < 0) {
+            return null;
+        }
+        int index = slots[slot] - 1;
+        V removed = (V) values[index];
+        values[index] = null;
+        size--;
+        deleteSlot(slot);
+        if (end > 16 && size < end / 4) {
+            compact();
+        }
+        return removed;
+    }
+
+    // Values in insertion order, like Collection.toArray
+    public V[] values(V[] array) {
+        V[] result = array.length >= size ? array : Arrays.copyOf(array, size);
+        int n = 0;
+        for (int i = 0; i < end; i++) {
+            if (values[i] != null) {
+                @SuppressWarnings("unchecked")
+                V value = (V) values[i];
+                result[n++] = value;
+            }
+        }
+        if (result.length > size) {
+            result[size] = null;
+        }
+        return result;
+    }
+
+    private int find(int key) {
+        for (int slot = hash(key); ; slot = (slot + 1) & mask) {
+            int entry = slots[slot];
+            if (entry == 0) {
+                return -1;
+            }
+            if (keys[entry - 1] == key) {
+                return slot;
+            }
+        }
+    }
+
+    private int freeSlot(int key) {
+        int slot = hash(key);
+        while (slots[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    // Pulls later entries of the probe chain back into the gap if their home slot allows it
+    private void deleteSlot(int gap) {
+        for (int slot = (gap + 1) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+            int home = hash(keys[slots[slot] - 1]);
+            if (((slot - home) & mask) >= ((slot - gap) & mask)) {
+                slots[gap] = slots[slot];
+                gap = slot;
+            }
+        }
+        slots[gap] = 0;
+    }
+
+    // Drops the emptied dense entries; their indexes shift, so the table is rebuilt
+    private void compact() {
+        int n = 0;
+        for (int i = 0; i < end; i++) {
+            if (values[i] != null) {
+                keys[n] = keys[i];
+                values[n] = values[i];
+                n++;
+            }
+        }
+        Arrays.fill(values, n, end, null);
+        end = n;
+        rehash();
+    }
+
+    private void rehash() {
+        Arrays.fill(slots, 0);
+        for (int i = 0; i < end; i++) {
+            if (values[i] != null) {
+                slots[freeSlot(keys[i])] = i + 1;
+            }
+        }
+    }
+
+    private int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private static int tableSizeFor(int capacity) {
+        return Integer.highestOneBit(capacity * 2 - 1) * 2;
+    }
+}
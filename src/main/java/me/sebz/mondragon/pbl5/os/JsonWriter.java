@@ -0,0 +1,276 @@
+package me.sebz.mondragon.pbl5.os;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Streaming JSON encoder writing UTF-8 straight into a reusable byte array.
+// Numbers and float arrays are formatted digit by digit, so encoding an
+// embedding does not create any intermediate String.
+public class JsonWriter {
+
+    private static final int FRACTION_DIGITS = 6;
+    private static final long FRACTION_SCALE = 1_000_000L;
+
+    private byte[] buffer;
+    private int size;
+    private boolean needsComma;
+
+    public JsonWriter() {
+        this(256);
+    }
+
+    public JsonWriter(int initialCapacity) {
+        buffer = new byte[initialCapacity];
+    }
+
+    public JsonWriter reset() {
+        size = 0;
+        needsComma = false;
+        return this;
+    }
+
+    public JsonWriter beginObject() {
+        separator();
+        append('{');
+        needsComma = false;
+        return this;
+    }
+
+    public JsonWriter endObject() {
+        append('}');
+        needsComma = true;
+        return this;
+    }
+
+    public JsonWriter beginArray() {
+        separator();
+        append('[');
+        needsComma = false;
+        return this;
+    }
+
+    public JsonWriter endArray() {
+        append(']');
+        needsComma = true;
+        return this;
+    }
+
+    public JsonWriter name(String name) {
+        separator();
+        string(name);
+        append(':');
+        needsComma = false;
+        return this;
+    }
+
+    public JsonWriter value(String value) {
+        separator();
+        if (value == null) {
+            literal("null");
+        } else {
+            string(value);
+        }
+        needsComma = true;
+        return this;
+    }
+
+    public JsonWriter value(long value) {
+        separator();
+        appendLong(value);
+        needsComma = true;
+        return this;
+    }
+
+    public JsonWriter value(boolean value) {
+        separator();
+        literal(value ? "true" : "false");
+        needsComma = true;
+        return this;
+    }
+
+    public JsonWriter value(float value) {
+        separator();
+        appendFloat(value);
+        needsComma = true;
+        return this;
+    }
+
+    public JsonWriter value(float[] values) {
+        if (values == null) {
+            return nullValue();
+        }
+        beginArray();
+        ensure(values.length * 10 + 2);
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                append(',');
+            }
+            appendFloat(values[i]);
+        }
+        return endArray();
+    }
+
+    public JsonWriter nullValue() {
+        separator();
+        literal("null");
+        needsComma = true;
+        return this;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buffer, 0, size);
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, size);
+    }
+
+    @Override
+    public String toString() {
+        return new String(buffer, 0, size, StandardCharsets.UTF_8);
+    }
+
+    private void separator() {
+        if (needsComma) {
+            append(',');
+        }
+    }
+
+    private void literal(String text) {
+        ensure(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            buffer[size++] = (byte) text.charAt(i);
+        }
+    }
+
+    private void string(String value) {
+        ensure(value.length() + 2);
+        buffer[size++] = '"';
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                append('\\');
+                append(c);
+            } else if (c < 0x20) {
+                appendControl(c);
+            } else if (c < 0x80) {
+                append(c);
+            } else {
+                appendUtf8(value, i);
+                if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                        && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    i++;
+                }
+            }
+        }
+        append('"');
+    }
+
+    private void appendControl(char c) {
+        switch (c) {
+            case '\n': append('\\'); append('n'); break;
+            case '\r': append('\\'); append('r'); break;
+            case '\t': append('\\'); append('t'); break;
+            default:
+                literal("\\u00");
+                append(Character.forDigit(c >> 4, 16));
+                append(Character.forDigit(c & 0xF, 16));
+        }
+    }
+
+    private void appendUtf8(String value, int index) {
+        int cp = value.codePointAt(index);
+        ensure(4);
+        if (cp < 0x800) {
+            buffer[size++] = (byte) (0xC0 | (cp >> 6));
+            buffer[size++] = (byte) (0x80 | (cp & 0x3F));
+        } else if (cp < 0x10000) {
+            buffer[size++] = (byte) (0xE0 | (cp >> 12));
+            buffer[size++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+            buffer[size++] = (byte) (0x80 | (cp & 0x3F));
+        } else {
+            buffer[size++] = (byte) (0xF0 | (cp >> 18));
+            buffer[size++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+            buffer[size++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+            buffer[size++] = (byte) (0x80 | (cp & 0x3F));
+        }
+    }
+
+    private void appendLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            literal("-9223372036854775808");
+            return;
+        }
+        ensure(20);
+        if (value < 0) {
+            buffer[size++] = '-';
+            value = -value;
+        }
+        int start = size;
+        do {
+            buffer[size++] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value != 0);
+        reverse(start, size - 1);
+    }
+
+    // Fixed six-decimal rendering; values outside the range that can hold are rare and use Float.toString
+    private void appendFloat(float value) {
+        if (Float.isNaN(value) || Float.isInfinite(value)) {
+            literal("null");
+            return;
+        }
+        float magnitude = Math.abs(value);
+        if (magnitude >= 1e9f || (magnitude != 0f && magnitude < 1e-4f)) {
+            literal(Float.toString(value));
+            return;
+        }
+        long scaled = Math.round((double) magnitude * FRACTION_SCALE);
+        if (value < 0 && scaled != 0) {
+            append('-');
+        }
+        appendLong(scaled / FRACTION_SCALE);
+        long fraction = scaled % FRACTION_SCALE;
+        if (fraction == 0) {
+            return;
+        }
+        int digits = FRACTION_DIGITS;
+        while (fraction % 10 == 0) {
+            fraction /= 10;
+            digits--;
+        }
+        ensure(digits + 1);
+        buffer[size++] = '.';
+        int end = size + digits;
+        for (int i = end - 1; i >= size; i--) {
+            buffer[i] = (byte) ('0' + (fraction % 10));
+            fraction /= 10;
+        }
+        size = end;
+    }
+
+    private void reverse(int from, int to) {
+        while (from < to) {
+            byte tmp = buffer[from];
+            buffer[from++] = buffer[to];
+            buffer[to--] = tmp;
+        }
+    }
+
+    private void append(char c) {
+        ensure(1);
+        buffer[size++] = (byte) c;
+    }
+
+    private void ensure(int extra) {
+        if (size + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package me.sebz.mondragon.pbl5.os;
+
+import java.security.SecureRandom;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+// Open-loop load: requests are issued on a fixed schedule whether or not earlier ones have
+// completed, and latency is measured from when a request should have been sent. A stalled
+// server therefore shows up as queueing delay instead of as fewer, faster samples.
+public class LoadGenerator {
+
+    public enum Operation {
+        IDENTIFY, ADD_PERSON
+    }
+
+    private static final long HIGHEST_TRACKABLE_MICROS = TimeUnit.HOURS.toMicros(1);
+    private static final int SIGNIFICANT_DIGITS = 3;
+
+    private static class OperationStats {
+        final Recorder recorder = new Recorder(HIGHEST_TRACKABLE_MICROS, SIGNIFICANT_DIGITS);
+        final Histogram total = new Histogram(HIGHEST_TRACKABLE_MICROS, SIGNIFICANT_DIGITS);
+        final Histogram sinceReport = new Histogram(HIGHEST_TRACKABLE_MICROS, SIGNIFICANT_DIGITS);
+        final LongAdder errors = new LongAdder();
+        Histogram interval;
+    }
+
+    private final NodeRedServer server;
+    private final double ratePerSecond;
+    private final double identifyRatio;
+    private final long reportIntervalMs;
+    private final Random random = new SecureRandom();
+    private final Map<Operation, OperationStats> stats = new EnumMap<>(Operation.class);
+    private final Lock mutex = new ReentrantLock();
+    private final LongAdder inFlight = new LongAdder();
+    private final ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "LoadReporterThread");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile boolean running;
+    private volatile Thread dispatcher;
+    private long startNanos;
+    private long lastReportNanos;
+    private CompletableFuture<String> stopped;
+
+    public LoadGenerator(NodeRedServer server, double ratePerSecond, double identifyRatio, long reportIntervalMs) {
+        // Written so that NaN fails both checks
+        if (!(ratePerSecond > 0) || Double.isInfinite(ratePerSecond)) {
+            throw new IllegalArgumentException("rate must be positive and finite");
+        }
+        if (!(identifyRatio >= 0 && identifyRatio <= 1)) {
+            throw new IllegalArgumentException("identify ratio must be between 0 and 1");
+        }
+        this.server = server;
+        this.ratePerSecond = ratePerSecond;
+        this.identifyRatio = identifyRatio;
+        this.reportIntervalMs = reportIntervalMs;
+        for (Operation operation : Operation.values()) {
+            stats.put(operation, new OperationStats());
+        }
+    }
+
+    // Creates a group of its own to run against, then starts issuing requests
+    public CompletableFuture<Void> start() {
+        running = true;
+        String password = Main.generatePassword(20);
+        return server.signup(password).thenCompose(groupId -> {
+            return server.login(groupId, password);
+        }).thenAccept(sessionId -> {
+            if (sessionId == null) {
+                throw new IllegalStateException("load generator could not log in");
+            }
+            mutex.lock();
+            try {
+                startNanos = System.nanoTime();
+                lastReportNanos = startNanos;
+            } finally {
+                mutex.unlock();
+            }
+            Thread thread = new Thread(() -> dispatch(sessionId), "LoadGeneratorThread");
+            thread.setDaemon(true);
+            dispatcher = thread;
+            if (running) {
+                thread.start();
+                reporter.scheduleAtFixedRate(this::printInterval, reportIntervalMs, reportIntervalMs, TimeUnit.MILLISECONDS);
+                Log.info("Load generator started: {} req/s, identify ratio {}", ratePerSecond, identifyRatio);
+            }
+        });
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    // Stops issuing requests; the returned report covers everything that completed so far.
+    // Later calls get the same report.
+    public CompletableFuture<String> stop() {
+        running = false;
+        mutex.lock();
+        try {
+            if (stopped == null) {
+                stopped = stopReporting();
+            }
+            return stopped;
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    private CompletableFuture<String> stopReporting() {
+        return CompletableFuture.supplyAsync(() -> {
+            Thread thread = dispatcher;
+            if (thread != null && thread.isAlive()) {
+                thread.interrupt();
+                try {
+                    thread.join(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            String report = report();
+            Log.info("Load generator stopped: {}", report);
+            return report;
+        }, reporter).whenComplete((report, ex) -> reporter.shutdown());
+    }
+
+    public String report() {
+        mutex.lock();
+        try {
+            roll();
+            StringBuilder line = new StringBuilder();
+            double seconds = Math.max(1e-9, (System.nanoTime() - startNanos) / 1e9);
+            for (Operation operation : Operation.values()) {
+                OperationStats s = stats.get(operation);
+                append(line, operation, s.total, s.errors.sum(), seconds);
+            }
+            line.append("in-flight=").append(inFlight.sum());
+            return line.toString();
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    // Cumulative latencies in microseconds, measured from the intended start time
+    public Histogram getHistogram(Operation operation) {
+        mutex.lock();
+        try {
+            roll();
+            return stats.get(operation).total.copy();
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    public long getErrorCount(Operation operation) {
+        return stats.get(operation).errors.sum();
+    }
+
+    private void dispatch(Long sessionId) {
+        long intervalNanos = (long) (1_000_000_000L / ratePerSecond);
+        long start = System.nanoTime();
+        for (long i = 0; running; i++) {
+            long intendedStart = start + i * intervalNanos;
+            long wait;
+            while (running && (wait = intendedStart - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            if (!running) {
+                break;
+            }
+            issue(random.nextDouble() < identifyRatio ? Operation.IDENTIFY : Operation.ADD_PERSON, sessionId, intendedStart);
+        }
+    }
+
+    private void issue(Operation operation, Long sessionId, long intendedStart) {
+        inFlight.increment();
+        CompletableFuture<?> request;
+        try {
+            if (operation == Operation.IDENTIFY) {
+                request = server.identify(sessionId, Glasses.nextPhotoId());
+            } else {
+                request = server.addPerson(sessionId, Main.generateRandomName(), Glasses.nextPhotoId());
+            }
+        } catch (RuntimeException e) {
+            request = CompletableFuture.failedFuture(e);
+        }
+        request.whenComplete((result, ex) -> {
+            OperationStats s = stats.get(operation);
+            long micros = (System.nanoTime() - intendedStart) / 1000;
+            s.recorder.recordValue(Math.min(Math.max(micros, 0), HIGHEST_TRACKABLE_MICROS));
+            if (ex != null) {
+                s.errors.increment();
+            }
+            inFlight.decrement();
+        });
+    }
+
+    private void printInterval() {
+        mutex.lock();
+        try {
+            roll();
+            long now = System.nanoTime();
+            double seconds = Math.max(1e-9, (now - lastReportNanos) / 1e9);
+            lastReportNanos = now;
+            StringBuilder line = new StringBuilder("Load generator interval: ");
+            for (Operation operation : Operation.values()) {
+                OperationStats s = stats.get(operation);
+                append(line, operation, s.sinceReport, -1, seconds);
+                s.sinceReport.reset();
+            }
+            line.append("in-flight=").append(inFlight.sum());
+            Log.info("{}", line);
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    // Moves what the recorders collected since the last call into the accumulated histograms
+    private void roll() {
+        for (OperationStats s : stats.values()) {
+            s.interval = s.recorder.getIntervalHistogram(s.interval);
+            s.total.add(s.interval);
+            s.sinceReport.add(s.interval);
+        }
+    }
+
+    private static void append(StringBuilder line, Operation operation, Histogram histogram, long errors, double seconds) {
+        line.append(operation.name().toLowerCase())
+            .append(": n=").append(histogram.getTotalCount())
+            .append(String.format(Locale.ROOT, " %.1f/s", histogram.getTotalCount() / seconds))
+            .append(" p50=").append(millis(histogram.getValueAtPercentile(50)))
+            .append(" p99=").append(millis(histogram.getValueAtPercentile(99)))
+            .append(" p99.9=").append(millis(histogram.getValueAtPercentile(99.9)))
+            .append(" max=").append(millis(histogram.getMaxValue()));
+        if (errors >= 0) {
+            line.append(" errors=").append(errors);
+        }
+        line.append("; ");
+    }
+
+    private static String millis(long micros) {
+        return String.format(Locale.ROOT, "%.1fms", micros / 1000.0);
+    }
+}
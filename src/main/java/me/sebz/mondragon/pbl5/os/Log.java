@@ -0,0 +1,289 @@
+package me.sebz.mondragon.pbl5.os;
+
+import java.io.PrintStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Asynchronous logger for the request paths. Callers only claim a slot in a bounded
+// ring buffer and store the pattern and its arguments. One writer thread formats the
+// "{}" placeholders and prints whole batches. When the buffer is full the message is
+// dropped and counted, so logging never blocks a request.
+//
+// The level comes from -Dgaraitu.log.level (DEBUG, INFO, WARN, ERROR, OFF; default INFO).
+// WARN and ERROR go to System.err, everything else to System.out.
+public final class Log {
+
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR, OFF
+    }
+
+    private static final int CAPACITY = 1 << 13;
+    private static final int MASK = CAPACITY - 1;
+    private static final int MAX_BATCH = 256;
+    private static final Object[] NO_ARGS = new Object[0];
+
+    private static final class Entry {
+        Level level;
+        String pattern;
+        Object arg0;
+        Object arg1;
+        Object arg2;
+        Object[] args;
+        int argCount;
+    }
+
+    // Bounded MPSC queue (Vyukov): a slot whose sequence equals the producer's position is
+    // free, one past it holds a message, and the consumer hands it back a lap later
+    private static final Entry[] entries = new Entry[CAPACITY];
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private static final AtomicLong tail = new AtomicLong();
+    private static volatile long head;
+    private static final LongAdder dropped = new LongAdder();
+    private static volatile boolean writerParked;
+    // Threads parked in flush, woken each time the writer moves head
+    private static final Queue<Thread> flushers = new ConcurrentLinkedQueue<>();
+    private static volatile Level level = parseLevel(System.getProperty("garaitu.log.level"));
+    private static final Thread writer;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            entries[i] = new Entry();
+            sequences.set(i, i);
+        }
+        writer = new Thread(Log::drainLoop, "LogWriterThread");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private Log() {
+    }
+
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    public static Level getLevel() {
+        return level;
+    }
+
+    public static boolean isEnabled(Level messageLevel) {
+        return messageLevel.compareTo(level) >= 0 && messageLevel != Level.OFF;
+    }
+
+    public static long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    public static void debug(String pattern) {
+        log(Level.DEBUG, pattern, 0, null, null, null, null);
+    }
+
+    public static void debug(String pattern, Object arg0) {
+        log(Level.DEBUG, pattern, 1, arg0, null, null, null);
+    }
+
+    public static void debug(String pattern, Object arg0, Object arg1) {
+        log(Level.DEBUG, pattern, 2, arg0, arg1, null, null);
+    }
+
+    public static void info(String pattern) {
+        log(Level.INFO, pattern, 0, null, null, null, null);
+    }
+
+    public static void info(String pattern, Object arg0) {
+        log(Level.INFO, pattern, 1, arg0, null, null, null);
+    }
+
+    public static void info(String pattern, Object arg0, Object arg1) {
+        log(Level.INFO, pattern, 2, arg0, arg1, null, null);
+    }
+
+    public static void info(String pattern, Object arg0, Object arg1, Object arg2) {
+        log(Level.INFO, pattern, 3, arg0, arg1, arg2, null);
+    }
+
+    public static void info(String pattern, Object... args) {
+        log(Level.INFO, pattern, args.length, null, null, null, args);
+    }
+
+    public static void warn(String pattern, Object arg0) {
+        log(Level.WARN, pattern, 1, arg0, null, null, null);
+    }
+
+    public static void warn(String pattern, Object arg0, Object arg1) {
+        log(Level.WARN, pattern, 2, arg0, arg1, null, null);
+    }
+
+    public static void error(String pattern, Object arg0) {
+        log(Level.ERROR, pattern, 1, arg0, null, null, null);
+    }
+
+    public static void error(String pattern, Object arg0, Object arg1) {
+        log(Level.ERROR, pattern, 2, arg0, arg1, null, null);
+    }
+
+    // Waits (up to the timeout) until everything logged before the call has been written
+    public static boolean flush(long timeoutMs) {
+        long target = tail.get();
+        long deadline = System.nanoTime() + timeoutMs * 1_000_000L;
+        Thread self = Thread.currentThread();
+        // Registered before head is read, so the writer either sees us or we see its progress
+        flushers.add(self);
+        try {
+            LockSupport.unpark(writer);
+            while (head < target) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                LockSupport.parkNanos(remaining);
+            }
+            return true;
+        } finally {
+            flushers.remove(self);
+        }
+    }
+
+    static String format(String pattern, int argCount, Object arg0, Object arg1, Object arg2, Object[] args) {
+        if (argCount == 0) {
+            return pattern;
+        }
+        StringBuilder out = new StringBuilder(pattern.length() + 16 * argCount);
+        appendFormatted(out, pattern, argCount, arg0, arg1, arg2, args == null ? NO_ARGS : args);
+        return out.toString();
+    }
+
+    private static void log(Level messageLevel, String pattern, int argCount,
+                            Object arg0, Object arg1, Object arg2, Object[] args) {
+        if (!isEnabled(messageLevel)) {
+            return;
+        }
+        long position = tail.get();
+        while (true) {
+            int index = (int) (position & MASK);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                dropped.increment();
+                return;
+            } else {
+                position = tail.get();
+            }
+        }
+        int index = (int) (position & MASK);
+        Entry entry = entries[index];
+        entry.level = messageLevel;
+        entry.pattern = pattern;
+        entry.argCount = argCount;
+        entry.arg0 = arg0;
+        entry.arg1 = arg1;
+        entry.arg2 = arg2;
+        entry.args = args == null ? NO_ARGS : args;
+        sequences.lazySet(index, position + 1);
+        if (writerParked) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private static void drainLoop() {
+        StringBuilder out = new StringBuilder(16 * 1024);
+        StringBuilder err = new StringBuilder(1024);
+        long reportedDrops = 0;
+        while (true) {
+            long position = head;
+            int count = 0;
+            while (count < MAX_BATCH) {
+                int index = (int) (position & MASK);
+                if (sequences.get(index) != position + 1) {
+                    break;
+                }
+                Entry entry = entries[index];
+                StringBuilder target = entry.level.compareTo(Level.WARN) >= 0 ? err : out;
+                int mark = target.length();
+                try {
+                    appendFormatted(target, entry.pattern, entry.argCount, entry.arg0, entry.arg1, entry.arg2, entry.args);
+                } catch (RuntimeException e) {
+                    // An argument's toString threw; the message is lost but the writer carries on
+                    target.setLength(mark);
+                    target.append("[unformattable log message \"").append(entry.pattern)
+                            .append("\": ").append(e.getClass().getName()).append(']');
+                }
+                target.append('\n');
+                // Let the arguments be collected before the slot is reused
+                entry.pattern = null;
+                entry.arg0 = entry.arg1 = entry.arg2 = null;
+                entry.args = null;
+                sequences.lazySet(index, position + CAPACITY);
+                position++;
+                count++;
+            }
+            long drops = dropped.sum();
+            if (drops != reportedDrops) {
+                err.append("Log buffer full, dropped ").append(drops - reportedDrops).append(" messages\n");
+                reportedDrops = drops;
+            }
+            write(System.out, out);
+            write(System.err, err);
+            head = position;
+            if (!flushers.isEmpty()) {
+                for (Thread flusher : flushers) {
+                    LockSupport.unpark(flusher);
+                }
+            }
+            if (count == 0) {
+                writerParked = true;
+                if (sequences.get((int) (position & MASK)) != position + 1) {
+                    LockSupport.parkNanos(100_000_000L);
+                }
+                writerParked = false;
+            }
+        }
+    }
+
+    private static void write(PrintStream stream, StringBuilder text) {
+        if (text.length() > 0) {
+            stream.print(text);
+            stream.flush();
+            text.setLength(0);
+        }
+    }
+
+    private static void appendFormatted(StringBuilder out, String pattern, int argCount,
+                                        Object arg0, Object arg1, Object arg2, Object[] args) {
+        int start = 0;
+        for (int arg = 0; arg < argCount; arg++) {
+            int at = pattern.indexOf("{}", start);
+            if (at < 0) {
+                break;
+            }
+            out.append(pattern, start, at);
+            Object value = args.length > 0 ? args[arg] : arg == 0 ? arg0 : arg == 1 ? arg1 : arg2;
+            if (value instanceof Throwable t) {
+                out.append(t.getMessage());
+            } else {
+                out.append(value);
+            }
+            start = at + 2;
+        }
+        out.append(pattern, start, pattern.length());
+    }
+
+    private static Level parseLevel(String name) {
+        if (name == null) {
+            return Level.INFO;
+        }
+        try {
+            return Level.valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return Level.INFO;
+        }
+    }
+}
@@ -1,47 +1,59 @@
 package me.sebz.mondragon.pbl5.os;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.security.SecureRandom;
-import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.Executor;
-import java.util.concurrent.ForkJoinPool;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.function.Supplier;
 
 public class Main implements Runnable {
 
     private final NodeRedServer nodeRedServer;
     private final List<Phone> phones;
     private final PhoneManager phoneManager;
+    private final ControlServer controlServer;
+    private final InetSocketAddress httpAddress;
+    private volatile HttpFrontend httpFrontend;
+    private volatile LoadGenerator loadGenerator;
     private static final Random random = new SecureRandom();
+    // SIMULATE covers at most this many phones times simulated seconds, about ten seconds of work
+    static final long MAX_SIMULATED_PHONE_SECONDS = 100_000_000L;
     private final Lock mutex = new ReentrantLock();
-    private final String ip;
-    private final int port;
+    private final AtomicBoolean simulating = new AtomicBoolean(false);
 
     public Main() {
         this("0.0.0.0", 8888);
     }
 
     public Main(String ip, int port) {
-        this.ip = ip;
-        this.port = port;
         System.out.println("Starting servers...");
         nodeRedServer = new NodeRedServer();
         phones = new ArrayList<>();
         phoneManager = new PhoneManager(phones, mutex, nodeRedServer);
+        Metrics.gauge("phones_active", "Simulated phones currently running", phoneManager::getPhoneCount);
+        controlServer = new ControlServer(new InetSocketAddress(ip, port), new ControlServer.CommandHandler() {
+            @Override
+            public String handle(String command) {
+                return handleCommand(command);
+            }
+
+            @Override
+            public CompletableFuture<String> handleAsync(String command) {
+                return handleCommandAsync(command);
+            }
+
+            @Override
+            public CompletableFuture<ControlServer.Reply> handleFrame(WireDecoder frame) {
+                return Main.this.handleFrame(frame);
+            }
+        });
+        httpAddress = new InetSocketAddress(ip, port + 1);
     }
 
     public static String generatePassword(int length) {
@@ -54,7 +66,16 @@ public class Main implements Runnable {
     public void run() {
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             System.out.println("Shutting down servers...");
+            controlServer.stop();
+            LoadGenerator generator = loadGenerator;
+            if (generator != null && generator.isRunning()) {
+                generator.stop().join();
+            }
+            if (httpFrontend != null) {
+                httpFrontend.stop().join();
+            }
             nodeRedServer.shutdown().join();
+            Log.flush(1000);
             System.out.println("Shutdown complete.");
         }));
 
@@ -62,72 +83,194 @@ public class Main implements Runnable {
         manager.setDaemon(true);
         manager.start();
 
-        Thread tcpServer = new Thread(this::startTcpServer);
+        Thread tcpServer = new Thread(controlServer, "ControlServerThread");
         tcpServer.start();
+
+        try {
+            httpFrontend = new HttpFrontend(httpAddress, nodeRedServer);
+            httpFrontend.start();
+        } catch (IOException e) {
+            System.err.println("Could not listen on " + httpAddress.getHostString() + ":" + httpAddress.getPort());
+        }
+    }
+
+    // Long-running commands complete later, off the control server's selector thread
+    CompletableFuture<String> handleCommandAsync(String inputLine) {
+        String[] parts = inputLine.trim().split("\\s+");
+        String command = parts[0].toUpperCase();
+        if ("SIMULATE".equals(command)) {
+            return simulate(parts);
+        }
+        if ("ADD_PHONE".equals(command)) {
+            // Replies once the phones are counted and logged in
+            return addPhones(parts).thenApply(ignored -> "PHONE(S)_ADDED");
+        }
+        return CompletableFuture.completedFuture(handleCommand(inputLine));
     }
 
-    private void startTcpServer() {
-        try (ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getByName(ip))) {
-            System.out.println("TCP Server listening on " + ip + ":" + port);
-            while (!Thread.currentThread().isInterrupted()) {
+    String handleCommand(String inputLine) {
+        String[] parts = inputLine.trim().split("\\s+");
+        String command = parts[0].toUpperCase();
+
+        if ("ADD_PHONE".equals(command)) {
+            addPhones(parts);
+            return "PHONE(S)_ADDED";
+        } else if ("REMOVE_PHONE".equals(command)) {
+            int amount = 1;
+            if (parts.length > 1) {
                 try {
-                    Socket clientSocket = serverSocket.accept();
-                    // Handle client in a new thread to avoid blocking the accept loop
-                    new Thread(() -> handleClient(clientSocket)).start();
-                } catch (IOException e) {
-                    System.err.println("Accept failed: " + e.getMessage());
+                    amount = Integer.parseInt(parts[1]);
+                } catch (NumberFormatException e) {
+                    // ignore
                 }
             }
-        } catch (IOException e) {
-            System.err.println("Could not listen on " + ip + ":" + port);
-            e.printStackTrace();
+            System.out.println("Received REMOVE_PHONE command via TCP (amount: " + amount + ")");
+            phoneManager.removePhones(amount);
+            return "PHONE(S)_REMOVED";
+        } else if ("GET_PHONE_COUNT".equals(command)) {
+            System.out.println("Received GET_PHONE_COUNT command via TCP");
+            return String.valueOf(phoneManager.getPhoneCount());
+        } else if ("STATS".equals(command)) {
+            // Multi-line reply in the Prometheus text format, terminated by a line holding END
+            System.out.println("Received STATS command via TCP");
+            return Metrics.scrape() + "END";
+        } else if ("TRACES".equals(command)) {
+            // TRACES [count]: the slowest completed requests with their spans, terminated by END
+            int limit = 10;
+            if (parts.length > 1) {
+                try {
+                    limit = Integer.parseInt(parts[1]);
+                } catch (NumberFormatException e) {
+                    return "INVALID_ARGUMENT";
+                }
+                if (limit < 0) {
+                    return "INVALID_ARGUMENT";
+                }
+            }
+            System.out.println("Received TRACES command via TCP");
+            return TraceSampler.dump(limit) + "END";
+        } else if ("LOADGEN_START".equals(command)) {
+            // LOADGEN_START [requests per second] [share of identify requests, the rest are addPerson]
+            double rate = 10;
+            double identifyRatio = 0.9;
+            try {
+                if (parts.length > 1) {
+                    rate = Double.parseDouble(parts[1]);
+                }
+                if (parts.length > 2) {
+                    identifyRatio = Double.parseDouble(parts[2]);
+                }
+            } catch (NumberFormatException e) {
+                return "INVALID_ARGUMENT";
+            }
+            System.out.println("Received LOADGEN_START command via TCP (rate: " + rate + ", identify ratio: " + identifyRatio + ")");
+            LoadGenerator current = loadGenerator;
+            if (current != null && current.isRunning()) {
+                return "LOADGEN_ALREADY_RUNNING";
+            }
+            try {
+                LoadGenerator generator = new LoadGenerator(nodeRedServer, rate, identifyRatio, 5000);
+                loadGenerator = generator;
+                generator.start().exceptionally(ex -> {
+                    System.err.println("Load generator failed to start: " + ex.getMessage());
+                    generator.stop();
+                    return null;
+                });
+            } catch (IllegalArgumentException e) {
+                return "INVALID_ARGUMENT";
+            }
+            return "LOADGEN_STARTED";
+        } else if ("LOADGEN_STOP".equals(command)) {
+            System.out.println("Received LOADGEN_STOP command via TCP");
+            LoadGenerator current = loadGenerator;
+            if (current == null || !current.isRunning()) {
+                return "LOADGEN_NOT_RUNNING";
+            }
+            current.stop();
+            return "LOADGEN_STOPPED";
+        } else if ("SIMULATE".equals(command)) {
+            // Runs for seconds; only handleCommandAsync waits for it, off the caller's thread
+            return "ASYNC_ONLY";
+        } else if ("LOADGEN_STATS".equals(command)) {
+            System.out.println("Received LOADGEN_STATS command via TCP");
+            LoadGenerator current = loadGenerator;
+            if (current == null) {
+                return "LOADGEN_NOT_RUNNING";
+            }
+            return current.report();
         }
+        return "UNKNOWN_COMMAND";
     }
 
-    private void handleClient(Socket clientSocket) {
-        try (clientSocket;
-             PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
-             BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()))) {
-
-            String inputLine;
-            while ((inputLine = in.readLine()) != null) {
-                String[] parts = inputLine.trim().split("\\s+");
-                String command = parts[0].toUpperCase();
-
-                if ("ADD_PHONE".equals(command)) {
-                    int amount = 1;
-                    if (parts.length > 1) {
-                        try {
-                            amount = Integer.parseInt(parts[1]);
-                        } catch (NumberFormatException e) {
-                            // ignore, use default
-                        }
-                    }
-                    System.out.println("Received ADD_PHONE command via TCP (amount: " + amount + ")");
-                    phoneManager.addPhones(amount);
-                    out.println("PHONE(S)_ADDED");
-                } else if ("REMOVE_PHONE".equals(command)) {
-                    int amount = 1;
-                    if (parts.length > 1) {
-                        try {
-                            amount = Integer.parseInt(parts[1]);
-                        } catch (NumberFormatException e) {
-                            // ignore
-                        }
-                    }
-                    System.out.println("Received REMOVE_PHONE command via TCP (amount: " + amount + ")");
-                    phoneManager.removePhones(amount);
-                    out.println("PHONE(S)_REMOVED");
-                } else if ("GET_PHONE_COUNT".equals(command)) {
-                    System.out.println("Received GET_PHONE_COUNT command via TCP");
-                    out.println(phoneManager.getPhoneCount());
-                } else {
-                    out.println("UNKNOWN_COMMAND");
-                }
+    private CompletableFuture<Void> addPhones(String[] parts) {
+        int amount = 1;
+        if (parts.length > 1) {
+            try {
+                amount = Integer.parseInt(parts[1]);
+            } catch (NumberFormatException e) {
+                // ignore, use default
             }
-        } catch (IOException e) {
-            System.err.println("Error handling client: " + e.getMessage());
         }
+        System.out.println("Received ADD_PHONE command via TCP (amount: " + amount + ")");
+        return phoneManager.addPhones(amount);
+    }
+
+    // SIMULATE <phones> <simulated seconds> [seed]: runs the discrete-event model, not the servers,
+    // on a thread of its own; one simulation at a time
+    private CompletableFuture<String> simulate(String[] parts) {
+        if (parts.length < 3) {
+            return CompletableFuture.completedFuture("INVALID_ARGUMENT");
+        }
+        int amount;
+        long seconds;
+        long seed;
+        try {
+            amount = Integer.parseInt(parts[1]);
+            seconds = Long.parseLong(parts[2]);
+            seed = parts.length > 3 ? Long.parseLong(parts[3]) : 42;
+        } catch (NumberFormatException e) {
+            return CompletableFuture.completedFuture("INVALID_ARGUMENT");
+        }
+        // Checked by division, so huge arguments cannot overflow past the limit
+        if (amount < 0 || seconds < 0 || seconds > MAX_SIMULATED_PHONE_SECONDS
+                || (amount > 0 && seconds > MAX_SIMULATED_PHONE_SECONDS / amount)) {
+            return CompletableFuture.completedFuture("INVALID_ARGUMENT");
+        }
+        if (!simulating.compareAndSet(false, true)) {
+            return CompletableFuture.completedFuture("SIMULATION_ALREADY_RUNNING");
+        }
+        System.out.println("Received SIMULATE command via TCP (phones: " + amount + ", seconds: " + seconds + ", seed: " + seed + ")");
+        CompletableFuture<String> report = new CompletableFuture<>();
+        Thread thread = new Thread(() -> {
+            String result;
+            try {
+                result = new Simulation(seed, amount).run(seconds * 1000);
+            } catch (RuntimeException e) {
+                simulating.set(false);
+                report.completeExceptionally(e);
+                return;
+            }
+            // Free for the next one before the reply goes out
+            simulating.set(false);
+            report.complete(result);
+        }, "SimulationThread");
+        thread.setDaemon(true);
+        thread.start();
+        return report;
+    }
+
+    CompletableFuture<ControlServer.Reply> handleFrame(WireDecoder frame) {
+        if (frame.type() != WireFormat.TYPE_IDENTIFY_REQUEST) {
+            return CompletableFuture.completedFuture(ControlServer.errorReply("unsupported frame type " + frame.type()));
+        }
+        long sessionId = frame.sessionId();
+        float[] embedding = frame.readEmbedding();
+        return nodeRedServer.identifyEmbedding(sessionId, embedding).handle((person, ex) -> identifyReply(person, ex));
+    }
+
+    private static ControlServer.Reply identifyReply(Person person, Throwable ex) {
+        return ControlServer.frameReply(WireEncoder.identifyResultMaxSize(person, ex),
+                out -> WireEncoder.encodeIdentifyResult(out, person, ex));
     }
 
     public static void main(String[] args) {
@@ -156,53 +299,4 @@ public class Main implements Runnable {
         }
         return name.toString();
     }
-
-
-    public static <T> CompletableFuture<T> retryUntilSuccess(
-            Supplier<CompletableFuture<T>> supplier) {
-        return supplier.get().exceptionallyComposeAsync(ex -> retryUntilSuccess(supplier));
-    }
-
-    public static <T> CompletableFuture<T> retryUntilSuccess(
-            Supplier<CompletableFuture<T>> supplier,
-            int maxRetries) {
-        return retryUntilSuccess(supplier, ForkJoinPool.commonPool(), maxRetries, Duration.ofMillis(50));
-    }
-
-    private static <T> CompletableFuture<T> retryUntilSuccess(
-            Supplier<CompletableFuture<T>> supplier,
-            Executor executor,
-            int maxRetries,
-            Duration initialBackoff) {
-        return retryUntilSuccess(supplier, executor, maxRetries, initialBackoff, 0);
-    }
-
-    private static <T> CompletableFuture<T> retryUntilSuccess(
-            Supplier<CompletableFuture<T>> supplier,
-            Executor executor,
-            int maxRetries,
-            Duration initialBackoff,
-            int attempt) {
-
-        return supplier.get().exceptionallyComposeAsync(ex -> {
-            System.out.println("Attempt " + (attempt + 1) + " failed: " + ex.getMessage());
-
-            if (attempt >= maxRetries) {
-                System.out.println("Max retries (" + maxRetries + ") exceeded. Giving up.");
-                return CompletableFuture.failedFuture(ex);
-            }
-
-            long delayMs = initialBackoff.toMillis() * (1L << attempt); // exponential: 2^attempt
-            System.out.println("Retrying in " + delayMs + " ms...");
-
-            Executor delayedExecutor = CompletableFuture.delayedExecutor(delayMs, TimeUnit.MILLISECONDS, executor);
-
-            return CompletableFuture.supplyAsync(() -> null, delayedExecutor)
-                    .thenComposeAsync(
-                        ignored -> retryUntilSuccess(supplier, executor, maxRetries, initialBackoff, attempt + 1),
-                        executor
-                    );
-        }, executor);
-    }
-
 }
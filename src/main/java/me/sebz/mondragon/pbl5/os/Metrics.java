@@ -0,0 +1,202 @@
+package me.sebz.mondragon.pbl5.os;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+// Process-wide registry rendered in the Prometheus text format. Recording never locks:
+// counters and histogram buckets are LongAdders, gauges are read when scraped.
+// Registering the same name and labels again returns the existing counter or histogram;
+// a gauge is replaced, so it follows the most recently created instance.
+public final class Metrics {
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    // Upper bounds in seconds, shared by all latency histograms
+    private static final double[] LATENCY_BUCKETS = {
+        0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10
+    };
+
+    public static class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    public static class Histogram {
+        private final long[] boundsNanos;
+        private final double[] boundsSeconds;
+        private final LongAdder[] buckets;
+        private final LongAdder sumNanos = new LongAdder();
+
+        Histogram(double[] boundsSeconds) {
+            this.boundsSeconds = boundsSeconds;
+            boundsNanos = new long[boundsSeconds.length];
+            buckets = new LongAdder[boundsSeconds.length + 1];
+            for (int i = 0; i < boundsSeconds.length; i++) {
+                boundsNanos[i] = (long) (boundsSeconds[i] * 1e9);
+            }
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void recordNanos(long nanos) {
+            int i = 0;
+            while (i < boundsNanos.length && nanos > boundsNanos[i]) {
+                i++;
+            }
+            buckets[i].increment();
+            sumNanos.add(nanos);
+        }
+
+        public long getCount() {
+            long count = 0;
+            for (LongAdder bucket : buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+    }
+
+    private static class Family {
+        final String type;
+        final String help;
+        // label string -> Counter, Histogram or LongSupplier
+        final Map<String, Object> series = new ConcurrentSkipListMap<>();
+
+        Family(String type, String help) {
+            this.type = type;
+            this.help = help;
+        }
+    }
+
+    private static final ConcurrentMap<String, Family> families = new ConcurrentSkipListMap<>();
+    private static final ConcurrentMap<String, Object> byKey = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    // labels are name/value pairs: counter("requests_total", "...", "operation", "identify")
+    public static Counter counter(String name, String help, String... labels) {
+        return (Counter) register(name, "counter", help, labels, Counter::new);
+    }
+
+    public static Histogram latency(String name, String help, String... labels) {
+        return (Histogram) register(name, "histogram", help, labels, () -> new Histogram(LATENCY_BUCKETS));
+    }
+
+    public static void gauge(String name, String help, LongSupplier value, String... labels) {
+        String labelString = labelString(labels);
+        family(name, "gauge", help).series.put(labelString, value);
+    }
+
+    // Saturation of a pool: busy threads, queued tasks, threads alive and tasks completed
+    public static void monitor(String executor, ThreadPoolExecutor pool) {
+        gauge("executor_active_threads", "Threads running a task", pool::getActiveCount, "executor", executor);
+        gauge("executor_queued_tasks", "Tasks waiting for a thread", () -> pool.getQueue().size(), "executor", executor);
+        gauge("executor_pool_threads", "Threads in the pool", pool::getPoolSize, "executor", executor);
+        gauge("executor_completed_tasks", "Tasks completed since start", pool::getCompletedTaskCount, "executor", executor);
+    }
+
+    public static String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Map.Entry<String, Family> entry : families.entrySet()) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+            out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Object> series : family.series.entrySet()) {
+                String labels = series.getKey();
+                Object metric = series.getValue();
+                if (metric instanceof Counter counter) {
+                    sample(out, name, labels, counter.get());
+                } else if (metric instanceof LongSupplier gauge) {
+                    sample(out, name, labels, gauge.getAsLong());
+                } else if (metric instanceof Histogram histogram) {
+                    appendHistogram(out, name, labels, histogram);
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    private static Object register(String name, String type, String help, String[] labels,
+                                   Supplier<Object> factory) {
+        String labelString = labelString(labels);
+        Object metric = byKey.get(name + labelString);
+        if (metric != null) {
+            return metric;
+        }
+        Family family = family(name, type, help);
+        metric = family.series.computeIfAbsent(labelString, ignored -> factory.get());
+        byKey.putIfAbsent(name + labelString, metric);
+        return metric;
+    }
+
+    private static Family family(String name, String type, String help) {
+        Family family = families.computeIfAbsent(name, ignored -> new Family(type, help));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException(name + " is already registered as a " + family.type);
+        }
+        return family;
+    }
+
+    private static String labelString(String[] labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("labels must be name/value pairs");
+        }
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            out.append(i == 0 ? "" : ",").append(labels[i]).append("=\"").append(escape(labels[i + 1])).append('"');
+        }
+        return out.toString();
+    }
+
+    private static void appendHistogram(StringBuilder out, String name, String labels, Histogram histogram) {
+        String prefix = labels.isEmpty() ? "" : labels + ",";
+        long cumulative = 0;
+        for (int i = 0; i < histogram.buckets.length; i++) {
+            cumulative += histogram.buckets[i].sum();
+            String le = i < histogram.boundsSeconds.length ? format(histogram.boundsSeconds[i]) : "+Inf";
+            sample(out, name + "_bucket", prefix + "le=\"" + le + "\"", cumulative);
+        }
+        out.append(name).append("_sum");
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(format(histogram.sumNanos.sum() / 1e9)).append('\n');
+        sample(out, name + "_count", labels, cumulative);
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, long value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    private static String format(double value) {
+        return Double.toString(value);
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -1,93 +1,451 @@
 package me.sebz.mondragon.pbl5.os;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 public class NodeRedServer {
 
-    private ExecutorService executor = Executors.newSingleThreadExecutor();
-    private FaceDetectServer detectServer = new FaceDetectServer();
-    private FaceEmbeddingServer embeddingServer = new FaceEmbeddingServer();
+    // Worker threads per analysis server, so a bulk enrollment's photos are analyzed side by
+    // side. The stages mostly wait rather than compute, so there are at least four.
+    static final int ANALYSIS_WORKERS = Math.max(4, Runtime.getRuntime().availableProcessors());
+    // Results buffered per subscriber of a session's channel before new ones are dropped
+    static final int RESULT_BUFFER = 32;
+
+    // The request metrics of each operation, registered on its first call
+    private static final Map<String, OperationMetrics> operations = new ConcurrentHashMap<>();
+
+    private static final class OperationMetrics {
+        final Metrics.Histogram latency;
+        final Metrics.Counter ok;
+        final Metrics.Counter rejected;
+        final Metrics.Counter error;
+
+        OperationMetrics(String operation) {
+            latency = Metrics.latency("nodered_request_duration_seconds", "Time from call to completion of a NodeRedServer operation",
+                    "operation", operation);
+            ok = outcomeCounter(operation, "ok");
+            rejected = outcomeCounter(operation, "rejected");
+            error = outcomeCounter(operation, "error");
+        }
+
+        private static Metrics.Counter outcomeCounter(String operation, String outcome) {
+            return Metrics.counter("nodered_requests_total", "NodeRedServer operations by outcome",
+                    "operation", operation, "outcome", outcome);
+        }
+
+        void record(long nanos, Throwable ex) {
+            latency.recordNanos(nanos);
+            outcome(ex).increment();
+        }
+
+        private Metrics.Counter outcome(Throwable ex) {
+            if (ex == null) {
+                return ok;
+            }
+            Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+            return cause instanceof OverloadException ? rejected : error;
+        }
+    }
+
+    private static final Metrics.Counter droppedResults =
+            Metrics.counter("session_results_dropped_total", "Identify results dropped for a session subscriber that fell behind");
+
+    private ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+    private FaceDetectServer detectServer;
+    private FaceEmbeddingServer embeddingServer;
     private RestServer restServer = new RestServer();
-    private Thread detectServerThread;
-    private Thread embeddingServerThread;
+    private final List<Thread> analysisThreads = new ArrayList<>();
+    // Operations that wait on the analysis workers, and those that only touch RestServer
+    private ConcurrencyLimiter analysisLimiter = new ConcurrencyLimiter("analysis", 16, 2, 512);
+    private ConcurrencyLimiter restLimiter = new ConcurrencyLimiter("rest", 64, 4, 1024);
+    // One per downstream, so a failing analysis server does not take the others' calls with it
+    private final CircuitBreaker detectBreaker = new CircuitBreaker("detect");
+    private final CircuitBreaker embeddingBreaker = new CircuitBreaker("embedding");
+    private final CircuitBreaker restBreaker = new CircuitBreaker("rest");
+    // Created when someone first subscribes to a session's results
+    private final Map<Long, SubmissionPublisher<IdentifyResult>> resultChannels = new ConcurrentHashMap<>();
 
     public CompletableFuture<Long> login(int groupId, String password) {
-        return CompletableFuture.completedFuture(null).thenComposeAsync(ignored -> {
-            return restServer.newSession(groupId, password);
-        }, executor);
+        Trace trace = Trace.start("login");
+        return timed(trace, restLimiter, () -> CompletableFuture.completedFuture(null).thenComposeAsync(ignored -> {
+            return rest(trace, "rest.newSession", () -> restServer.newSession(groupId, password));
+        }, executor));
     }
 
     public CompletableFuture<Integer> signup(String password) {
-        return CompletableFuture.completedFuture(null).thenComposeAsync(ignored -> {
-            return restServer.createGroup(password);
-        }, executor);
+        Trace trace = Trace.start("signup");
+        return timed(trace, restLimiter, () -> CompletableFuture.completedFuture(null).thenComposeAsync(ignored -> {
+            return rest(trace, "rest.createGroup", () -> restServer.createGroup(password));
+        }, executor));
     }
 
     public CompletableFuture<Void> deleteAccount(Long sessionId) {
-        return CompletableFuture.completedFuture(null).thenComposeAsync(ignored -> {
-            return restServer.deleteGroup(sessionId);
-        }, executor);
+        Trace trace = Trace.start("deleteAccount");
+        return timed(trace, restLimiter, () -> CompletableFuture.completedFuture(null).thenComposeAsync(ignored -> {
+            return rest(trace, "rest.deleteGroup", () -> restServer.deleteGroup(sessionId));
+        }, executor)).thenRun(() -> closeResults(sessionId));
     }
 
     public CompletableFuture<Integer> addPerson(Long sessionId, String info, int photoId) {
-        return CompletableFuture.supplyAsync(() -> {
-            return restServer.getValidatedGroup(sessionId);
+        Trace trace = Trace.start("addPerson");
+        return timed(trace, analysisLimiter, () -> CompletableFuture.completedFuture(null).thenComposeAsync(ignored -> {
+            return rest(trace, "rest.validateSession", () -> restServer.getValidatedGroup(sessionId));
         }, executor).thenComposeAsync(ignored -> {
-            return detectServer.analyzePhoto(photoId);
+            return detectBreaker.call(() -> detectServer.analyzePhoto(photoId, trace));
         }, executor).thenComposeAsync(ignored -> {
-            return embeddingServer.analyzePhoto(photoId);
+            return embeddingBreaker.call(() -> embeddingServer.analyzePhoto(photoId, trace));
         }, executor).thenComposeAsync(embedding -> {
-            return restServer.createPerson(sessionId, info, embedding);
-        }, executor);
+            return rest(trace, "rest.createPerson", () -> restServer.createPerson(sessionId, info, embedding));
+        }, executor));
+    }
+
+    public CompletableFuture<Integer> addPerson(Long sessionId, String info, Photo photo) {
+        Trace trace = Trace.start("addPerson");
+        return timed(trace, analysisLimiter, photo::release, () -> analyzePhoto(sessionId, photo, trace).thenComposeAsync(embedding -> {
+            return rest(trace, "rest.createPerson", () -> restServer.createPerson(sessionId, info, embedding));
+        }, executor));
+    }
+
+    // Enrolls many people with one group update; the session is checked before the analysis
+    // and again before the update. Photos go to the detect
+    // workers as a batch and each moves on to embedding as soon as its face is found. Takes
+    // ownership of the photos. Results follow the input order, with per-item errors.
+    public CompletableFuture<List<EnrollmentResult>> addPersonsBulk(Long sessionId, List<Map.Entry<String, Photo>> people) {
+        String[] infos = new String[people.size()];
+        Photo[] photos = new Photo[people.size()];
+        for (int i = 0; i < infos.length; i++) {
+            infos[i] = people.get(i).getKey();
+            photos[i] = people.get(i).getValue();
+        }
+        Trace trace = Trace.start("addPersonsBulk");
+        return timed(trace, analysisLimiter, () -> releaseAll(photos), () -> CompletableFuture.completedFuture(null).thenComposeAsync(ignored -> {
+            return rest(trace, "rest.validateSession", () -> restServer.getValidatedGroup(sessionId));
+        }, executor).whenComplete((group, ex) -> {
+            if (ex != null) {
+                releaseAll(photos);
+            }
+        }).thenComposeAsync(group -> {
+            List<CompletableFuture<Boolean>> detections = detectBreaker.callAll(photos.length, () -> {
+                return detectServer.analyzePhotos(photos, trace);
+            });
+            List<CompletableFuture<float[]>> embeddings = new ArrayList<>(photos.length);
+            for (int i = 0; i < photos.length; i++) {
+                Photo photo = photos[i];
+                embeddings.add(detections.get(i).thenCompose(ignored -> {
+                    return embeddingBreaker.call(() -> embeddingServer.analyzePhoto(photo, trace));
+                }).whenComplete((embedding, ex) -> photo.release()));
+            }
+            return settled(embeddings).thenComposeAsync(ignored -> {
+                EnrollmentResult[] results = new EnrollmentResult[infos.length];
+                float[][] faces = new float[infos.length][];
+                for (int i = 0; i < infos.length; i++) {
+                    CompletableFuture<float[]> embedding = embeddings.get(i);
+                    if (embedding.isCompletedExceptionally()) {
+                        results[i] = EnrollmentResult.failed(causeOf(embedding));
+                    } else {
+                        faces[i] = embedding.join();
+                    }
+                }
+                // The analysis took a while: the session may have ended or the group been deleted
+                return rest(trace, "rest.validateSession", () -> restServer.getValidatedGroup(sessionId)).thenCompose(current -> {
+                    if (current != group) {
+                        throw new IllegalArgumentException("invalid session ID");
+                    }
+                    return rest(trace, "rest.createPersons", () -> restServer.createPersons(group, infos, faces));
+                }).thenApply(ids -> {
+                    for (int i = 0; i < ids.length; i++) {
+                        if (faces[i] != null) {
+                            results[i] = EnrollmentResult.enrolled(ids[i]);
+                        }
+                    }
+                    return Arrays.asList(results);
+                });
+            }, executor);
+        }, executor));
     }
 
     public CompletableFuture<Void> deletePerson(Long sessionId, int personId) {
-        return CompletableFuture.completedFuture(null).thenComposeAsync(ignored -> {
-            return restServer.deletePerson(sessionId, personId);
-        }, executor);
+        Trace trace = Trace.start("deletePerson");
+        return timed(trace, restLimiter, () -> CompletableFuture.completedFuture(null).thenComposeAsync(ignored -> {
+            return rest(trace, "rest.deletePerson", () -> restServer.deletePerson(sessionId, personId));
+        }, executor));
     }
 
     public CompletableFuture<Void> editPersonInfo(Long sessionId, int personId, String info) {
-        return CompletableFuture.completedFuture(null).thenComposeAsync(ignored -> {
-            return restServer.editPersonInfo(sessionId, personId, info);
-        }, executor);
+        Trace trace = Trace.start("editPersonInfo");
+        return timed(trace, restLimiter, () -> CompletableFuture.completedFuture(null).thenComposeAsync(ignored -> {
+            return rest(trace, "rest.editPersonInfo", () -> restServer.editPersonInfo(sessionId, personId, info));
+        }, executor));
     }
 
     public CompletableFuture<Void> editPersonFace(Long sessionId, int personId, int photoId) {
-        return CompletableFuture.supplyAsync(() -> {
-            return restServer.getValidatedGroup(sessionId);
+        Trace trace = Trace.start("editPersonFace");
+        return timed(trace, analysisLimiter, () -> CompletableFuture.completedFuture(null).thenComposeAsync(ignored -> {
+            return rest(trace, "rest.validateSession", () -> restServer.getValidatedGroup(sessionId));
         }, executor).thenComposeAsync(ignored -> {
-            return detectServer.analyzePhoto(photoId);
+            return detectBreaker.call(() -> detectServer.analyzePhoto(photoId, trace));
         }, executor).thenComposeAsync(ignored -> {
-            return embeddingServer.analyzePhoto(photoId);
+            return embeddingBreaker.call(() -> embeddingServer.analyzePhoto(photoId, trace));
         }, executor).thenComposeAsync(embedding -> {
-            return restServer.editPersonEmbedding(sessionId, personId, embedding);
-        }, executor);
+            return rest(trace, "rest.editPersonEmbedding", () -> restServer.editPersonEmbedding(sessionId, personId, embedding));
+        }, executor));
+    }
+
+    public CompletableFuture<Void> editPersonFace(Long sessionId, int personId, Photo photo) {
+        Trace trace = Trace.start("editPersonFace");
+        return timed(trace, analysisLimiter, photo::release, () -> analyzePhoto(sessionId, photo, trace).thenComposeAsync(embedding -> {
+            return rest(trace, "rest.editPersonEmbedding", () -> restServer.editPersonEmbedding(sessionId, personId, embedding));
+        }, executor));
+    }
+
+    public CompletableFuture<Void> addPersonFace(Long sessionId, int personId, Photo photo) {
+        Trace trace = Trace.start("addPersonFace");
+        return timed(trace, analysisLimiter, photo::release, () -> analyzePhoto(sessionId, photo, trace).thenComposeAsync(embedding -> {
+            return rest(trace, "rest.addPersonTemplate", () -> restServer.addPersonTemplate(sessionId, personId, embedding));
+        }, executor));
     }
 
     public CompletableFuture<String> identify(Long sessionId, int photoId) {
-        return CompletableFuture.supplyAsync(() -> {
-            return restServer.getValidatedGroup(sessionId);
+        Trace trace = Trace.start("identify");
+        return timed(trace, analysisLimiter, () -> CompletableFuture.completedFuture(null).thenComposeAsync(ignored -> {
+            return rest(trace, "rest.validateSession", () -> restServer.getValidatedGroup(sessionId));
         }, executor).thenComposeAsync(ignored -> {
-            return detectServer.analyzePhoto(photoId);
+            return detectBreaker.call(() -> detectServer.analyzePhoto(photoId, trace));
         }, executor).thenComposeAsync(ignored -> {
-            return embeddingServer.analyzePhoto(photoId);
+            return embeddingBreaker.call(() -> embeddingServer.analyzePhoto(photoId, trace));
         }, executor).thenComposeAsync(embedding -> {
-            return restServer.identifyPerson(sessionId, embedding);
-        }, executor);
+            return rest(trace, "rest.identifyPerson", () -> restServer.identifyPerson(sessionId, embedding));
+        }, executor));
+    }
+
+    public CompletableFuture<Person> identifyEmbedding(Long sessionId, float[] embedding) {
+        Trace trace = Trace.start("identifyEmbedding");
+        return timed(trace, restLimiter, () -> CompletableFuture.completedFuture(null).thenComposeAsync(ignored -> {
+            return rest(trace, "rest.findClosestPerson", () -> restServer.findClosestPerson(sessionId, embedding));
+        }, executor));
+    }
+
+    public CompletableFuture<String> identify(Long sessionId, Photo photo) {
+        Trace trace = Trace.start("identify");
+        return timed(trace, analysisLimiter, photo::release, () -> analyzePhoto(sessionId, photo, trace).thenComposeAsync(embedding -> {
+            return rest(trace, "rest.identifyPerson", () -> restServer.identifyPerson(sessionId, embedding));
+        }, executor));
+    }
+
+    // Which groups, if any, have the face in the photo: the k closest faces across all groups
+    public CompletableFuture<List<FaceIndex.Match>> findFace(Long sessionId, Photo photo, int k) {
+        Trace trace = Trace.start("findFace");
+        return timed(trace, analysisLimiter, photo::release, () -> analyzePhoto(sessionId, photo, trace).thenComposeAsync(embedding -> {
+            return rest(trace, "rest.findFace", () -> restServer.findFace(sessionId, embedding, k));
+        }, executor));
+    }
+
+    // Every identification submitted for the session, as it completes. Subscribers get their
+    // own bounded buffer and are called on the common pool; one that falls RESULT_BUFFER
+    // results behind loses the newest ones instead of holding up the pipeline.
+    public Flow.Publisher<IdentifyResult> results(Long sessionId) {
+        if (sessionId == null) {
+            throw new IllegalArgumentException("no session to deliver results for");
+        }
+        return resultChannels.computeIfAbsent(sessionId, ignored -> {
+            return new SubmissionPublisher<>(ForkJoinPool.commonPool(), RESULT_BUFFER);
+        });
+    }
+
+    // Fire-and-forget identify: the outcome goes to the session's result channel, if it has one
+    public void submitIdentify(Long sessionId, Photo photo) {
+        identifyFrame(sessionId, photo);
+    }
+
+    public void closeResults(Long sessionId) {
+        SubmissionPublisher<IdentifyResult> channel = resultChannels.remove(sessionId);
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    // Continuous identify: publish the phone's frames to the returned stream and subscribe to
+    // it, or to the session's results, for the outcomes. Frames that arrive while one is being
+    // identified are conflated.
+    public IdentifyStream openIdentifyStream(Long sessionId) {
+        return new IdentifyStream(photo -> identifyFrame(sessionId, photo));
+    }
+
+    CompletableFuture<IdentifyResult> identifyFrame(Long sessionId, Photo photo) {
+        Trace trace = Trace.start("identifyFrame");
+        return timed(trace, analysisLimiter, photo::release, () -> analyzePhoto(sessionId, photo, trace).thenComposeAsync(embedding -> {
+            return rest(trace, "rest.findClosestPerson", () -> restServer.findClosestPerson(sessionId, embedding));
+        }, executor)).handle((person, ex) -> {
+            IdentifyResult result = ex == null ? IdentifyResult.match(person) : IdentifyResult.failed(ex);
+            publish(sessionId, result);
+            return result;
+        });
+    }
+
+    private void publish(Long sessionId, IdentifyResult result) {
+        SubmissionPublisher<IdentifyResult> channel = sessionId == null ? null : resultChannels.get(sessionId);
+        if (channel != null) {
+            channel.offer(result, (subscriber, dropped) -> {
+                droppedResults.increment();
+                return false;
+            });
+        }
+    }
+
+    // Several faces from one frame: the session is validated once, each stage is queued as a
+    // batch and all embeddings are matched in one pass over the group. Results follow photoIds
+    // order; a face that fails detection or embedding gets its own failed result.
+    public CompletableFuture<List<IdentifyResult>> identifyBatch(Long sessionId, int[] photoIds) {
+        Trace trace = Trace.start("identifyBatch");
+        return timed(trace, analysisLimiter, () -> CompletableFuture.completedFuture(null).thenComposeAsync(ignored -> {
+            return rest(trace, "rest.validateSession", () -> restServer.getValidatedGroup(sessionId));
+        }, executor).thenComposeAsync(group -> {
+            List<CompletableFuture<Boolean>> detections = detectBreaker.callAll(photoIds.length, () -> {
+                return detectServer.analyzePhotos(photoIds, trace);
+            });
+            return settled(detections).thenComposeAsync(ignored -> {
+                IdentifyResult[] results = new IdentifyResult[photoIds.length];
+                int[] faces = new int[photoIds.length];
+                int[] faceSlots = new int[photoIds.length];
+                int count = 0;
+                for (int i = 0; i < photoIds.length; i++) {
+                    CompletableFuture<Boolean> detection = detections.get(i);
+                    if (detection.isCompletedExceptionally()) {
+                        results[i] = IdentifyResult.failed(causeOf(detection));
+                    } else {
+                        faces[count] = photoIds[i];
+                        faceSlots[count++] = i;
+                    }
+                }
+                int embedded = count;
+                List<CompletableFuture<float[]>> embeddings = embeddingBreaker.callAll(embedded, () -> {
+                    return embeddingServer.analyzePhotos(Arrays.copyOf(faces, embedded), trace);
+                });
+                return settled(embeddings).thenComposeAsync(ignored2 -> {
+                    float[][] queries = new float[embedded][];
+                    for (int j = 0; j < embedded; j++) {
+                        CompletableFuture<float[]> embedding = embeddings.get(j);
+                        if (embedding.isCompletedExceptionally()) {
+                            results[faceSlots[j]] = IdentifyResult.failed(causeOf(embedding));
+                        } else {
+                            queries[j] = embedding.join();
+                        }
+                    }
+                    return rest(trace, "rest.findClosestPersons", () -> restServer.findClosestPersons(group, queries)).thenApply(matches -> {
+                        for (int j = 0; j < embedded; j++) {
+                            if (queries[j] != null) {
+                                results[faceSlots[j]] = IdentifyResult.match(matches[j]);
+                            }
+                        }
+                        return Arrays.asList(results);
+                    });
+                }, executor);
+            }, executor);
+        }, executor));
+    }
+
+    private static <T> CompletableFuture<T> timed(Trace trace, ConcurrencyLimiter limiter,
+                                                  Supplier<CompletableFuture<T>> request) {
+        return timed(trace, limiter, () -> { }, request);
+    }
+
+    // Admission control comes first: a rejected request fails at once with OverloadException,
+    // after onRejected has released anything the caller handed over
+    private static <T> CompletableFuture<T> timed(Trace trace, ConcurrencyLimiter limiter, Runnable onRejected,
+                                                  Supplier<CompletableFuture<T>> request) {
+        OperationMetrics metrics = operations.get(trace.getOperation());
+        if (metrics == null) {
+            metrics = operations.computeIfAbsent(trace.getOperation(), OperationMetrics::new);
+        }
+        OperationMetrics recorder = metrics;
+        long start = System.nanoTime();
+        return limiter.run(onRejected, request).whenComplete((result, ex) -> {
+            trace.finish(ex);
+            recorder.record(System.nanoTime() - start, ex);
+        });
+    }
+
+    private <T> CompletableFuture<T> rest(Trace trace, String span, Supplier<CompletableFuture<T>> call) {
+        return trace.span(span, () -> restBreaker.call(call));
+    }
+
+    private static void releaseAll(Photo[] photos) {
+        for (Photo photo : photos) {
+            photo.release();
+        }
+    }
+
+    private static <T> CompletableFuture<Void> settled(List<CompletableFuture<T>> futures) {
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).handle((ignored, ex) -> null);
+    }
+
+    private static Throwable causeOf(CompletableFuture<?> failed) {
+        try {
+            failed.join();
+            return null;
+        } catch (CompletionException e) {
+            return e.getCause() != null ? e.getCause() : e;
+        } catch (CancellationException e) {
+            return e;
+        }
+    }
+
+    // Takes ownership of the photo: the frame is passed by reference to both analysis stages
+    // and handed back to its pool as soon as the embedding is known or the pipeline fails
+    private CompletableFuture<float[]> analyzePhoto(Long sessionId, Photo photo, Trace trace) {
+        try {
+            return CompletableFuture.completedFuture(null).thenComposeAsync(ignored -> {
+                return rest(trace, "rest.validateSession", () -> restServer.getValidatedGroup(sessionId));
+            }, executor).thenComposeAsync(ignored -> {
+                return detectBreaker.call(() -> detectServer.analyzePhoto(photo, trace));
+            }, executor).thenComposeAsync(ignored -> {
+                return embeddingBreaker.call(() -> embeddingServer.analyzePhoto(photo, trace));
+            }, executor).whenComplete((embedding, ex) -> photo.release());
+        } catch (RuntimeException e) {
+            // The chain never got built (e.g. the executor rejected the first stage)
+            photo.release();
+            throw e;
+        }
     }
 
     public NodeRedServer() {
-        detectServerThread = new Thread(detectServer, "FaceDetectServerThread");
-        embeddingServerThread = new Thread(embeddingServer, "FaceEmbeddingServerThread");
-        detectServerThread.start();
-        embeddingServerThread.start();
+        this(new FaceDetectServer(), new FaceEmbeddingServer());
+    }
+
+    public NodeRedServer(FaceDetectServer detectServer, FaceEmbeddingServer embeddingServer) {
+        this(detectServer, embeddingServer, ANALYSIS_WORKERS);
+    }
+
+    public NodeRedServer(FaceDetectServer detectServer, FaceEmbeddingServer embeddingServer, int analysisWorkers) {
+        if (analysisWorkers < 1) {
+            throw new IllegalArgumentException("analysis workers must be positive");
+        }
+        this.detectServer = detectServer;
+        this.embeddingServer = embeddingServer;
+        Metrics.monitor("nodered", executor);
+        for (int i = 0; i < analysisWorkers; i++) {
+            analysisThreads.add(new Thread(detectServer, "FaceDetectServerThread-" + i));
+            analysisThreads.add(new Thread(embeddingServer, "FaceEmbeddingServerThread-" + i));
+        }
+        analysisThreads.forEach(Thread::start);
     }
 
     public CompletableFuture<Void> shutdown() {
+        resultChannels.values().forEach(SubmissionPublisher::close);
+        resultChannels.clear();
         CompletableFuture<Void> restFuture = restServer.shutdown();
         CompletableFuture<Void> detectFuture = detectServer.stop();
         CompletableFuture<Void> embeddingFuture = embeddingServer.stop();
@@ -0,0 +1,9 @@
+package me.sebz.mondragon.pbl5.os;
+
+// A request turned away by admission control before any work was done; retrying later is safe
+public class OverloadException extends RuntimeException {
+
+    public OverloadException(String message) {
+        super(message);
+    }
+}
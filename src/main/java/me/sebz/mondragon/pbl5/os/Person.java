@@ -5,9 +5,30 @@ import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class Person {
+
+    // Enrolled photos kept per person; adding one more drops the oldest
+    public static final int MAX_TEMPLATES = 5;
+
+    // The templates and their centroid, replaced as a whole. No array is ever modified,
+    // so Group can share them without copying.
+    static final class Face {
+        final float[][] templates;
+        final float[] centroid;
+        // The embedding the person was enrolled with, kept after its template is dropped
+        final float[] enrolled;
+
+        private Face(float[][] templates, float[] enrolled) {
+            this.templates = templates;
+            this.centroid = centroidOf(templates);
+            this.enrolled = enrolled;
+        }
+    }
+
     private int id;
-    private final AtomicReference<float[]> faceEmbedding = new AtomicReference<float[]>(null);
+    private final AtomicReference<Face> face = new AtomicReference<Face>(null);
     private final AtomicReference<String> info = new AtomicReference<String>(null);
+    // The group whose snapshot holds this person's templates
+    private volatile Group group;
     private static int lastId = 0;
     private final static Lock staticMutex = new ReentrantLock();
 
@@ -20,15 +41,101 @@ public class Person {
         }
     }
 
+    // Replaces every template with this one
     public void setFaceEmbedding(float[] embedding) {
-        faceEmbedding.set(embedding == null ? null : embedding.clone());
+        float[] template = embedding == null ? null : embedding.clone();
+        face.set(template == null ? null : new Face(new float[][]{template}, template));
+        changed();
+    }
+
+    public void addFaceTemplate(float[] embedding) {
+        if (embedding == null) {
+            throw new IllegalArgumentException("embedding is null");
+        }
+        float[] template = embedding.clone();
+        face.updateAndGet(current -> {
+            if (current == null) {
+                return new Face(new float[][]{template}, template);
+            }
+            if (current.templates[0].length != template.length) {
+                throw new IllegalArgumentException("embedding length " + template.length
+                        + " does not match the enrolled length " + current.templates[0].length);
+            }
+            int keep = Math.min(current.templates.length, MAX_TEMPLATES - 1);
+            float[][] templates = new float[keep + 1][];
+            System.arraycopy(current.templates, current.templates.length - keep, templates, 0, keep);
+            templates[keep] = template;
+            return new Face(templates, current.enrolled);
+        });
+        changed();
     }
 
+    // The embedding given to setFaceEmbedding, or the first template added
     public float[] getFaceEmbedding() {
-        float[] e = faceEmbedding.get();
-        return e == null ? null : e.clone();
+        Face f = face.get();
+        return f == null ? null : f.enrolled.clone();
+    }
+
+    // The centroid of the templates, which Group prefilters on; with a single template, the
+    // template itself
+    public float[] getCentroid() {
+        Face f = face.get();
+        return f == null ? null : f.centroid.clone();
+    }
+
+    public float[][] getFaceTemplates() {
+        Face f = face.get();
+        if (f == null) {
+            return new float[0][];
+        }
+        float[][] templates = new float[f.templates.length][];
+        for (int i = 0; i < templates.length; i++) {
+            templates[i] = f.templates[i].clone();
+        }
+        return templates;
+    }
+
+    Face peekFace() {
+        return face.get();
+    }
+
+    void setGroup(Group group) {
+        this.group = group;
+    }
+
+    void clearGroup(Group group) {
+        if (this.group == group) {
+            this.group = null;
+        }
+    }
+
+    private void changed() {
+        Group owner = group;
+        if (owner != null) {
+            owner.memberChanged(this);
+        }
     }
 
+    // Sum of the unit-length templates: the mean up to a scale that cosine similarity ignores,
+    // and no template weighs more for having a larger norm
+    private static float[] centroidOf(float[][] templates) {
+        if (templates.length == 1) {
+            return templates[0];
+        }
+        float[] centroid = new float[templates[0].length];
+        for (float[] template : templates) {
+            float norm = 0f;
+            for (float x : template) {
+                norm += x * x;
+            }
+            if (norm == 0f) continue;
+            float scale = (float) (1.0 / Math.sqrt(norm));
+            for (int i = 0; i < centroid.length; i++) {
+                centroid[i] += template[i] * scale;
+            }
+        }
+        return centroid;
+    }
 
     public String getInfo() {
         return info.get();
@@ -1,38 +1,144 @@
 package me.sebz.mondragon.pbl5.os;
+import java.util.ArrayList;
 import java.util.Map;
 import java.util.List;
 import java.util.Objects;
 import java.util.stream.Collectors;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
 
 public class Phone {
     private final NodeRedServer server;
     private final CompletableFuture<Long> sessionIdFuture;
     private final Glasses glasses;
+    // Each phone may retry at most 10 times in a row before it needs successes to earn more
+    private final Retry retry = new Retry(10, 50, 2000, new Retry.Budget("phone", 10, 1));
+    private volatile SubmissionPublisher<Photo> frames;
+    private volatile boolean closed;
 
     public Phone(NodeRedServer server, Integer userId, String password, List<String> people) {
         this.server = server;
         sessionIdFuture = server.login(userId, password);
         glasses = new Glasses();
+        // One subscription delivers every result of the session, pressed or streamed. A failed
+        // login has no session; a phone closed meanwhile gives its channel straight back
+        sessionIdFuture.thenAccept(sessionId -> {
+            if (sessionId == null || closed) {
+                return;
+            }
+            server.results(sessionId).subscribe(new Speaker());
+            if (closed) {
+                server.closeResults(sessionId);
+            }
+        });
         sessionIdFuture.thenAcceptAsync(session -> {
-            List<CompletableFuture<Map.Entry<Integer, String>>> futures =
-                people.stream().map(string -> Main.retryUntilSuccess(() -> {
-                    return server.addPerson(session, string, glasses.takePhoto());
-                }, 10)
-                .thenApply(futureInt -> Map.entry(futureInt, string))
-                .exceptionally(ex -> null))
+            List<Map.Entry<String, Photo>> batch = people.stream()
+                .map(string -> Map.entry(string, glasses.capturePhoto()))
                 .toList();
 
-            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
+            // One bulk round trip first; only the people it could not enroll are retried one by one
+            server.addPersonsBulk(session, batch).handle((results, bulkEx) -> {
+                List<CompletableFuture<Map.Entry<Integer, String>>> futures = new ArrayList<>(people.size());
+                for (int i = 0; i < people.size(); i++) {
+                    String string = people.get(i);
+                    EnrollmentResult result = results == null ? null : results.get(i);
+                    if (result != null && result.isEnrolled()) {
+                        futures.add(CompletableFuture.completedFuture(Map.entry(result.getPersonId(), string)));
+                        continue;
+                    }
+                    futures.add(retry.execute(() -> {
+                        return server.addPerson(session, string, glasses.capturePhoto());
+                    })
+                    .thenApply(futureInt -> Map.entry(futureInt, string))
+                    .exceptionally(ex -> null));
+                }
+                return futures;
+            }).thenCompose(futures -> CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
                 .thenApply(ignored -> futures.stream()
                     .map(CompletableFuture::join)
                     .filter(Objects::nonNull)
-                    .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue)));
-
+                    .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue))));
         });
     }
 
+    // Completes once the login has finished, with null if it failed
+    CompletableFuture<Long> session() {
+        return sessionIdFuture;
+    }
+
     public void pressButton() {
-        sessionIdFuture.thenApply(sessionId -> server.identify(sessionId, glasses.takePhoto()));
+        sessionIdFuture.thenAccept(sessionId -> server.submitIdentify(sessionId, glasses.capturePhoto()));
+    }
+
+    // Continuous mode: frames go out through one IdentifyStream; results arrive on the session channel
+    public CompletableFuture<Void> startStreaming() {
+        return sessionIdFuture.thenAccept(sessionId -> {
+            IdentifyStream stream = server.openIdentifyStream(sessionId);
+            SubmissionPublisher<Photo> publisher = new SubmissionPublisher<>();
+            publisher.subscribe(stream);
+            frames = publisher;
+        });
+    }
+
+    // Sends the current frame; a no-op unless streaming
+    public void pushFrame() {
+        SubmissionPublisher<Photo> publisher = frames;
+        if (publisher == null) {
+            return;
+        }
+        publisher.offer(glasses.capturePhoto(), (subscriber, photo) -> {
+            photo.release();
+            return false;
+        });
+    }
+
+    public void stopStreaming() {
+        SubmissionPublisher<Photo> publisher = frames;
+        frames = null;
+        if (publisher != null) {
+            publisher.close();
+        }
+    }
+
+    // Stops streaming and releases the session's result channel
+    public void close() {
+        closed = true;
+        stopStreaming();
+        sessionIdFuture.thenAccept(sessionId -> {
+            if (sessionId != null) {
+                server.closeResults(sessionId);
+            }
+        });
+    }
+
+    // Asks for one result at a time, so the channel buffers whatever the glasses have not said yet
+    private class Speaker implements Flow.Subscriber<IdentifyResult> {
+        private Flow.Subscription subscription;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(IdentifyResult result) {
+            if (result.isMatch()) {
+                Log.info("{}", glasses.speak(result.getInfo()));
+            } else if (result.getError() != null) {
+                Log.debug("Photo not identified: {}", result.getError());
+            }
+            subscription.request(1);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            Log.warn("Result channel failed: {}", throwable);
+        }
+
+        @Override
+        public void onComplete() {
+        }
     }
 }
@@ -3,17 +3,20 @@ package me.sebz.mondragon.pbl5.os;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
-import java.security.SecureRandom;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.CompletableFuture;
 import java.util.stream.Stream;
 
 public class PhoneManager implements Runnable {
 
+    // Time a phone waits between presses of the button
+    static final int PRESS_MIN_INTERVAL_MS = 5000;
+    static final int PRESS_MAX_INTERVAL_MS = 5500;
+
     private final List<Phone> phones;
     private final Lock mutex;
     private final NodeRedServer nodeRedServer;
-    private final Random random = new SecureRandom();
+    private final Random random = Simulation.newRandom("phones");
 
     public PhoneManager(List<Phone> phones, Lock mutex, NodeRedServer nodeRedServer) {
         this.phones = phones;
@@ -21,12 +24,15 @@ public class PhoneManager implements Runnable {
         this.nodeRedServer = nodeRedServer;
     }
 
-    public void addPhones(int amount) {
+    // Completes once every phone has signed up, been counted and logged in; a phone whose
+    // signup failed is left out
+    public CompletableFuture<Void> addPhones(int amount) {
+        List<CompletableFuture<?>> added = new ArrayList<>(amount);
         for (int i = 0; i < amount; i++) {
             String password = Main.generatePassword(20);
             CompletableFuture<Integer> userIdFuture = nodeRedServer.signup(password);
             List<String> people = Stream.generate(Main::generateRandomName).limit(random.nextInt(1, 4)).toList();
-            userIdFuture.thenAccept(userId -> {
+            added.add(userIdFuture.thenCompose(userId -> {
                 Phone phone = new Phone(nodeRedServer, userId, password, people);
                 mutex.lock();
                 try {
@@ -34,9 +40,10 @@ public class PhoneManager implements Runnable {
                 } finally {
                     mutex.unlock();
                 }
-
-            });
+                return phone.session();
+            }).exceptionally(ex -> null));
         }
+        return CompletableFuture.allOf(added.toArray(new CompletableFuture[0]));
     }
 
     public void removePhones(int amount) {
@@ -44,7 +51,7 @@ public class PhoneManager implements Runnable {
         try {
             int toRemove = Math.min(amount, phones.size());
             for (int i = 0; i < toRemove; i++) {
-                phones.remove(phones.size() - 1);
+                phones.remove(phones.size() - 1).close();
             }
         } finally {
             mutex.unlock();
@@ -67,13 +74,13 @@ public class PhoneManager implements Runnable {
             mutex.lock();
             try {
                 while (phoneThreads.size() < phones.size()) {
-                    System.out.println("New phone detected, starting thread...");
+                    Log.info("New phone detected, starting thread...");
                     Phone phone = phones.get(phoneThreads.size());
                     Thread thread = new Thread(() -> {
                         while (!Thread.currentThread().isInterrupted()) {
                             phone.pressButton();
                             try {
-                                Thread.sleep(random.nextInt(5000, 5500));
+                                Thread.sleep(random.nextInt(PRESS_MIN_INTERVAL_MS, PRESS_MAX_INTERVAL_MS));
                             } catch (InterruptedException e) {
                                 Thread.currentThread().interrupt();
                             }
@@ -84,7 +91,7 @@ public class PhoneManager implements Runnable {
                     phoneThreads.add(thread);
                 }
                 while (phoneThreads.size() > phones.size()) {
-                    System.out.println("Phone removed, stopping thread...");
+                    Log.info("Phone removed, stopping thread...");
                     Thread thread = phoneThreads.remove(phoneThreads.size() - 1);
                     thread.interrupt();
                 }
@@ -0,0 +1,80 @@
+package me.sebz.mondragon.pbl5.os;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class Photo {
+    private final int id;
+    private final ByteBuffer payload;
+    private final PhotoBufferPool pool;
+    private final AtomicInteger refCount = new AtomicInteger(1);
+
+    Photo(int id, ByteBuffer payload, PhotoBufferPool pool) {
+        this.id = id;
+        this.payload = payload;
+        this.pool = pool;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    // Read-only view sharing the pooled memory; stages never copy the frame. The view is only
+    // valid while the caller holds a reference: the check below cannot stop a release racing
+    // with the read, so a stage that borrows the photo takes its own with retain() first
+    public ByteBuffer getPayload() {
+        if (refCount.get() <= 0) {
+            throw new IllegalStateException("photo " + id + " already released");
+        }
+        return payload.asReadOnlyBuffer();
+    }
+
+    ByteBuffer getWritablePayload() {
+        return payload;
+    }
+
+    // Reads the whole frame in place, standing in for the pixel work of the analysis stages
+    public long checksum() {
+        retain();
+        try {
+            ByteBuffer view = payload.asReadOnlyBuffer();
+            long sum = 0;
+            while (view.remaining() >= Long.BYTES) {
+                sum = 31 * sum + view.getLong();
+            }
+            while (view.hasRemaining()) {
+                sum = 31 * sum + view.get();
+            }
+            return sum;
+        } finally {
+            release();
+        }
+    }
+
+    public Photo retain() {
+        int count;
+        do {
+            count = refCount.get();
+            if (count <= 0) {
+                throw new IllegalStateException("photo " + id + " already released");
+            }
+        } while (!refCount.compareAndSet(count, count + 1));
+        return this;
+    }
+
+    public boolean release() {
+        int count = refCount.decrementAndGet();
+        if (count == 0) {
+            pool.recycle(payload);
+            return true;
+        }
+        if (count < 0) {
+            throw new IllegalStateException("photo " + id + " released too many times");
+        }
+        return false;
+    }
+
+    public int refCount() {
+        return refCount.get();
+    }
+}
@@ -0,0 +1,48 @@
+package me.sebz.mondragon.pbl5.os;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class PhotoBufferPool {
+
+    public static final int DEFAULT_FRAME_SIZE = 256 * 1024;
+
+    private final int bufferSize;
+    private final BlockingQueue<ByteBuffer> free;
+    private final AtomicLong allocated = new AtomicLong(0);
+
+    public PhotoBufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.free = new ArrayBlockingQueue<>(maxPooled);
+    }
+
+    public Photo acquire(int photoId) {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+            allocated.incrementAndGet();
+        }
+        buffer.clear();
+        return new Photo(photoId, buffer, this);
+    }
+
+    void recycle(ByteBuffer buffer) {
+        buffer.clear();
+        // When the pool is already full the buffer is simply left to the GC
+        free.offer(buffer);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int getPooledCount() {
+        return free.size();
+    }
+
+    public long getAllocatedCount() {
+        return allocated.get();
+    }
+}
@@ -0,0 +1,104 @@
+package me.sebz.mondragon.pbl5.os;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+// JFR events for each stage a request goes through. They are disabled unless a recording
+// enables them (e.g. a .jfc settings file naming garaitu.*). A disabled event costs one
+// shouldCommit check; call sites that would capture state in a lambda check isEnabled first.
+public final class PipelineEvents {
+
+    private PipelineEvents() {
+    }
+
+    @Name("garaitu.QueueWait")
+    @Label("Analysis Queue Wait")
+    @Description("Time a photo spent queued before an analysis worker picked it up")
+    @Category({"garAItu", "Pipeline"})
+    @StackTrace(false)
+    static class QueueWait extends Event {
+        @Label("Server")
+        String server;
+        @Label("Photo ID")
+        int photoId;
+        @Label("Wait")
+        @Timespan(Timespan.NANOSECONDS)
+        long waitNanos;
+    }
+
+    @Name("garaitu.Analysis")
+    @Label("Photo Analysis")
+    @Description("Service time of one detect or embedding task")
+    @Category({"garAItu", "Pipeline"})
+    @StackTrace(false)
+    static class Analysis extends Event {
+        @Label("Server")
+        String server;
+        @Label("Photo ID")
+        int photoId;
+        @Label("Succeeded")
+        boolean succeeded;
+    }
+
+    @Name("garaitu.SimilarityScan")
+    @Label("Similarity Scan")
+    @Description("Matching query embeddings against a group's members")
+    @Category({"garAItu", "Pipeline"})
+    @StackTrace(false)
+    static class SimilarityScan extends Event {
+        @Label("Group ID")
+        int groupId;
+        @Label("Members")
+        int members;
+        @Label("Queries")
+        int queries;
+        @Label("Cache Hit")
+        boolean cacheHit;
+    }
+
+    @Name("garaitu.PasswordHash")
+    @Label("Password Hash")
+    @Description("BCrypt hashing or verification of a group password")
+    @Category({"garAItu", "Security"})
+    @StackTrace(false)
+    static class PasswordHash extends Event {
+        @Label("Group ID")
+        int groupId;
+        @Label("Verification")
+        boolean verification;
+        @Label("Matched")
+        boolean matched;
+    }
+
+    @Name("garaitu.SessionValidation")
+    @Label("Session Validation")
+    @Description("Looking up and validating the group behind a session ID")
+    @Category({"garAItu", "Pipeline"})
+    @StackTrace(false)
+    static class SessionValidation extends Event {
+        @Label("Valid")
+        boolean valid;
+    }
+
+    private static final EventType SESSION_VALIDATION = EventType.getEventType(SessionValidation.class);
+
+    static boolean sessionValidationEnabled() {
+        return SESSION_VALIDATION.isEnabled();
+    }
+
+    static void queueWait(String server, int photoId, long enqueuedAtNanos) {
+        QueueWait event = new QueueWait();
+        if (event.shouldCommit()) {
+            event.server = server;
+            event.photoId = photoId;
+            event.waitNanos = System.nanoTime() - enqueuedAtNanos;
+            event.commit();
+        }
+    }
+}
@@ -1,18 +1,28 @@
 package me.sebz.mondragon.pbl5.os;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 public class RestServer {
 
+    // Off unless asked for: with it on, two people enrolled with near-identical faces get one id
+    static final float DEFAULT_DUPLICATE_THRESHOLD = 0f;
+
+    private static final Metrics.Counter duplicatesPrevented = Metrics.counter("enrollment_duplicates_total",
+            "Enrollments answered with an already enrolled person instead of adding a new one");
+
     private Database database;
-    private ExecutorService executor;
+    private ThreadPoolExecutor executor;
+    // A new person whose face is at least this similar to a member's is that member;
+    // -Dgaraitu.enroll.duplicateThreshold=0.95 turns the check on, off or 0 leaves it off
+    private volatile float duplicateThreshold =
+            parseThreshold(System.getProperty("garaitu.enroll.duplicateThreshold"));
 
     public RestServer() {
         int corePoolSize = Runtime.getRuntime().availableProcessors();
@@ -23,42 +33,61 @@ public class RestServer {
         RejectedExecutionHandler rejectionHandler = new ThreadPoolExecutor.CallerRunsPolicy();
         executor = new ThreadPoolExecutor(corePoolSize, maximumPoolSize, keepAliveTime, unit, queue, rejectionHandler);
         database = new Database();
+        Metrics.monitor("rest", executor);
     }
 
     public CompletableFuture<Group> getValidatedGroup(Long sessionId) {
-        return CompletableFuture.completedFuture(null).thenComposeAsync(ignored -> {
-            return database.getGroupFromSession(sessionId);
-        }, executor).thenApplyAsync(group -> {
+        if (!PipelineEvents.sessionValidationEnabled()) {
+            return validateSession(sessionId);
+        }
+        PipelineEvents.SessionValidation event = new PipelineEvents.SessionValidation();
+        event.begin();
+        return validateSession(sessionId).whenComplete((group, ex) -> {
+            event.end();
+            if (event.shouldCommit()) {
+                event.valid = ex == null;
+                event.commit();
+            }
+        });
+    }
+
+    // The lookup already runs on the database thread, so the null check follows it there
+    // instead of being handed back to this executor
+    private CompletableFuture<Group> validateSession(Long sessionId) {
+        return database.getGroupFromSession(sessionId).thenApply(group -> {
             if (group == null) {
-                System.out.println("Invalid session ID: " + sessionId);
+                Log.warn("Invalid session ID: {}", sessionId);
                 throw new IllegalArgumentException("invalid session ID");
             }
             return group;
-        }, executor);
+        });
     }
 
     private CompletableFuture<Person> getValidatedPerson(Long sessionId, int personId) {
-        return getValidatedGroup(sessionId).thenApplyAsync(group -> {
+        return getValidatedGroup(sessionId).thenApply(group -> {
             Person person = group.getMemberById(personId);
             if (person == null) {
-                System.out.println("Person ID: " + personId + " not found in group ID: " + group.getId());
+                Log.warn("Person ID: {} not found in group ID: {}", personId, group.getId());
                 throw new IllegalArgumentException("invalid personId");
             }
             return person;
-        }, executor);
+        });
     }
 
+    // Sign-in is started from this executor on purpose: its BCrypt check then queues behind the
+    // createGroup hashes already waiting here instead of taking CPU from them on the database
+    // thread, so a new group can be used as soon as possible
     public CompletableFuture<Long> newSession(int groupId, String password) {
         return CompletableFuture.completedFuture(null).thenComposeAsync(ignored -> {
             return database.signIn(groupId, password);
-        }, executor).thenApplyAsync(sessionId -> {
+        }, executor).thenApply(sessionId -> {
             if (sessionId != null) {
-                System.out.println("New session created with ID: " + sessionId);
+                Log.info("New session created with ID: {}", sessionId);
             } else {
-                System.out.println("Failed to create session for group ID: " + groupId);
+                Log.warn("Failed to create session for group ID: {}", groupId);
             }
             return sessionId;
-        }, executor);
+        });
     }
 
     public CompletableFuture<Integer> createGroup(String password) {
@@ -66,21 +95,23 @@ public class RestServer {
             Group group = new Group();
             group.setPassword(password);
             database.addGroup(group);
-            System.out.println("Created new group: with ID: " + group.getId());
+            Log.info("Created new group: with ID: {}", group.getId());
             return group.getId();
         }, executor);
     }
 
     public CompletableFuture<Void> deleteGroup(Long sessionId) {
-        return getValidatedGroup(sessionId).thenAcceptAsync(group -> {
+        return getValidatedGroup(sessionId).thenAccept(group -> {
             if (group == null) {
                 return;
             }
             database.removeGroup(group);
-            System.out.println("Deleted group with ID: " + group.getId());
-        }, executor);
+            Log.info("Deleted group with ID: {}", group.getId());
+        });
     }
 
+    // The duplicate check scans the group under its mutex, so like findClosestPerson it runs
+    // here rather than on the database thread
     public CompletableFuture<Integer> createPerson(Long sessionId, String info, float[] faceEmbedding) {
         return getValidatedGroup(sessionId).thenApplyAsync(group -> {
             if (group == null) {
@@ -89,64 +120,154 @@ public class RestServer {
             Person person = new Person();
             person.setInfo(info);
             person.setFaceEmbedding(faceEmbedding);
-            group.addMember(person);
-            System.out.println("Created new person with ID: " + person.getId() + " in group ID: " + group.getId());
+            float threshold = duplicateThreshold;
+            Person enrolled = person;
+            if (threshold > 0) {
+                enrolled = group.addMemberUnlessDuplicate(person, threshold);
+            } else {
+                group.addMember(person);
+            }
+            if (enrolled != person) {
+                duplicatesPrevented.increment();
+                Log.info("Face already enrolled as person ID: {} in group ID: {}", enrolled.getId(), group.getId());
+                return enrolled.getId();
+            }
+            Log.info("Created new person with ID: {} in group ID: {}", person.getId(), group.getId());
             return person.getId();
         }, executor);
     }
 
+    // For callers that already validated the session. Entries without an embedding are skipped
+    // (ID -1); the rest join the group in a single update, except duplicates of an enrolled
+    // face, which get that person's ID.
+    public CompletableFuture<int[]> createPersons(Group group, String[] infos, float[][] faceEmbeddings) {
+        return CompletableFuture.supplyAsync(() -> {
+            int[] ids = new int[infos.length];
+            List<Person> persons = new ArrayList<>(infos.length);
+            for (int i = 0; i < infos.length; i++) {
+                if (faceEmbeddings[i] == null) {
+                    ids[i] = -1;
+                    continue;
+                }
+                Person person = new Person();
+                person.setInfo(infos[i]);
+                person.setFaceEmbedding(faceEmbeddings[i]);
+                persons.add(person);
+            }
+            float threshold = duplicateThreshold;
+            Person[] enrolled;
+            if (threshold > 0) {
+                enrolled = group.addMembersUnlessDuplicate(persons, threshold);
+            } else {
+                group.addMembers(persons);
+                enrolled = persons.toArray(new Person[0]);
+            }
+            int created = 0;
+            for (int i = 0, p = 0; i < infos.length; i++) {
+                if (ids[i] == -1) continue;
+                Person person = enrolled[p];
+                if (person == persons.get(p)) {
+                    created++;
+                } else {
+                    duplicatesPrevented.increment();
+                }
+                ids[i] = person.getId();
+                p++;
+            }
+            Log.info("Created {} persons in group ID: {}", created, group.getId());
+            return ids;
+        }, executor);
+    }
+
+    public float getDuplicateThreshold() {
+        return duplicateThreshold;
+    }
+
+    // 0 or less disables the duplicate check
+    public void setDuplicateThreshold(float threshold) {
+        duplicateThreshold = threshold;
+    }
+
     public CompletableFuture<Void> deletePerson(Long sessionId, int personId) {
-        return getValidatedGroup(sessionId).thenAcceptAsync(group -> {
+        return getValidatedGroup(sessionId).thenAccept(group -> {
             if (group == null) {
                 return;
             }
             group.removeMember(personId);
-            System.out.println("Deleted person with ID: " + personId + " from group ID: " + group.getId());
-        }, executor);
+            Log.info("Deleted person with ID: {} from group ID: {}", personId, group.getId());
+        });
     }
 
     public CompletableFuture<Void> editPersonInfo(Long sessionId, int personId, String newInfo) {
-        return getValidatedPerson(sessionId, personId).thenAcceptAsync(person -> {
+        return getValidatedPerson(sessionId, personId).thenAccept(person -> {
             if (person == null) {
                 return;
             }
             person.setInfo(newInfo);
-            System.out.println("Updated info for person ID: " + personId);
-        }, executor);
+            Log.info("Updated info for person ID: {}", personId);
+        });
     }
 
     public CompletableFuture<Void> editPersonEmbedding(Long sessionId, int personId, float[] newEmbedding) {
-        return getValidatedPerson(sessionId, personId).thenAcceptAsync(person -> {
+        return getValidatedPerson(sessionId, personId).thenAccept(person -> {
             if (person == null) {
                 return;
             }
             person.setFaceEmbedding(newEmbedding);
-            System.out.println("Updated face embedding for person ID: " + personId);
-        }, executor);
+            Log.info("Updated face embedding for person ID: {}", personId);
+        });
     }
 
-    private CompletableFuture<Person> findClosestPerson(Long sessionId, float[] embedding) {
+    // Enrolls one more photo of the person, keeping at most Person.MAX_TEMPLATES
+    public CompletableFuture<Void> addPersonTemplate(Long sessionId, int personId, float[] embedding) {
+        return getValidatedPerson(sessionId, personId).thenAccept(person -> {
+            if (person == null) {
+                return;
+            }
+            person.addFaceTemplate(embedding);
+            Log.info("Added face template for person ID: {}", personId);
+        });
+    }
+
+    // The similarity scan is the only step here worth a thread of its own: it leaves the
+    // database thread so session lookups are not queued behind it
+    public CompletableFuture<Person> findClosestPerson(Long sessionId, float[] embedding) {
         return getValidatedGroup(sessionId).thenApplyAsync(group -> {
             if (group == null) {
                 return null;
             }
             Person closestPerson = group.getClosestMember(embedding);
             if (closestPerson != null) {
-                System.out.println("Found closest person with ID: " + closestPerson.getId() + " in group ID: " + group.getId());
+                Log.info("Found closest person with ID: {} in group ID: {}", closestPerson.getId(), group.getId());
             } else {
-                System.out.println("No members with face embeddings found in group ID: " + group.getId());
+                Log.info("No members with face embeddings found in group ID: {}", group.getId());
             }
             return closestPerson;
         }, executor);
     }
 
+    // For callers that already validated the session; results are in embeddings order
+    public CompletableFuture<Person[]> findClosestPersons(Group group, float[][] embeddings) {
+        return CompletableFuture.supplyAsync(() -> {
+            Person[] closest = group.getClosestMembers(embeddings);
+            Log.info("Matched {} faces against group ID: {}", embeddings.length, group.getId());
+            return closest;
+        }, executor);
+    }
+
+    // Searches the faces of every group, not just the session's; the caller only needs to be
+    // signed in. Matches are best first.
+    public CompletableFuture<List<FaceIndex.Match>> findFace(Long sessionId, float[] embedding, int k) {
+        return getValidatedGroup(sessionId).thenCompose(group -> database.findFace(embedding, k));
+    }
+
     public CompletableFuture<String> identifyPerson(Long sessionId, float[] embedding) {
-        return findClosestPerson(sessionId, embedding).thenApplyAsync(closestPerson -> {
+        return findClosestPerson(sessionId, embedding).thenApply(closestPerson -> {
             if (closestPerson != null) {
                 return closestPerson.getInfo();
             }
             return null;
-        }, executor);
+        });
     }
 
     public CompletableFuture<Void> shutdown() {
@@ -166,4 +287,18 @@ public class RestServer {
 
         return CompletableFuture.allOf(selfShutdown, dbShutdown);
     }
+
+    private static float parseThreshold(String value) {
+        if (value == null) {
+            return DEFAULT_DUPLICATE_THRESHOLD;
+        }
+        if (value.trim().equalsIgnoreCase("off")) {
+            return 0f;
+        }
+        try {
+            return Float.parseFloat(value.trim());
+        } catch (NumberFormatException e) {
+            return DEFAULT_DUPLICATE_THRESHOLD;
+        }
+    }
 }
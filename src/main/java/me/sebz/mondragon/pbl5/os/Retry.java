@@ -0,0 +1,175 @@
+package me.sebz.mondragon.pbl5.os;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+// Retries a failed operation with full-jitter exponential backoff: the n-th retry waits a
+// uniformly random time between 0 and min(maxDelay, baseDelay * 2^n), so callers that failed
+// together do not come back together. Each retry spends a token from the process-wide budget
+// and from the caller's own; successes earn tokens back. When either budget is empty the
+// operation fails with its last error instead of adding load to a struggling downstream.
+public class Retry {
+
+    public static class Budget {
+        private final String name;
+        private final double maxTokens;
+        private final double tokensPerSuccess;
+        private final Lock mutex = new ReentrantLock();
+        private double tokens;
+
+        public Budget(String name, double maxTokens, double tokensPerSuccess) {
+            this.name = name;
+            this.maxTokens = maxTokens;
+            this.tokensPerSuccess = tokensPerSuccess;
+            this.tokens = maxTokens;
+        }
+
+        public double getTokens() {
+            mutex.lock();
+            try {
+                return tokens;
+            } finally {
+                mutex.unlock();
+            }
+        }
+
+        boolean tryWithdraw() {
+            mutex.lock();
+            try {
+                if (tokens < 1) {
+                    return false;
+                }
+                tokens -= 1;
+                return true;
+            } finally {
+                mutex.unlock();
+            }
+        }
+
+        void refund() {
+            mutex.lock();
+            try {
+                tokens = Math.min(maxTokens, tokens + 1);
+            } finally {
+                mutex.unlock();
+            }
+        }
+
+        void deposit() {
+            mutex.lock();
+            try {
+                tokens = Math.min(maxTokens, tokens + tokensPerSuccess);
+            } finally {
+                mutex.unlock();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    // At most one retry per success across the process, plus a burst of 100
+    static final Budget GLOBAL = new Budget("global", 100, 1);
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "RetrySchedulerThread");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final Metrics.Counter retries =
+            Metrics.counter("retries_total", "Failed attempts that were retried");
+    private static final Metrics.Counter giveUps =
+            Metrics.counter("retry_give_ups_total", "Operations that failed after exhausting their attempts");
+    private static final Metrics.Counter budgetExhausted =
+            Metrics.counter("retry_budget_exhausted_total", "Retries skipped because a retry budget was empty");
+
+    static {
+        Metrics.gauge("retry_budget_tokens", "Retries the process-wide budget still allows",
+                () -> (long) GLOBAL.getTokens());
+    }
+
+    private final int maxAttempts;
+    private final long baseDelayMs;
+    private final long maxDelayMs;
+    private final Budget callerBudget;
+    private final Budget globalBudget;
+
+    public Retry(int maxAttempts, long baseDelayMs, long maxDelayMs, Budget callerBudget) {
+        this(maxAttempts, baseDelayMs, maxDelayMs, callerBudget, GLOBAL);
+    }
+
+    Retry(int maxAttempts, long baseDelayMs, long maxDelayMs, Budget callerBudget, Budget globalBudget) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1");
+        }
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMs = baseDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.callerBudget = callerBudget;
+        this.globalBudget = globalBudget;
+    }
+
+    public <T> CompletableFuture<T> execute(Supplier<CompletableFuture<T>> operation) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        attempt(operation, 1, result);
+        return result;
+    }
+
+    long delayFor(int retry) {
+        long ceiling = Math.min(maxDelayMs, baseDelayMs << Math.min(retry - 1, 30));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    private <T> void attempt(Supplier<CompletableFuture<T>> operation, int attempt, CompletableFuture<T> result) {
+        CompletableFuture<T> future;
+        try {
+            future = operation.get();
+        } catch (RuntimeException e) {
+            future = CompletableFuture.failedFuture(e);
+        }
+        future.whenComplete((value, ex) -> {
+            if (ex == null) {
+                callerBudget.deposit();
+                globalBudget.deposit();
+                result.complete(value);
+                return;
+            }
+            Log.warn("Attempt {} failed: {}", attempt, ex);
+            if (attempt >= maxAttempts) {
+                giveUps.increment();
+                Log.error("Max attempts ({}) reached. Giving up.", maxAttempts);
+                result.completeExceptionally(ex);
+                return;
+            }
+            if (!withdraw()) {
+                budgetExhausted.increment();
+                giveUps.increment();
+                result.completeExceptionally(ex);
+                return;
+            }
+            retries.increment();
+            long delayMs = delayFor(attempt);
+            Log.debug("Retrying in {} ms...", delayMs);
+            scheduler.schedule(() -> attempt(operation, attempt + 1, result), delayMs, TimeUnit.MILLISECONDS);
+        });
+    }
+
+    private boolean withdraw() {
+        if (!callerBudget.tryWithdraw()) {
+            return false;
+        }
+        if (!globalBudget.tryWithdraw()) {
+            callerBudget.refund();
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,247 @@
+package me.sebz.mondragon.pbl5.os;
+
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Histogram;
+
+// Discrete-event model of phones pressing the button against the detect and embedding
+// workers. Time is virtual: events wait in a priority queue ordered by due time and the clock
+// jumps straight to the next one, so a simulated day of thousands of phones takes seconds.
+// Phones press every PRESS_MIN_INTERVAL_MS to PRESS_MAX_INTERVAL_MS as in PhoneManager, the
+// servers take the same delays and find a face as often as the real ones, and requests beyond
+// the admission limit are rejected as the analysis limiter would. Every draw comes from one
+// Random seeded by the caller, in event order, so a configuration gives the same report on
+// every run.
+public class Simulation {
+
+    // Seeds the random sources of the real servers as well, see newRandom
+    public static final String SEED_PROPERTY = "garaitu.seed";
+    public static final int DEFAULT_ADMISSION_LIMIT = 512;
+    // Fixed rather than NodeRedServer's, which follows the host, so a seed gives the same report anywhere
+    public static final int DEFAULT_WORKERS = 4;
+
+    private static final long HIGHEST_TRACKABLE_MICROS = TimeUnit.HOURS.toMicros(1);
+    private static final int SIGNIFICANT_DIGITS = 3;
+    private static final Long SEED = parseSeed(System.getProperty(SEED_PROPERTY));
+
+    private static final class Event implements Comparable<Event> {
+        final long time;
+        final long sequence;
+        final Runnable action;
+
+        Event(long time, long sequence, Runnable action) {
+            this.time = time;
+            this.sequence = sequence;
+            this.action = action;
+        }
+
+        // Ties run in scheduling order
+        @Override
+        public int compareTo(Event other) {
+            int byTime = Long.compare(time, other.time);
+            return byTime != 0 ? byTime : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private static final class Request {
+        final long pressedAt;
+        long enqueuedAt;
+        // What to do when the current station is done with it
+        Runnable next;
+
+        Request(long pressedAt) {
+            this.pressedAt = pressedAt;
+        }
+    }
+
+    // A pool of identical workers in front of one FIFO queue
+    private final class Station {
+        final String name;
+        final int workers;
+        final int minDelayMs;
+        final int maxDelayMs;
+        final Queue<Request> queue = new ArrayDeque<>();
+        final Histogram waits = new Histogram(HIGHEST_TRACKABLE_MICROS, SIGNIFICANT_DIGITS);
+        int busy;
+        int maxDepth;
+        long busyMicros;
+
+        Station(String name, int workers, int minDelayMs, int maxDelayMs) {
+            this.name = name;
+            this.workers = workers;
+            this.minDelayMs = minDelayMs;
+            this.maxDelayMs = maxDelayMs;
+        }
+
+        void arrive(Request request, Runnable next) {
+            request.enqueuedAt = now;
+            request.next = next;
+            if (busy < workers) {
+                serve(request);
+            } else {
+                queue.add(request);
+                maxDepth = Math.max(maxDepth, queue.size());
+            }
+        }
+
+        private void serve(Request request) {
+            busy++;
+            waits.recordValue(Math.min(now - request.enqueuedAt, HIGHEST_TRACKABLE_MICROS));
+            long service = TimeUnit.MILLISECONDS.toMicros(maxDelayMs > minDelayMs ? random.nextInt(minDelayMs, maxDelayMs) : maxDelayMs);
+            schedule(service, () -> {
+                busy--;
+                busyMicros += service;
+                if (!queue.isEmpty()) {
+                    serve(queue.poll());
+                }
+                request.next.run();
+            });
+        }
+    }
+
+    private final Random random;
+    private final int phones;
+    private final int admissionLimit;
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+    private final Station detect;
+    private final Station embedding;
+    private final Histogram latencies = new Histogram(HIGHEST_TRACKABLE_MICROS, SIGNIFICANT_DIGITS);
+    private long now;
+    private long sequence;
+    private boolean ran;
+    private long inFlight;
+    private long pressed;
+    private long rejected;
+    private long noFace;
+
+    public Simulation(long seed, int phones) {
+        this(seed, phones, DEFAULT_WORKERS, DEFAULT_ADMISSION_LIMIT);
+    }
+
+    public Simulation(long seed, int phones, int workers, int admissionLimit) {
+        if (phones < 0 || workers < 1 || admissionLimit < 1) {
+            throw new IllegalArgumentException("phones must not be negative, workers and admission limit must be positive");
+        }
+        this.random = new Random(seed);
+        this.phones = phones;
+        this.admissionLimit = admissionLimit;
+        detect = new Station("detect", workers, FaceDetectServer.DEFAULT_MIN_DELAY_MS, FaceDetectServer.DEFAULT_MAX_DELAY_MS);
+        embedding = new Station("embedding", workers, FaceEmbeddingServer.DEFAULT_MIN_DELAY_MS, FaceEmbeddingServer.DEFAULT_MAX_DELAY_MS);
+    }
+
+    // Runs the model for the given virtual time and reports on it; a simulation runs once
+    public String run(long durationMs) {
+        if (ran) {
+            throw new IllegalStateException("simulation already ran");
+        }
+        ran = true;
+        long end = TimeUnit.MILLISECONDS.toMicros(durationMs);
+        for (int i = 0; i < phones; i++) {
+            // Phones start out of step, as they do when added through PhoneManager
+            schedule(random.nextLong(TimeUnit.MILLISECONDS.toMicros(PhoneManager.PRESS_MAX_INTERVAL_MS)), this::press);
+        }
+        while (!events.isEmpty() && events.peek().time <= end) {
+            Event event = events.poll();
+            now = event.time;
+            event.action.run();
+        }
+        now = end;
+        return report();
+    }
+
+    public long getPressed() {
+        return pressed;
+    }
+
+    public long getRejected() {
+        return rejected;
+    }
+
+    public long getNoFace() {
+        return noFace;
+    }
+
+    // End-to-end latencies of the identified presses, in microseconds
+    public Histogram getLatencies() {
+        return latencies.copy();
+    }
+
+    public String report() {
+        double seconds = Math.max(1e-9, now / 1e6);
+        StringBuilder line = new StringBuilder();
+        line.append(String.format(Locale.ROOT, "simulated=%.0fs phones=%d", seconds, phones))
+            .append(" pressed=").append(pressed)
+            .append(" rejected=").append(rejected)
+            .append(" no-face=").append(noFace)
+            .append(" in-flight=").append(inFlight)
+            .append("; identified: n=").append(latencies.getTotalCount())
+            .append(String.format(Locale.ROOT, " %.1f/s", latencies.getTotalCount() / seconds))
+            .append(" p50=").append(millis(latencies.getValueAtPercentile(50)))
+            .append(" p99=").append(millis(latencies.getValueAtPercentile(99)))
+            .append(" max=").append(millis(latencies.getMaxValue()));
+        for (Station station : new Station[]{detect, embedding}) {
+            line.append("; ").append(station.name)
+                .append(String.format(Locale.ROOT, ": utilization=%.1f%%", 100.0 * station.busyMicros / (station.workers * Math.max(1, now))))
+                .append(" wait p50=").append(millis(station.waits.getValueAtPercentile(50)))
+                .append(" p99=").append(millis(station.waits.getValueAtPercentile(99)))
+                .append(" max=").append(millis(station.waits.getMaxValue()))
+                .append(" max-depth=").append(station.maxDepth);
+        }
+        return line.toString();
+    }
+
+    // A source for the real servers' simulated behavior: seeded from -Dgaraitu.seed when it is
+    // set, so their draws repeat from run to run, and a SecureRandom otherwise. Each stream
+    // name gets its own sequence.
+    public static Random newRandom(String stream) {
+        return SEED == null ? new SecureRandom() : new Random(SEED * 31 + stream.hashCode());
+    }
+
+    private void press() {
+        pressed++;
+        schedule(TimeUnit.MILLISECONDS.toMicros(random.nextInt(PhoneManager.PRESS_MIN_INTERVAL_MS, PhoneManager.PRESS_MAX_INTERVAL_MS)), this::press);
+        if (inFlight >= admissionLimit) {
+            rejected++;
+            return;
+        }
+        inFlight++;
+        Request request = new Request(now);
+        detect.arrive(request, () -> {
+            if (!random.nextBoolean()) {
+                noFace++;
+                inFlight--;
+                return;
+            }
+            embedding.arrive(request, () -> {
+                latencies.recordValue(Math.min(now - request.pressedAt, HIGHEST_TRACKABLE_MICROS));
+                inFlight--;
+            });
+        });
+    }
+
+    private void schedule(long delayMicros, Runnable action) {
+        events.add(new Event(now + delayMicros, sequence++, action));
+    }
+
+    private static Long parseSeed(String value) {
+        if (value == null || value.isBlank()) {
+            return null;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            Log.warn("Ignoring {}={}: not a number", SEED_PROPERTY, value);
+            return null;
+        }
+    }
+
+    private static String millis(long micros) {
+        return String.format(Locale.ROOT, "%.1fms", micros / 1000.0);
+    }
+}
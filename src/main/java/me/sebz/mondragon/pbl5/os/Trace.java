@@ -0,0 +1,145 @@
+package me.sebz.mondragon.pbl5.os;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+// Timings of one request as it crosses the NodeRedServer, RestServer and Database executors
+// and the analysis workers. NodeRedServer starts one per operation and passes it explicitly
+// to every stage and analysis Task; spans can be recorded from any thread. finish() hands
+// the trace to the TraceSampler.
+public final class Trace {
+
+    private static final AtomicLong ids = new AtomicLong();
+
+    public static final class Span {
+        final String name;
+        final String thread;
+        final long startNanos;
+        final long endNanos;
+        final boolean failed;
+
+        Span(String name, String thread, long startNanos, long endNanos, boolean failed) {
+            this.name = name;
+            this.thread = thread;
+            this.startNanos = startNanos;
+            this.endNanos = endNanos;
+            this.failed = failed;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getThread() {
+            return thread;
+        }
+
+        public long getDurationNanos() {
+            return endNanos - startNanos;
+        }
+
+        public boolean isFailed() {
+            return failed;
+        }
+    }
+
+    private final long id;
+    private final String operation;
+    private final long startNanos;
+    private final Queue<Span> spans = new ConcurrentLinkedQueue<>();
+    private volatile long endNanos;
+    private volatile String error;
+
+    private Trace(String operation) {
+        this.id = ids.incrementAndGet();
+        this.operation = operation;
+        this.startNanos = System.nanoTime();
+    }
+
+    public static Trace start(String operation) {
+        return new Trace(operation);
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public boolean isFinished() {
+        return endNanos != 0;
+    }
+
+    // Until finish() is called this is the time elapsed so far
+    public long getDurationNanos() {
+        long end = endNanos;
+        return (end != 0 ? end : System.nanoTime()) - startNanos;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    // Spans ordered by start time
+    public List<Span> getSpans() {
+        List<Span> ordered = new ArrayList<>(spans);
+        ordered.sort(Comparator.comparingLong(span -> span.startNanos));
+        return ordered;
+    }
+
+    // Ends on the thread that records it
+    public void record(String name, long startNanos, long endNanos, boolean failed) {
+        spans.add(new Span(name, Thread.currentThread().getName(), startNanos, endNanos, failed));
+    }
+
+    // Times a stage from the call until its future completes
+    public <T> CompletableFuture<T> span(String name, Supplier<CompletableFuture<T>> stage) {
+        long start = System.nanoTime();
+        CompletableFuture<T> future;
+        try {
+            future = stage.get();
+        } catch (RuntimeException e) {
+            record(name, start, System.nanoTime(), true);
+            throw e;
+        }
+        return future.whenComplete((result, ex) -> record(name, start, System.nanoTime(), ex != null));
+    }
+
+    public void finish(Throwable failure) {
+        if (failure != null) {
+            Throwable cause = failure.getCause() != null ? failure.getCause() : failure;
+            error = cause.getClass().getSimpleName() + ": " + cause.getMessage();
+        }
+        endNanos = System.nanoTime();
+        TraceSampler.offer(this);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder(128 + 64 * spans.size());
+        out.append("trace ").append(id).append(' ').append(operation)
+           .append(' ').append(millis(getDurationNanos()))
+           .append(error == null ? " ok" : " failed (" + error + ")").append('\n');
+        for (Span span : getSpans()) {
+            out.append("  +").append(millis(span.startNanos - startNanos))
+               .append(' ').append(span.name)
+               .append(' ').append(millis(span.getDurationNanos()))
+               .append(span.failed ? " failed" : "")
+               .append(" [").append(span.thread).append("]\n");
+        }
+        return out.toString();
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.1fms", nanos / 1e6);
+    }
+}
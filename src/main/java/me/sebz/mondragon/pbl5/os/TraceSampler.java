@@ -0,0 +1,78 @@
+package me.sebz.mondragon.pbl5.os;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Keeps the slowest completed traces. Once it is full, a trace faster than the fastest kept
+// one is rejected by a volatile read without taking the lock, so the common case is cheap.
+public final class TraceSampler {
+
+    private static final int CAPACITY = 32;
+
+    private static final Lock mutex = new ReentrantLock();
+    // Min-heap on duration: the head is the first to be evicted
+    private static final PriorityQueue<Trace> slowest =
+            new PriorityQueue<>(CAPACITY, Comparator.comparingLong(Trace::getDurationNanos));
+    private static final LongAdder seen = new LongAdder();
+    private static volatile long threshold;
+
+    private TraceSampler() {
+    }
+
+    static void offer(Trace trace) {
+        seen.increment();
+        long duration = trace.getDurationNanos();
+        if (duration <= threshold) {
+            return;
+        }
+        mutex.lock();
+        try {
+            slowest.add(trace);
+            if (slowest.size() > CAPACITY) {
+                slowest.poll();
+            }
+            if (slowest.size() == CAPACITY) {
+                threshold = slowest.peek().getDurationNanos();
+            }
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    // Slowest first
+    public static List<Trace> getSlowest(int limit) {
+        List<Trace> traces;
+        mutex.lock();
+        try {
+            traces = new ArrayList<>(slowest);
+        } finally {
+            mutex.unlock();
+        }
+        traces.sort(Comparator.comparingLong(Trace::getDurationNanos).reversed());
+        return traces.subList(0, Math.max(0, Math.min(limit, traces.size())));
+    }
+
+    public static String dump(int limit) {
+        StringBuilder out = new StringBuilder();
+        out.append("traces seen: ").append(seen.sum()).append('\n');
+        for (Trace trace : getSlowest(limit)) {
+            out.append(trace);
+        }
+        return out.toString();
+    }
+
+    public static void clear() {
+        mutex.lock();
+        try {
+            slowest.clear();
+            threshold = 0;
+        } finally {
+            mutex.unlock();
+        }
+    }
+}
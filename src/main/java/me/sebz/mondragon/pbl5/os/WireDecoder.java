@@ -0,0 +1,165 @@
+package me.sebz.mondragon.pbl5.os;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+// Flyweight over a buffer holding one frame: fields are read in place, only
+// strings and caller-requested arrays are materialized.
+public class WireDecoder {
+
+    private ByteBuffer buffer;
+    private int start;
+    private byte type;
+    private byte flags;
+    private int payloadLength;
+
+    // Returns the length of the complete frame at the buffer's position, or -1 if more bytes are needed
+    public static int frameLength(ByteBuffer in) {
+        int position = in.position();
+        if (in.remaining() < WireFormat.HEADER_SIZE) {
+            return -1;
+        }
+        if (in.get(position) != WireFormat.MAGIC) {
+            throw new IllegalArgumentException("not a frame");
+        }
+        if (in.get(position + 1) != WireFormat.VERSION) {
+            throw new IllegalArgumentException("unsupported frame version " + in.get(position + 1));
+        }
+        int length = (in.get(position + 4) & 0xFF)
+                | (in.get(position + 5) & 0xFF) << 8
+                | (in.get(position + 6) & 0xFF) << 16
+                | (in.get(position + 7) & 0xFF) << 24;
+        if (length < 0 || length > WireFormat.MAX_PAYLOAD) {
+            throw new IllegalArgumentException("frame payload of " + length + " bytes");
+        }
+        int total = WireFormat.HEADER_SIZE + length;
+        return in.remaining() >= total ? total : -1;
+    }
+
+    // Positions the decoder on the frame at the buffer's position and moves the buffer past it.
+    // The buffer is switched to little-endian order.
+    public WireDecoder wrap(ByteBuffer in) {
+        int length = frameLength(in);
+        if (length < 0) {
+            throw new IllegalArgumentException("incomplete frame");
+        }
+        buffer = in;
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        start = in.position();
+        type = in.get(start + 2);
+        flags = in.get(start + 3);
+        payloadLength = length - WireFormat.HEADER_SIZE;
+        in.position(start + length);
+        return this;
+    }
+
+    public byte type() {
+        return type;
+    }
+
+    public boolean isFloat16() {
+        return (flags & WireFormat.FLAG_FLOAT16) != 0;
+    }
+
+    public int payloadLength() {
+        return payloadLength;
+    }
+
+    public long sessionId() {
+        expect(WireFormat.TYPE_IDENTIFY_REQUEST);
+        require(Long.BYTES);
+        return buffer.getLong(payload());
+    }
+
+    public int embeddingDimensions() {
+        int offset = embeddingOffset();
+        require(offset - payload() + Short.BYTES);
+        return buffer.getShort(offset) & 0xFFFF;
+    }
+
+    // Copies the embedding into dst (which must hold embeddingDimensions() values) and returns dst
+    public float[] readEmbedding(float[] dst) {
+        int dimensions = embeddingDimensions();
+        int offset = embeddingOffset();
+        int width = isFloat16() ? Short.BYTES : Float.BYTES;
+        if (Short.BYTES + dimensions * width > payloadLength - (offset - payload())) {
+            throw new IllegalArgumentException("truncated embedding");
+        }
+        offset += Short.BYTES;
+        if (isFloat16()) {
+            for (int i = 0; i < dimensions; i++, offset += Short.BYTES) {
+                dst[i] = WireFormat.fromFloat16(buffer.getShort(offset));
+            }
+        } else {
+            for (int i = 0; i < dimensions; i++, offset += Float.BYTES) {
+                dst[i] = buffer.getFloat(offset);
+            }
+        }
+        return dst;
+    }
+
+    public float[] readEmbedding() {
+        return readEmbedding(new float[embeddingDimensions()]);
+    }
+
+    public byte status() {
+        expect(WireFormat.TYPE_IDENTIFY_RESULT);
+        require(1);
+        return buffer.get(payload());
+    }
+
+    public int personId() {
+        expect(WireFormat.TYPE_IDENTIFY_RESULT);
+        require(1 + Integer.BYTES);
+        return buffer.getInt(payload() + 1);
+    }
+
+    public String info() {
+        expect(WireFormat.TYPE_IDENTIFY_RESULT);
+        return readString(payload() + 1 + Integer.BYTES);
+    }
+
+    public String errorMessage() {
+        expect(WireFormat.TYPE_ERROR);
+        return readString(payload());
+    }
+
+    private int payload() {
+        return start + WireFormat.HEADER_SIZE;
+    }
+
+    private int embeddingOffset() {
+        if (type == WireFormat.TYPE_EMBEDDING) {
+            return payload();
+        }
+        expect(WireFormat.TYPE_IDENTIFY_REQUEST);
+        return payload() + Long.BYTES;
+    }
+
+    private String readString(int offset) {
+        require(offset - payload() + Short.BYTES);
+        int length = buffer.getShort(offset) & 0xFFFF;
+        if (length == 0xFFFF) {
+            return null;
+        }
+        if (offset + Short.BYTES + length > payload() + payloadLength) {
+            throw new IllegalArgumentException("truncated string");
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(offset + Short.BYTES, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void require(int bytes) {
+        if (payloadLength < bytes) {
+            throw new IllegalArgumentException("truncated frame");
+        }
+    }
+
+    private void expect(byte expected) {
+        if (type != expected) {
+            throw new IllegalArgumentException("frame type " + type + " is not " + expected);
+        }
+    }
+}
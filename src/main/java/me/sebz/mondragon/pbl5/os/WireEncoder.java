@@ -0,0 +1,192 @@
+package me.sebz.mondragon.pbl5.os;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.CompletionException;
+
+// Writes frames straight into the caller's buffer (switching it to little-endian) starting
+// at its position, which is left just past the frame. Every method returns the bytes written.
+public final class WireEncoder {
+
+    private WireEncoder() {
+    }
+
+    public static int embeddingSize(int dimensions, boolean float16) {
+        return WireFormat.HEADER_SIZE + embeddingPayloadSize(dimensions, float16);
+    }
+
+    public static int identifyRequestSize(int dimensions, boolean float16) {
+        return WireFormat.HEADER_SIZE + Long.BYTES + embeddingPayloadSize(dimensions, float16);
+    }
+
+    public static int identifyResultMaxSize(String info) {
+        return WireFormat.HEADER_SIZE + 1 + Integer.BYTES + Short.BYTES + maxStringLength(info);
+    }
+
+    public static int identifyResultMaxSize(Person match, Throwable error) {
+        return identifyResultMaxSize(error != null ? errorMessage(error) : match != null ? match.getInfo() : null);
+    }
+
+    public static int errorMaxSize(String message) {
+        return WireFormat.HEADER_SIZE + Short.BYTES + maxStringLength(message);
+    }
+
+    public static int encodeEmbedding(ByteBuffer out, float[] embedding, boolean float16) {
+        int start = beginFrame(out, WireFormat.TYPE_EMBEDDING, float16 ? WireFormat.FLAG_FLOAT16 : 0);
+        putEmbedding(out, embedding, float16);
+        return endFrame(out, start);
+    }
+
+    public static int encodeIdentifyRequest(ByteBuffer out, long sessionId, float[] embedding, boolean float16) {
+        int start = beginFrame(out, WireFormat.TYPE_IDENTIFY_REQUEST, float16 ? WireFormat.FLAG_FLOAT16 : 0);
+        out.putLong(sessionId);
+        putEmbedding(out, embedding, float16);
+        return endFrame(out, start);
+    }
+
+    public static int encodeIdentifyResult(ByteBuffer out, byte status, int personId, String info) {
+        int start = beginFrame(out, WireFormat.TYPE_IDENTIFY_RESULT, (byte) 0);
+        out.put(status);
+        out.putInt(personId);
+        putString(out, info);
+        return endFrame(out, start);
+    }
+
+    // Maps the outcome of an identify call: overload, error, no member close enough, or the matched person
+    public static int encodeIdentifyResult(ByteBuffer out, Person match, Throwable error) {
+        if (error != null) {
+            byte status = causeOf(error) instanceof OverloadException ? WireFormat.STATUS_OVERLOADED : WireFormat.STATUS_ERROR;
+            return encodeIdentifyResult(out, status, -1, errorMessage(error));
+        }
+        if (match == null) {
+            return encodeIdentifyResult(out, WireFormat.STATUS_NO_MATCH, -1, null);
+        }
+        return encodeIdentifyResult(out, WireFormat.STATUS_MATCH, match.getId(), match.getInfo());
+    }
+
+    public static int encodeError(ByteBuffer out, String message) {
+        int start = beginFrame(out, WireFormat.TYPE_ERROR, (byte) 0);
+        putString(out, message);
+        return endFrame(out, start);
+    }
+
+    // UTF-8 without going through String.getBytes; returns the number of bytes written
+    public static int putUtf8(ByteBuffer out, CharSequence text) {
+        int start = out.position();
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xC0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, text.charAt(++i));
+                out.put((byte) (0xF0 | (cp >> 18)));
+                out.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                out.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (cp & 0x3F)));
+            } else {
+                out.put((byte) (0xE0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+        return out.position() - start;
+    }
+
+    private static String errorMessage(Throwable error) {
+        return causeOf(error).getMessage();
+    }
+
+    private static Throwable causeOf(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+
+    static int maxUtf8Length(CharSequence text) {
+        return text == null ? 0 : text.length() * 3;
+    }
+
+    // How many chars of text fit in maxBytes of UTF-8 without splitting a surrogate pair
+    static int fittingChars(CharSequence text, int maxBytes) {
+        int bytes = 0;
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            int chars = 1;
+            int size;
+            if (c < 0x80) {
+                size = 1;
+            } else if (c < 0x800) {
+                size = 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                size = 4;
+                chars = 2;
+            } else {
+                size = 3;
+            }
+            if (bytes + size > maxBytes) {
+                break;
+            }
+            bytes += size;
+            i += chars;
+        }
+        return i;
+    }
+
+    private static int maxStringLength(String text) {
+        return Math.min(maxUtf8Length(text), WireFormat.MAX_STRING_BYTES);
+    }
+
+    private static int embeddingPayloadSize(int dimensions, boolean float16) {
+        return Short.BYTES + dimensions * (float16 ? Short.BYTES : Float.BYTES);
+    }
+
+    private static int beginFrame(ByteBuffer out, byte type, byte flags) {
+        int start = out.position();
+        out.order(ByteOrder.LITTLE_ENDIAN);
+        out.put(WireFormat.MAGIC);
+        out.put(WireFormat.VERSION);
+        out.put(type);
+        out.put(flags);
+        out.putInt(0); // payload length, patched by endFrame
+        return start;
+    }
+
+    private static int endFrame(ByteBuffer out, int start) {
+        int length = out.position() - start;
+        out.putInt(start + 4, length - WireFormat.HEADER_SIZE);
+        return length;
+    }
+
+    private static void putEmbedding(ByteBuffer out, float[] embedding, boolean float16) {
+        out.putShort((short) embedding.length);
+        if (float16) {
+            for (float value : embedding) {
+                out.putShort(WireFormat.toFloat16(value));
+            }
+        } else {
+            for (float value : embedding) {
+                out.putFloat(value);
+            }
+        }
+    }
+
+    // Length-prefixed UTF-8, truncated to MAX_STRING_BYTES; null is encoded as length 0xFFFF
+    private static void putString(ByteBuffer out, String text) {
+        if (text == null) {
+            out.putShort((short) 0xFFFF);
+            return;
+        }
+        CharSequence fitting = text;
+        if (text.length() * 3 > WireFormat.MAX_STRING_BYTES) {
+            fitting = text.subSequence(0, fittingChars(text, WireFormat.MAX_STRING_BYTES));
+        }
+        int lengthAt = out.position();
+        out.putShort((short) 0);
+        int length = putUtf8(out, fitting);
+        out.putShort(lengthAt, (short) length);
+    }
+}
@@ -0,0 +1,90 @@
+package me.sebz.mondragon.pbl5.os;
+
+// Binary framing shared by the TCP control port and the HTTP front end.
+//
+//   magic u8 | version u8 | type u8 | flags u8 | payload length u32 | payload
+//
+// All multi-byte values are little-endian. The magic byte is not valid UTF-8
+// at the start of a character, so a connection can mix text commands and frames.
+public final class WireFormat {
+
+    public static final byte MAGIC = (byte) 0xFA;
+    public static final byte VERSION = 1;
+    public static final int HEADER_SIZE = 8;
+    public static final int MAX_PAYLOAD = 64 * 1024;
+    // Longer strings (a person's info, an error message) are cut at a character boundary
+    public static final int MAX_STRING_BYTES = 16 * 1024;
+
+    public static final byte TYPE_EMBEDDING = 1;
+    public static final byte TYPE_IDENTIFY_REQUEST = 2;
+    public static final byte TYPE_IDENTIFY_RESULT = 3;
+    public static final byte TYPE_ERROR = 4;
+
+    public static final byte FLAG_FLOAT16 = 1;
+
+    public static final byte STATUS_MATCH = 0;
+    public static final byte STATUS_NO_MATCH = 1;
+    public static final byte STATUS_ERROR = 2;
+    // Rejected by admission control; nothing was done and the request can be retried
+    public static final byte STATUS_OVERLOADED = 3;
+
+    public static final String CONTENT_TYPE = "application/x-garaitu-frame";
+
+    private WireFormat() {
+    }
+
+    // IEEE 754 binary16 conversion with round-to-nearest-even (Float.floatToFloat16 needs JDK 20)
+    public static short toFloat16(float value) {
+        int bits = Float.floatToRawIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int exponent = (bits >>> 23) & 0xFF;
+        int mantissa = bits & 0x7FFFFF;
+
+        if (exponent == 0xFF) {
+            return (short) (sign | 0x7C00 | (mantissa != 0 ? 0x200 | (mantissa >>> 13) : 0));
+        }
+        int halfExponent = exponent - 127 + 15;
+        if (halfExponent >= 0x1F) {
+            return (short) (sign | 0x7C00);
+        }
+        if (halfExponent <= 0) {
+            if (halfExponent < -10) {
+                return (short) sign;
+            }
+            mantissa |= 0x800000;
+            int shift = 14 - halfExponent;
+            int half = mantissa >>> shift;
+            int remainder = mantissa & ((1 << shift) - 1);
+            int halfway = 1 << (shift - 1);
+            if (remainder > halfway || (remainder == halfway && (half & 1) != 0)) {
+                half++;
+            }
+            return (short) (sign | half);
+        }
+        int half = (halfExponent << 10) | (mantissa >>> 13);
+        int remainder = mantissa & 0x1FFF;
+        if (remainder > 0x1000 || (remainder == 0x1000 && (half & 1) != 0)) {
+            half++;
+        }
+        return (short) (sign | half);
+    }
+
+    public static float fromFloat16(short value) {
+        int bits = value & 0xFFFF;
+        int sign = (bits & 0x8000) << 16;
+        int exponent = (bits >>> 10) & 0x1F;
+        int mantissa = bits & 0x3FF;
+
+        if (exponent == 0x1F) {
+            return Float.intBitsToFloat(sign | 0x7F800000 | (mantissa << 13));
+        }
+        if (exponent == 0) {
+            if (mantissa == 0) {
+                return Float.intBitsToFloat(sign);
+            }
+            float subnormal = mantissa * 0x1p-24f;
+            return sign == 0 ? subnormal : -subnormal;
+        }
+        return Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (mantissa << 13));
+    }
+}
@@ -0,0 +1,115 @@
+package me.sebz.mondragon.pbl5.os;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+class CircuitBreakerTest {
+
+    private static CompletableFuture<String> fail(RuntimeException e) {
+        return CompletableFuture.failedFuture(e);
+    }
+
+    private static void failTimes(CircuitBreaker breaker, int times) {
+        for (int i = 0; i < times; i++) {
+            breaker.call(() -> fail(new IllegalStateException("down")));
+        }
+    }
+
+    @Test
+    void testOpensOnFailuresAndFailsFast() {
+        CircuitBreaker breaker = new CircuitBreaker("test-open", 4, 4, 0.5, 60_000);
+        breaker.call(() -> CompletableFuture.completedFuture("ok"));
+        breaker.call(() -> CompletableFuture.completedFuture("ok"));
+        failTimes(breaker, 1);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        failTimes(breaker, 1);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        AtomicInteger calls = new AtomicInteger();
+        CompletionException e = assertThrows(CompletionException.class, () -> breaker.call(() -> {
+            calls.incrementAndGet();
+            return CompletableFuture.completedFuture("ok");
+        }).join());
+        assertTrue(e.getCause() instanceof CircuitBreaker.CircuitOpenException);
+        assertTrue(e.getCause() instanceof OverloadException);
+        assertEquals(0, calls.get());
+
+        List<CompletableFuture<String>> batch = breaker.callAll(3, () -> List.of());
+        assertEquals(3, batch.size());
+        assertTrue(batch.get(2).isCompletedExceptionally());
+    }
+
+    @Test
+    void testBusinessErrorsDoNotCount() {
+        CircuitBreaker breaker = new CircuitBreaker("test-business", 4, 4, 0.5, 60_000);
+        for (int i = 0; i < 10; i++) {
+            breaker.call(() -> fail(new IllegalArgumentException("No Face")));
+            breaker.call(() -> fail(new OverloadException("analysis requests are at the limit of 2")));
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    void testHalfOpenProbe() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker("test-probe", 2, 2, 0.5, 20);
+        failTimes(breaker, 2);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        Thread.sleep(40);
+
+        // One probe at a time; a failed probe reopens the breaker
+        CompletableFuture<String> probe = new CompletableFuture<>();
+        assertFalse(breaker.call(() -> probe).isDone());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertThrows(CompletionException.class, () -> breaker.call(() -> CompletableFuture.completedFuture("x")).join());
+        probe.completeExceptionally(new IllegalStateException("still down"));
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        Thread.sleep(40);
+        assertEquals("up", breaker.call(() -> CompletableFuture.completedFuture("up")).join());
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    void testOnlyTheProbeLeavesHalfOpen() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker("test-probe-only", 2, 2, 0.5, 20);
+        // Admitted while closed, answers only after the breaker has opened
+        CompletableFuture<String> late = new CompletableFuture<>();
+        breaker.call(() -> late);
+        failTimes(breaker, 2);
+        Thread.sleep(40);
+
+        CompletableFuture<String> probe = new CompletableFuture<>();
+        breaker.call(() -> probe);
+        late.complete("ok");
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        probe.complete("up");
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    void testProbeTimesOut() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker("test-probe-timeout", 2, 2, 0.5, 20);
+        failTimes(breaker, 2);
+        Thread.sleep(40);
+
+        CompletableFuture<String> hung = new CompletableFuture<>();
+        breaker.call(() -> hung);
+        Thread.sleep(40);
+        // The hung probe counts as failed, so the breaker reopens instead of waiting on it
+        assertThrows(CompletionException.class, () -> breaker.call(() -> CompletableFuture.completedFuture("x")).join());
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        Thread.sleep(40);
+        assertEquals("up", breaker.call(() -> CompletableFuture.completedFuture("up")).join());
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        // Its answer arrives too late to matter
+        hung.completeExceptionally(new IllegalStateException("down"));
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+}
@@ -0,0 +1,90 @@
+package me.sebz.mondragon.pbl5.os;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+class ConcurrencyLimiterTest {
+
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(100);
+
+    @Test
+    void testRejectsOverTheLimit() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("test-reject", 2, 1, 2);
+        AtomicInteger rejections = new AtomicInteger();
+        CompletableFuture<String> first = new CompletableFuture<>();
+        CompletableFuture<String> second = new CompletableFuture<>();
+
+        CompletableFuture<String> a = limiter.run(rejections::incrementAndGet, () -> first);
+        CompletableFuture<String> b = limiter.run(rejections::incrementAndGet, () -> second);
+        CompletableFuture<String> c = limiter.run(rejections::incrementAndGet, () -> CompletableFuture.completedFuture("c"));
+
+        CompletionException e = assertThrows(CompletionException.class, c::join);
+        assertTrue(e.getCause() instanceof OverloadException);
+        assertEquals(1, rejections.get());
+        assertEquals(1, limiter.getRejectedCount());
+        assertEquals(2, limiter.getInFlight());
+
+        first.complete("a");
+        assertEquals("a", a.join());
+        assertEquals("d", limiter.run(rejections::incrementAndGet, () -> CompletableFuture.completedFuture("d")).join());
+        second.complete("b");
+        assertEquals("b", b.join());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    void testGrowsWhileFastAndBusy() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("test-grow", 4, 1, 8);
+        for (int round = 0; round < 100; round++) {
+            fill(limiter, limiter.getLimit(), FAST);
+        }
+        assertEquals(8, limiter.getLimit());
+    }
+
+    @Test
+    void testDoesNotGrowWhenIdle() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("test-idle", 4, 1, 8);
+        for (int i = 0; i < 100; i++) {
+            fill(limiter, 1, FAST);
+        }
+        assertEquals(4, limiter.getLimit());
+    }
+
+    @Test
+    void testBacksOffWhenLatencyRises() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("test-backoff", 20, 2, 20);
+        fill(limiter, 1, FAST);
+        fill(limiter, 1, SLOW);
+        assertEquals(18, limiter.getLimit());
+        for (int i = 0; i < 100; i++) {
+            fill(limiter, 1, SLOW);
+        }
+        assertEquals(2, limiter.getLimit());
+    }
+
+    @Test
+    void testFailuresDoNotAdapt() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("test-failures", 4, 1, 8);
+        fill(limiter, 1, FAST);
+        assertTrue(limiter.tryAcquire());
+        limiter.release(SLOW, false);
+        assertEquals(4, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    private static void fill(ConcurrencyLimiter limiter, int requests, long latencyNanos) {
+        for (int i = 0; i < requests; i++) {
+            assertTrue(limiter.tryAcquire());
+        }
+        for (int i = 0; i < requests; i++) {
+            limiter.release(latencyNanos, true);
+        }
+    }
+}
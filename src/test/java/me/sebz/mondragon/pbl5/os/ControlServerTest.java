@@ -0,0 +1,237 @@
+package me.sebz.mondragon.pbl5.os;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class ControlServerTest {
+
+    private final AtomicInteger handled = new AtomicInteger();
+    private ControlServer server;
+    private InetSocketAddress address;
+
+    @BeforeEach
+    void setUp() {
+        server = new ControlServer(new InetSocketAddress("127.0.0.1", 0), new ControlServer.CommandHandler() {
+            @Override
+            public String handle(String command) {
+                handled.incrementAndGet();
+                if (command.equals("FAIL")) {
+                    throw new IllegalStateException("handler failed");
+                }
+                return "ECHO " + command;
+            }
+
+            @Override
+            public CompletableFuture<String> handleAsync(String command) {
+                if (command.startsWith("SLOW")) {
+                    return CompletableFuture.supplyAsync(() -> "DONE " + command,
+                            CompletableFuture.delayedExecutor(200, TimeUnit.MILLISECONDS));
+                }
+                if (command.equals("LATE_FAIL")) {
+                    return CompletableFuture.failedFuture(new IllegalStateException("later"));
+                }
+                return ControlServer.CommandHandler.super.handleAsync(command);
+            }
+
+            @Override
+            public CompletableFuture<ControlServer.Reply> handleFrame(WireDecoder frame) {
+                long sessionId = frame.sessionId();
+                int dimensions = frame.embeddingDimensions();
+                // complete later so the following text command is answered first internally
+                return CompletableFuture.supplyAsync(() -> ControlServer.frameReply(64,
+                        out -> WireEncoder.encodeIdentifyResult(out, WireFormat.STATUS_MATCH, dimensions, "s" + sessionId)),
+                        CompletableFuture.delayedExecutor(100, TimeUnit.MILLISECONDS));
+            }
+        });
+        new Thread(server).start();
+        address = server.bound().join();
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop().join();
+    }
+
+    @Test
+    void testPipelinedCommandsAnsweredInOrder() throws Exception {
+        try (Socket socket = new Socket(address.getAddress(), address.getPort());
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+            OutputStream out = socket.getOutputStream();
+            StringBuilder batch = new StringBuilder();
+            for (int i = 0; i < 500; i++) {
+                batch.append("CMD ").append(i).append("\r\n");
+            }
+            out.write(batch.toString().getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            for (int i = 0; i < 500; i++) {
+                assertEquals("ECHO CMD " + i, in.readLine());
+            }
+        }
+    }
+
+    @Test
+    void testCommandSplitAcrossWrites() throws Exception {
+        try (Socket socket = new Socket(address.getAddress(), address.getPort());
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+            OutputStream out = socket.getOutputStream();
+            out.write("GET_PH".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            Thread.sleep(50);
+            out.write("ONE_COUNT\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            assertEquals("ECHO GET_PHONE_COUNT", in.readLine());
+        }
+    }
+
+    @Test
+    void testBinaryFramesInterleavedWithText() throws Exception {
+        try (Socket socket = new Socket(address.getAddress(), address.getPort())) {
+            ByteBuffer request = ByteBuffer.allocate(1024);
+            WireEncoder.encodeIdentifyRequest(request, 9L, new float[128], true);
+            request.put("PING\n".getBytes(StandardCharsets.UTF_8));
+            OutputStream out = socket.getOutputStream();
+            out.write(request.array(), 0, request.position());
+            out.flush();
+
+            InputStream in = socket.getInputStream();
+            ByteBuffer response = ByteBuffer.allocate(256);
+            WireDecoder decoder = new WireDecoder();
+            while (true) {
+                response.put((byte) in.read());
+                ByteBuffer view = response.duplicate().flip();
+                if (WireDecoder.frameLength(view) > 0) {
+                    decoder.wrap(view);
+                    break;
+                }
+            }
+            assertEquals(WireFormat.STATUS_MATCH, decoder.status());
+            assertEquals(128, decoder.personId());
+            assertEquals("s9", decoder.info());
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+            assertEquals("ECHO PING", reader.readLine());
+        }
+    }
+
+    @Test
+    void testFrameLargerThanALine() throws Exception {
+        try (Socket socket = new Socket(address.getAddress(), address.getPort())) {
+            ByteBuffer request = ByteBuffer.allocate(WireEncoder.identifyRequestSize(4096, false));
+            WireEncoder.encodeIdentifyRequest(request, 5L, new float[4096], false);
+            socket.getOutputStream().write(request.array(), 0, request.position());
+
+            InputStream in = socket.getInputStream();
+            byte[] header = in.readNBytes(WireFormat.HEADER_SIZE);
+            int length = ByteBuffer.wrap(header, 4, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+            ByteBuffer response = ByteBuffer.allocate(WireFormat.HEADER_SIZE + length);
+            response.put(header).put(in.readNBytes(length)).flip();
+            WireDecoder decoder = new WireDecoder().wrap(response);
+            assertEquals(WireFormat.TYPE_IDENTIFY_RESULT, decoder.type());
+            assertEquals(4096, decoder.personId());
+        }
+    }
+
+    @Test
+    void testCorruptFrameIsReported() throws Exception {
+        try (Socket socket = new Socket(address.getAddress(), address.getPort())) {
+            OutputStream out = socket.getOutputStream();
+            out.write(new byte[]{WireFormat.MAGIC, 99, 0, 0, 0, 0, 0, 0});
+            out.flush();
+
+            byte[] header = socket.getInputStream().readNBytes(WireFormat.HEADER_SIZE);
+            assertEquals(WireFormat.MAGIC, header[0]);
+            assertEquals(WireFormat.TYPE_ERROR, header[2]);
+        }
+    }
+
+    @Test
+    void testFailingCommandIsAnsweredAndServerKeepsRunning() throws Exception {
+        try (Socket socket = new Socket(address.getAddress(), address.getPort());
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+            socket.getOutputStream().write("FAIL\nPING\n".getBytes(StandardCharsets.UTF_8));
+            assertEquals("ERROR handler failed", in.readLine());
+            assertEquals("ECHO PING", in.readLine());
+        }
+        try (Socket socket = new Socket(address.getAddress(), address.getPort());
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+            socket.getOutputStream().write("PING\n".getBytes(StandardCharsets.UTF_8));
+            assertEquals("ECHO PING", in.readLine());
+        }
+    }
+
+    @Test
+    void testSlowCommandDoesNotHoldUpOtherConnections() throws Exception {
+        try (Socket slow = new Socket(address.getAddress(), address.getPort());
+             BufferedReader slowIn = new BufferedReader(new InputStreamReader(slow.getInputStream()));
+             Socket other = new Socket(address.getAddress(), address.getPort());
+             BufferedReader otherIn = new BufferedReader(new InputStreamReader(other.getInputStream()))) {
+            slow.getOutputStream().write("SLOW 1\nLATE_FAIL\nPING\n".getBytes(StandardCharsets.UTF_8));
+            other.getOutputStream().write("PING\n".getBytes(StandardCharsets.UTF_8));
+            long start = System.nanoTime();
+            assertEquals("ECHO PING", otherIn.readLine());
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(150));
+
+            // Still answered in the order asked
+            assertEquals("DONE SLOW 1", slowIn.readLine());
+            assertEquals("ERROR later", slowIn.readLine());
+            assertEquals("ECHO PING", slowIn.readLine());
+        }
+    }
+
+    @Test
+    void testOverlongLineIsRejected() throws Exception {
+        try (Socket socket = new Socket(address.getAddress(), address.getPort());
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+            OutputStream out = socket.getOutputStream();
+            out.write(new byte[8192]);
+            // The tail of the overlong line must not run as a command of its own
+            out.write("REMOVE_PHONE 100\nPING\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            assertEquals("LINE_TOO_LONG", in.readLine());
+            assertEquals("ECHO PING", in.readLine());
+            assertEquals(1, handled.get());
+        }
+    }
+
+    @Test
+    void testManyConcurrentClients() throws Exception {
+        List<Socket> sockets = new ArrayList<>();
+        try {
+            for (int i = 0; i < 200; i++) {
+                Socket socket = new Socket(address.getAddress(), address.getPort());
+                sockets.add(socket);
+                socket.getOutputStream().write(("PING " + i + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            for (int i = 0; i < sockets.size(); i++) {
+                BufferedReader in = new BufferedReader(new InputStreamReader(sockets.get(i).getInputStream()));
+                assertEquals("ECHO PING " + i, in.readLine());
+            }
+            assertEquals(200, handled.get());
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+}
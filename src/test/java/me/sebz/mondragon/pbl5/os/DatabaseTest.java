@@ -44,6 +44,29 @@ class DatabaseTest {
         assertNull(db.getGroupById(999).join());
     }
 
+    @Test
+    void testFindFaceAcrossGroups() {
+        Group g1 = new Group();
+        Group g2 = new Group();
+        Person p1 = new Person();
+        p1.setFaceEmbedding(new float[]{1f, 0f});
+        g1.addMember(p1);
+        db.addGroup(g1).join();
+        db.addGroup(g2).join();
+
+        Person p2 = new Person();
+        p2.setFaceEmbedding(new float[]{0f, 1f});
+        g2.addMember(p2);
+        assertEquals(g2.getId(), db.findFace(new float[]{0.1f, 1f}, 1).join().get(0).getGroupId());
+
+        // Members' edits and removals follow the group into the index
+        p2.setFaceEmbedding(new float[]{-1f, 0f});
+        assertEquals(g1.getId(), db.findFace(new float[]{0.1f, 1f}, 1).join().get(0).getGroupId());
+        g1.removeMember(p1);
+        db.removeGroup(g2).join();
+        assertTrue(db.findFace(new float[]{0.1f, 1f}, 1).join().isEmpty());
+    }
+
     @Test
     void testSignInAndSession() {
         Group g = new Group();
@@ -103,6 +126,17 @@ class DatabaseTest {
         assertNull(db.getGroupFromSession(session2).join());
     }
 
+    @Test
+    void testSessionEndsWithItsGroup() {
+        Group g = new Group();
+        g.setPassword("pw");
+        db.addGroup(g).join();
+        Long session = db.signIn(g.getId(), "pw").join();
+
+        db.removeGroup(g).join();
+        assertNull(db.getGroupFromSession(session).join());
+    }
+
     @Test
     void testGetPersonById() {
         Group g = new Group();
@@ -5,8 +5,10 @@ import org.junit.jupiter.api.Test;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 class FaceDetectedServerTest {
 
@@ -60,4 +62,29 @@ class FaceDetectedServerTest {
 
         assertTrue(true); // fuerza cobertura del stop con cola vacía
     }
+
+    @Test
+    void testBatchWithSeveralWorkers() throws Exception {
+        FaceDetectServer s = new FaceDetectServer();
+        Thread[] workers = new Thread[3];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(s);
+            workers[i].start();
+        }
+
+        List<CompletableFuture<Boolean>> futures = s.analyzePhotos(new int[]{1, 2, 3, 4, 5, 6});
+        assertEquals(6, futures.size());
+        for (CompletableFuture<Boolean> f : futures) {
+            try {
+                assertTrue(f.get());
+            } catch (ExecutionException ex) {
+                assertEquals("No Face", ex.getCause().getMessage());
+            }
+        }
+
+        s.stop().get(5, TimeUnit.SECONDS);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
 }
@@ -4,7 +4,9 @@ import static org.junit.jupiter.api.Assertions.*;
 import org.junit.jupiter.api.Test;
 
 import java.lang.reflect.Method;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 class FaceEmbeddingServerTest {
 
@@ -50,4 +52,46 @@ class FaceEmbeddingServerTest {
 
         assertTrue(true); // cobertura explícita del camino POISON
     }
+
+    @Test
+    void testSeveralWorkersShareQueueAndStop() throws Exception {
+        FaceEmbeddingServer s = new FaceEmbeddingServer();
+        Thread[] workers = new Thread[4];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(s);
+            workers[i].start();
+        }
+
+        long start = System.nanoTime();
+        List<CompletableFuture<float[]>> futures = s.analyzePhotos(new int[]{1, 2, 3, 4});
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get();
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+
+        // Each photo takes at least 400 ms, so four in sequence would take 1.6 s
+        assertTrue(elapsedMs < 1400, "took " + elapsedMs + " ms");
+        for (CompletableFuture<float[]> f : futures) {
+            assertEquals(128, f.get().length);
+        }
+
+        s.stop().get(5, TimeUnit.SECONDS);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+
+    @Test
+    void testZeroDelaySkipsSimulatedProcessing() throws Exception {
+        FaceEmbeddingServer s = new FaceEmbeddingServer(0, 0);
+        Thread t = new Thread(s);
+        t.start();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 20; i++) {
+            assertEquals(128, s.analyzePhoto(i).get().length);
+        }
+        assertTrue((System.nanoTime() - start) / 1_000_000 < 400);
+
+        s.stop();
+        t.join();
+    }
 }
@@ -0,0 +1,109 @@
+package me.sebz.mondragon.pbl5.os;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+class FaceIndexTest {
+
+    private static Person person(float... embedding) {
+        Person p = new Person();
+        p.setFaceEmbedding(embedding);
+        return p;
+    }
+
+    @Test
+    void testPutSearchAndRemove() {
+        FaceIndex index = new FaceIndex(new Random(1));
+        Person a = person(1f, 0f, 0f);
+        Person b = person(0f, 1f, 0f);
+        index.put(1, a);
+        index.put(2, b);
+        // Different length than the index; left out
+        index.put(3, person(1f, 0f));
+        assertEquals(2, index.size());
+
+        List<FaceIndex.Match> matches = index.search(new float[]{2f, 0.1f, 0f}, 5);
+        assertEquals(2, matches.size());
+        assertEquals(1, matches.get(0).getGroupId());
+        assertEquals(a.getId(), matches.get(0).getPersonId());
+        assertTrue(matches.get(0).getScore() > matches.get(1).getScore());
+
+        a.setFaceEmbedding(new float[]{0f, 0f, 1f});
+        index.put(1, a);
+        assertEquals(b.getId(), index.search(new float[]{2f, 0.1f, 0f}, 1).get(0).getPersonId());
+
+        index.remove(b.getId());
+        assertEquals(1, index.search(new float[]{0f, 1f, 0f}, 5).size());
+        assertTrue(index.search(new float[]{1f, 0f}, 5).isEmpty());
+        assertThrows(IllegalArgumentException.class, () -> index.search(new float[]{1f, 0f, 0f}, 0));
+    }
+
+    @Test
+    void testTrainedIndexProbesFewPartitions() throws Exception {
+        FaceIndex index = new FaceIndex(new Random(2));
+        Random random = new Random(3);
+        int dimension = 32;
+        float[][] faces = new float[40][dimension];
+        for (float[] face : faces) {
+            for (int d = 0; d < dimension; d++) {
+                face[d] = (float) random.nextGaussian();
+            }
+        }
+        Person[] persons = new Person[3000];
+        for (int i = 0; i < persons.length; i++) {
+            float[] embedding = faces[i % faces.length].clone();
+            for (int d = 0; d < dimension; d++) {
+                embedding[d] += (float) random.nextGaussian() * 0.2f;
+            }
+            persons[i] = person(embedding);
+            index.put(i % 7, persons[i]);
+        }
+        // Reaching MIN_TRAINING_SIZE already started a training in the background
+        while (!index.train()) {
+            Thread.sleep(10);
+        }
+        assertEquals((int) Math.sqrt(persons.length), index.getPartitionCount());
+
+        // Each enrolled face is found in its own partition
+        for (int i = 0; i < persons.length; i += 97) {
+            FaceIndex.Match match = index.search(persons[i].getFaceEmbedding(), 1).get(0);
+            assertEquals(persons[i].getId(), match.getPersonId());
+            assertEquals(i % 7, match.getGroupId());
+        }
+
+        // Probing every partition is an exact search; a few partitions rarely miss
+        int agree = 0;
+        for (int q = 0; q < 100; q++) {
+            float[] query = faces[q % faces.length].clone();
+            for (int d = 0; d < dimension; d++) {
+                query[d] += (float) random.nextGaussian() * 0.3f;
+            }
+            int exact = index.search(query, 1, Integer.MAX_VALUE).get(0).getPersonId();
+            if (index.search(query, 1).get(0).getPersonId() == exact) {
+                agree++;
+            }
+        }
+        assertTrue(agree >= 90, "approximate search agreed " + agree + " times out of 100");
+
+        // Removing from the middle of a posting list keeps the rest findable. Every third
+        // person goes, so each face keeps most of its neighbours
+        Set<Integer> removed = new HashSet<>();
+        for (int i = 0; i < persons.length; i += 3) {
+            index.remove(persons[i].getId());
+            removed.add(persons[i].getId());
+        }
+        assertEquals(persons.length - removed.size(), index.size());
+        for (int i = 1; i < persons.length; i += 99) {
+            assertEquals(persons[i].getId(), index.search(persons[i].getFaceEmbedding(), 1).get(0).getPersonId());
+        }
+        for (FaceIndex.Match match : index.search(faces[0], 50, Integer.MAX_VALUE)) {
+            assertFalse(removed.contains(match.getPersonId()));
+        }
+    }
+}
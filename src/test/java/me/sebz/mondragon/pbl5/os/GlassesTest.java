@@ -15,6 +15,17 @@ class GlassesTest {
         assertEquals(p1 + 1, p2);
     }
 
+    @Test
+    void testCapturePhotoCarriesFrame() {
+        Glasses g = new Glasses();
+        Photo photo = g.capturePhoto();
+
+        assertEquals(photo.getId(), photo.getPayload().getInt(0));
+        assertEquals(PhotoBufferPool.DEFAULT_FRAME_SIZE, photo.getPayload().remaining());
+
+        photo.release();
+    }
+
     @Test
     void testSpeak() {
         Glasses g = new Glasses();
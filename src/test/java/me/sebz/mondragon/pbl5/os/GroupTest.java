@@ -4,6 +4,9 @@ import static org.junit.jupiter.api.Assertions.*;
 import org.junit.jupiter.api.Test;
 
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 
 class GroupTest {
 
@@ -31,6 +34,24 @@ class GroupTest {
         assertNull(g.getMemberById(p.getId()));
     }
 
+    @Test
+    void testMembersKeepInsertionOrderWithoutDuplicates() {
+        Group g = new Group();
+        Person p1 = new Person();
+        Person p2 = new Person();
+        Person p3 = new Person();
+        g.addMembers(List.of(p1, p2, p3));
+        g.addMember(p1);
+        long version = g.getVersion();
+        g.addMember(p2);
+
+        assertEquals(version, g.getVersion());
+        assertArrayEquals(new Person[]{p1, p2, p3}, g.getMembers());
+        g.removeMember(p2.getId());
+        assertArrayEquals(new Person[]{p1, p3}, g.getMembers());
+        assertSame(p3, g.getMemberById(p3.getId()));
+    }
+
     @Test
     void testGetMemberByIdNotFound() {
         Group g = new Group();
@@ -50,6 +71,88 @@ class GroupTest {
         assertEquals(2, members.length);
     }
 
+    @Test
+    void testSnapshotVersionFollowsChanges() {
+        Group g = new Group();
+        Person p = new Person();
+        assertEquals(0, g.getVersion());
+
+        g.addMember(p);
+        assertEquals(1, g.getVersion());
+        p.setFaceEmbedding(new float[]{1f, 0f});
+        assertEquals(2, g.getVersion());
+        g.removeMember(p.getId());
+        assertEquals(3, g.getVersion());
+
+        // Neither a missing member nor a former member's edits publish a new snapshot
+        g.removeMember(p);
+        p.setFaceEmbedding(new float[]{0f, 1f});
+        assertEquals(3, g.getVersion());
+    }
+
+    @Test
+    void testChangesBetweenReadsRebuildOnce() {
+        Group g = new Group();
+        Metrics.Counter rebuilds = Metrics.counter("group_snapshot_rebuilds_total", "");
+        long before = rebuilds.get();
+        Person last = null;
+        for (int i = 0; i < 100; i++) {
+            last = new Person();
+            last.setFaceEmbedding(new float[]{1f, i});
+            g.addMember(last);
+        }
+        g.removeMember(last);
+        assertEquals(before, rebuilds.get());
+
+        assertEquals(99, g.getMembers().length);
+        assertNull(g.getMemberById(last.getId()));
+        assertEquals(before + 1, rebuilds.get());
+    }
+
+    @Test
+    void testClosestMemberSeesEmbeddingEdits() {
+        Group g = new Group();
+        Person p1 = new Person();
+        Person p2 = new Person();
+        p1.setFaceEmbedding(new float[]{1f, 0f});
+        p2.setFaceEmbedding(new float[]{0f, 1f});
+        g.addMember(p1);
+        g.addMember(p2);
+        assertEquals(p1, g.getClosestMember(new float[]{1f, 0.1f}));
+
+        p1.setFaceEmbedding(new float[]{-1f, 0f});
+        assertEquals(p2, g.getClosestMember(new float[]{1f, 0.1f}));
+
+        // Callers cannot reach the published snapshot through the returned arrays
+        g.getMembers()[0] = null;
+        assertNotNull(g.getMembers()[0]);
+    }
+
+    @Test
+    void testReadersDuringWrites() throws Exception {
+        Group g = new Group();
+        Person anchor = new Person();
+        anchor.setFaceEmbedding(new float[]{1f, 0f});
+        g.addMember(anchor);
+
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < 2000; i++) {
+                Person p = new Person();
+                p.setFaceEmbedding(new float[]{0f, 1f});
+                g.addMember(p);
+                g.removeMember(p);
+            }
+        });
+        writer.start();
+        while (writer.isAlive()) {
+            assertEquals(anchor, g.getClosestMember(new float[]{1f, 0f}));
+            int size = g.getMembers().length;
+            assertTrue(size == 1 || size == 2);
+        }
+        writer.join();
+        assertEquals(4001, g.getVersion());
+    }
+
     @Test
     void testPasswordLifecycle() {
         Group g = new Group();
@@ -110,6 +213,182 @@ class GroupTest {
         assertNull(g.getClosestMember(new float[]{1f, 1f}));
     }
 
+    @Test
+    void testClosestMembersMatchesSingleQueries() {
+        Group g = new Group();
+        Random random = new Random(7);
+        for (int i = 0; i < 50; i++) {
+            Person p = new Person();
+            float[] embedding = new float[16];
+            for (int j = 0; j < embedding.length; j++) {
+                embedding[j] = random.nextFloat() - 0.5f;
+            }
+            p.setFaceEmbedding(embedding);
+            g.addMember(p);
+        }
+        g.addMember(new Person());
+
+        float[][] queries = new float[6][16];
+        for (float[] query : queries) {
+            for (int j = 0; j < query.length; j++) {
+                query[j] = random.nextFloat() - 0.5f;
+            }
+        }
+        queries[4] = new float[]{1f, 0f};
+        queries[5] = null;
+
+        Person[] closest = g.getClosestMembers(queries);
+        assertEquals(queries.length, closest.length);
+        for (int q = 0; q < 4; q++) {
+            assertEquals(g.getClosestMember(queries[q]), closest[q]);
+        }
+        assertNull(closest[4]);
+        assertNull(closest[5]);
+    }
+
+    @Test
+    void testClosestMemberUsesBestTemplate() {
+        Group g = new Group();
+        Person single = new Person();
+        single.setFaceEmbedding(new float[]{1f, 1f, 0f});
+        Person multi = new Person();
+        multi.addFaceTemplate(new float[]{1f, 0f, 0f});
+        multi.addFaceTemplate(new float[]{0f, 0f, 1f});
+        g.addMember(single);
+        g.addMember(multi);
+
+        // The centroids favour single, but one of multi's templates is an exact match
+        float[] query = {1f, 0.05f, 0f};
+        assertEquals(multi, g.getClosestMember(query));
+        assertArrayEquals(new Person[]{multi, single},
+                g.getClosestMembers(new float[][]{query, {0.5f, 1f, 0f}}));
+    }
+
+    @Test
+    void testTemplatesOnlyComparedForTopCentroids() {
+        Group g = new Group();
+        Random random = new Random(3);
+        for (int i = 0; i < 200; i++) {
+            // Photos of one person are variations around the same face
+            float[] face = new float[16];
+            for (int j = 0; j < face.length; j++) {
+                face[j] = random.nextFloat() - 0.5f;
+            }
+            Person p = new Person();
+            for (int t = 0; t < 3; t++) {
+                float[] embedding = new float[16];
+                for (int j = 0; j < embedding.length; j++) {
+                    embedding[j] = face[j] + (random.nextFloat() - 0.5f) * 0.3f;
+                }
+                p.addFaceTemplate(embedding);
+            }
+            g.addMember(p);
+        }
+        Person enrolled = g.getMembers()[42];
+        for (float[] template : enrolled.getFaceTemplates()) {
+            assertEquals(enrolled, g.getClosestMember(template));
+        }
+
+        float[][] queries = new float[20][16];
+        for (float[] query : queries) {
+            for (int j = 0; j < query.length; j++) {
+                query[j] = random.nextFloat() - 0.5f;
+            }
+        }
+        Person[] closest = g.getClosestMembers(queries);
+        for (int q = 0; q < queries.length; q++) {
+            assertEquals(g.getClosestMember(queries[q]), closest[q]);
+        }
+    }
+
+    @Test
+    void testAddMemberUnlessDuplicate() {
+        Group g = new Group();
+        Person first = new Person();
+        first.setFaceEmbedding(new float[]{1f, 0f, 0f});
+        assertSame(first, g.addMemberUnlessDuplicate(first, 0.9f));
+
+        // The same photo again is answered with the enrolled person and teaches nothing
+        Person retry = new Person();
+        retry.setFaceEmbedding(new float[]{1f, 0f, 0f});
+        assertSame(first, g.addMemberUnlessDuplicate(retry, 0.9f));
+        assertEquals(1, first.getFaceTemplates().length);
+
+        // A close but different view becomes a template of the enrolled person
+        Person view = new Person();
+        view.setFaceEmbedding(new float[]{1f, 0.2f, 0f});
+        assertSame(first, g.addMemberUnlessDuplicate(view, 0.9f));
+        assertEquals(2, first.getFaceTemplates().length);
+
+        Person other = new Person();
+        other.setFaceEmbedding(new float[]{0f, 1f, 0f});
+        assertSame(other, g.addMemberUnlessDuplicate(other, 0.9f));
+        assertArrayEquals(new Person[]{first, other}, g.getMembers());
+    }
+
+    @Test
+    void testAddMembersUnlessDuplicateWithinBatch() {
+        Group g = new Group();
+        Person enrolled = new Person();
+        enrolled.setFaceEmbedding(new float[]{1f, 0f});
+        g.addMember(enrolled);
+
+        Person again = new Person();
+        again.setFaceEmbedding(new float[]{1f, 0f});
+        Person fresh = new Person();
+        fresh.setFaceEmbedding(new float[]{0f, 1f});
+        Person freshAgain = new Person();
+        freshAgain.setFaceEmbedding(new float[]{0f, 1f});
+        long version = g.getVersion();
+
+        Person[] result = g.addMembersUnlessDuplicate(List.of(again, fresh, freshAgain), 0.9f);
+        assertArrayEquals(new Person[]{enrolled, fresh, fresh}, result);
+        assertArrayEquals(new Person[]{enrolled, fresh}, g.getMembers());
+        assertEquals(version + 1, g.getVersion());
+    }
+
+    @Test
+    void testParallelScanMatchesSequentialScan() {
+        Group g = new Group();
+        Random random = new Random(5);
+        List<Person> persons = new ArrayList<>();
+        for (int i = 0; i < Group.PARALLEL_SCAN_THRESHOLD + 5000; i++) {
+            Person p = new Person();
+            p.setFaceEmbedding(randomVector(random, 8));
+            persons.add(p);
+        }
+        g.addMembers(persons);
+
+        float[][] queries = new float[8][];
+        for (int q = 0; q < queries.length; q++) {
+            queries[q] = randomVector(random, 8);
+        }
+        long scans = Metrics.counter("group_parallel_scans_total", "").get()
+                + Metrics.counter("group_parallel_scan_backoffs_total", "").get();
+        // getClosestMembers never splits its scan
+        Person[] sequential = g.getClosestMembers(queries);
+        for (int q = 0; q < queries.length; q++) {
+            assertEquals(sequential[q], g.getClosestMember(queries[q]));
+        }
+        assertEquals(scans + queries.length, Metrics.counter("group_parallel_scans_total", "").get()
+                + Metrics.counter("group_parallel_scan_backoffs_total", "").get());
+
+        // Same with the template pass behind the parallel centroid scan
+        persons.get(100).addFaceTemplate(randomVector(random, 8));
+        sequential = g.getClosestMembers(queries);
+        for (int q = 0; q < queries.length; q++) {
+            assertEquals(sequential[q], g.getClosestMember(queries[q]));
+        }
+    }
+
+    private static float[] randomVector(Random random, int length) {
+        float[] v = new float[length];
+        for (int i = 0; i < length; i++) {
+            v[i] = random.nextFloat() - 0.5f;
+        }
+        return v;
+    }
+
     @Test
     void testCosineSimilarityViaReflectionAllBranches() throws Exception {
         Group g = new Group();
@@ -0,0 +1,229 @@
+package me.sebz.mondragon.pbl5.os;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.easymock.EasyMock.*;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class HttpFrontendTest {
+
+    private NodeRedServer serverMock;
+    private HttpFrontend frontend;
+    private HttpClient client;
+    private String base;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        serverMock = mock(NodeRedServer.class);
+        frontend = new HttpFrontend(new InetSocketAddress("127.0.0.1", 0), serverMock);
+        frontend.start();
+        client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        base = "http://127.0.0.1:" + frontend.getAddress().getPort();
+    }
+
+    @AfterEach
+    void tearDown() {
+        frontend.stop().join();
+    }
+
+    private HttpResponse<String> post(String path, HttpRequest.BodyPublisher body) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(base + path)).POST(body).build();
+        return client.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    @Test
+    void testSignupAndLogin() throws Exception {
+        expect(serverMock.signup("pw")).andReturn(CompletableFuture.completedFuture(3));
+        expect(serverMock.login(3, "pw")).andReturn(CompletableFuture.completedFuture(99L));
+        expect(serverMock.login(3, "bad")).andReturn(CompletableFuture.completedFuture(null));
+        replay(serverMock);
+
+        HttpResponse<String> signup = post("/signup", HttpRequest.BodyPublishers.ofString("password=pw"));
+        assertEquals(200, signup.statusCode());
+        assertEquals("{\"groupId\":3}", signup.body());
+
+        HttpResponse<String> login = post("/login?groupId=3&password=pw", HttpRequest.BodyPublishers.noBody());
+        assertEquals("{\"sessionId\":99}", login.body());
+
+        HttpResponse<String> denied = post("/login?groupId=3&password=bad", HttpRequest.BodyPublishers.noBody());
+        assertEquals(401, denied.statusCode());
+
+        verify(serverMock);
+    }
+
+    @Test
+    void testIdentifyUploadsFrame() throws Exception {
+        byte[] frame = new byte[1000];
+        frame[0] = 42;
+        expect(serverMock.identify(eq(1L), anyObject(Photo.class))).andAnswer(() -> {
+            Photo photo = (Photo) getCurrentArguments()[1];
+            int first = photo.getPayload().get(0);
+            int length = photo.getPayload().remaining();
+            photo.release();
+            return CompletableFuture.completedFuture("Alice " + first + " " + length);
+        });
+        replay(serverMock);
+
+        HttpResponse<String> response = post("/identify?session=1", HttpRequest.BodyPublishers.ofByteArray(frame));
+        assertEquals(200, response.statusCode());
+        assertEquals("{\"info\":\"Alice 42 1000\"}", response.body());
+
+        verify(serverMock);
+    }
+
+    @Test
+    void testFindFaceListsMatches() throws Exception {
+        expect(serverMock.findFace(eq(1L), anyObject(Photo.class), eq(2))).andAnswer(() -> {
+            ((Photo) getCurrentArguments()[1]).release();
+            return CompletableFuture.completedFuture(List.of(new FaceIndex.Match(4, 7, 0.5f)));
+        });
+        replay(serverMock);
+
+        HttpResponse<String> response = post("/findFace?session=1&k=2", HttpRequest.BodyPublishers.ofByteArray(new byte[10]));
+        assertEquals(200, response.statusCode());
+        assertEquals("{\"matches\":[{\"groupId\":4,\"personId\":7,\"score\":0.5}]}", response.body());
+
+        verify(serverMock);
+    }
+
+    @Test
+    void testIdentifyEmbeddingFrame() throws Exception {
+        Person alice = new Person();
+        alice.setInfo("Alice");
+        float[] embedding = {1f, 0.5f};
+        expect(serverMock.identifyEmbedding(eq(4L), aryEq(embedding)))
+                .andReturn(CompletableFuture.completedFuture(alice));
+        replay(serverMock);
+
+        ByteBuffer request = ByteBuffer.allocate(64);
+        WireEncoder.encodeIdentifyRequest(request, 4L, embedding, false);
+        HttpRequest httpRequest = HttpRequest.newBuilder(URI.create(base + "/identifyEmbedding"))
+                .POST(HttpRequest.BodyPublishers.ofByteArray(request.array(), 0, request.position())).build();
+        HttpResponse<byte[]> response = client.send(httpRequest, HttpResponse.BodyHandlers.ofByteArray());
+
+        assertEquals(200, response.statusCode());
+        assertEquals(WireFormat.CONTENT_TYPE, response.headers().firstValue("Content-Type").orElse(null));
+        WireDecoder decoder = new WireDecoder().wrap(ByteBuffer.wrap(response.body()));
+        assertEquals(WireFormat.STATUS_MATCH, decoder.status());
+        assertEquals(alice.getId(), decoder.personId());
+        assertEquals("Alice", decoder.info());
+
+        verify(serverMock);
+    }
+
+    @Test
+    void testMetricsEndpoint() throws Exception {
+        expect(serverMock.signup("pw")).andReturn(CompletableFuture.completedFuture(3));
+        replay(serverMock);
+        post("/signup", HttpRequest.BodyPublishers.ofString("password=pw"));
+
+        HttpResponse<String> response = client.send(HttpRequest.newBuilder(URI.create(base + "/metrics")).GET().build(),
+                HttpResponse.BodyHandlers.ofString());
+
+        assertEquals(200, response.statusCode());
+        assertEquals(Metrics.CONTENT_TYPE, response.headers().firstValue("Content-Type").orElse(null));
+        assertTrue(response.body().contains("# TYPE executor_completed_tasks gauge"), response.body());
+        assertTrue(response.body().contains("executor_pool_threads{executor=\"http\"}"), response.body());
+    }
+
+    @Test
+    void testErrorsAreMapped() throws Exception {
+        expect(serverMock.deletePerson(1L, 5))
+                .andReturn(CompletableFuture.failedFuture(new IllegalArgumentException("invalid session ID")));
+        expect(serverMock.deletePerson(1L, 6))
+                .andReturn(CompletableFuture.failedFuture(new OverloadException("rest requests are at the limit of 4")));
+        replay(serverMock);
+
+        assertEquals(400, post("/deletePerson?session=1&personId=5", HttpRequest.BodyPublishers.noBody()).statusCode());
+        assertEquals(503, post("/deletePerson?session=1&personId=6", HttpRequest.BodyPublishers.noBody()).statusCode());
+        assertEquals(400, post("/deletePerson?session=x&personId=5", HttpRequest.BodyPublishers.noBody()).statusCode());
+        assertEquals(400, post("/identify?session=1", HttpRequest.BodyPublishers.noBody()).statusCode());
+        assertEquals(404, post("/nothing", HttpRequest.BodyPublishers.noBody()).statusCode());
+
+        HttpRequest get = HttpRequest.newBuilder(URI.create(base + "/signup")).GET().build();
+        assertEquals(405, client.send(get, HttpResponse.BodyHandlers.ofString()).statusCode());
+
+        verify(serverMock);
+    }
+
+    @Test
+    void testSaturatedPoolAnswers503() throws Exception {
+        replay(serverMock);
+        Field field = HttpFrontend.class.getDeclaredField("executor");
+        field.setAccessible(true);
+        ThreadPoolExecutor executor = (ThreadPoolExecutor) field.get(frontend);
+
+        // Occupy every handler thread and fill the queue behind them
+        CountDownLatch release = new CountDownLatch(1);
+        Runnable blocked = () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        for (int i = 0; i < executor.getMaximumPoolSize(); i++) {
+            executor.execute(blocked);
+        }
+        while (executor.getQueue().remainingCapacity() > 0) {
+            executor.execute(() -> { });
+        }
+        try {
+            HttpResponse<String> response = post("/signup", HttpRequest.BodyPublishers.ofString("password=pw"));
+            assertEquals(503, response.statusCode());
+            assertEquals("{\"error\":\"server busy\"}", response.body());
+        } finally {
+            release.countDown();
+        }
+        verify(serverMock);
+    }
+
+    @Test
+    void testFullOverflowClosesWithoutReply() throws Exception {
+        replay(serverMock);
+        CountDownLatch release = new CountDownLatch(1);
+        Runnable blocked = () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        // Saturate the handler pool, then the overflow threads and their queue
+        for (String name : new String[]{"executor", "overflow"}) {
+            Field field = HttpFrontend.class.getDeclaredField(name);
+            field.setAccessible(true);
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) field.get(frontend);
+            for (int i = 0; i < pool.getMaximumPoolSize(); i++) {
+                pool.execute(blocked);
+            }
+            while (pool.getQueue().remainingCapacity() > 0) {
+                pool.execute(() -> { });
+            }
+        }
+        long shed = Metrics.counter("http_requests_shed_total", "").get();
+        try {
+            assertThrows(IOException.class,
+                    () -> post("/signup", HttpRequest.BodyPublishers.ofString("password=pw")));
+            assertEquals(shed + 1, Metrics.counter("http_requests_shed_total", "").get());
+        } finally {
+            release.countDown();
+        }
+        verify(serverMock);
+    }
+}
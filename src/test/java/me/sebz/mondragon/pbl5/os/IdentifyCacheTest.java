@@ -0,0 +1,69 @@
+package me.sebz.mondragon.pbl5.os;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class IdentifyCacheTest {
+
+    private static long hits() {
+        return Metrics.counter("identify_cache_hits_total", "").get();
+    }
+
+    @Test
+    void testHitsNeedSameVersionAndEnoughMargin() {
+        IdentifyCache cache = new IdentifyCache();
+        Person person = new Person();
+        float[] query = {0.6f, 0.8f, 0f};
+        assertNull(cache.get(1, query));
+
+        cache.put(1, query, person, 0.5f, 10_000);
+        assertSame(person, cache.get(1, query));
+        // Cosine similarity ignores scale
+        assertSame(person, cache.get(1, new float[]{1.2f, 1.6f, 0f}));
+        assertNull(cache.get(2, query));
+
+        // The runner-up was too close to trust the answer for a moved query
+        cache.put(1, query, person, 0.001f, 10_000);
+        assertNull(cache.get(1, new float[]{0.6f, 0.8f, 0.01f}));
+        assertNull(cache.get(1, new float[]{0f, 0f, 0f}));
+    }
+
+    @Test
+    void testGroupAnswersRepeatedFramesFromCache() {
+        Group g = new Group();
+        Random random = new Random(9);
+        List<Person> persons = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            Person p = new Person();
+            float[] embedding = new float[32];
+            for (int j = 0; j < embedding.length; j++) {
+                embedding[j] = (float) random.nextGaussian();
+            }
+            p.setFaceEmbedding(embedding);
+            persons.add(p);
+        }
+        g.addMembers(persons);
+        Person target = persons.get(17);
+
+        float[] frame = target.getFaceEmbedding();
+        assertEquals(target, g.getClosestMember(frame));
+        long before = hits();
+        for (int i = 0; i < 10; i++) {
+            float[] next = frame.clone();
+            next[i] += 0.001f;
+            assertEquals(target, g.getClosestMember(next));
+        }
+        assertTrue(hits() - before >= 8, "cache hits " + (hits() - before));
+
+        // Any change to the group invalidates the cached answers
+        target.setFaceEmbedding(persons.get(18).getFaceEmbedding());
+        before = hits();
+        assertNotEquals(target, g.getClosestMember(frame));
+        assertEquals(before, hits());
+    }
+}
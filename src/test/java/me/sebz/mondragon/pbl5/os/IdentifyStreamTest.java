@@ -0,0 +1,112 @@
+package me.sebz.mondragon.pbl5.os;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class IdentifyStreamTest {
+
+    private static class Collector implements Flow.Subscriber<IdentifyResult> {
+        final List<IdentifyResult> results = new CopyOnWriteArrayList<>();
+        final CountDownLatch done = new CountDownLatch(1);
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(IdentifyResult item) {
+            results.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            done.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            done.countDown();
+        }
+    }
+
+    @Test
+    void testFramesConflateWhileOneIsInFlight() throws Exception {
+        PhotoBufferPool pool = new PhotoBufferPool(64, 8);
+        List<Photo> identified = new CopyOnWriteArrayList<>();
+        List<CompletableFuture<IdentifyResult>> pending = new CopyOnWriteArrayList<>();
+        IdentifyStream stream = new IdentifyStream(photo -> {
+            identified.add(photo);
+            CompletableFuture<IdentifyResult> future = new CompletableFuture<>();
+            pending.add(future);
+            return future;
+        });
+        Collector collector = new Collector();
+        stream.subscribe(collector);
+        stream.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+            }
+
+            @Override
+            public void cancel() {
+            }
+        });
+
+        Photo first = pool.acquire(1);
+        Photo second = pool.acquire(2);
+        Photo third = pool.acquire(3);
+        stream.onNext(first);
+        stream.onNext(second);
+        stream.onNext(third);
+
+        // The second frame was replaced by the third before it could be identified
+        assertEquals(List.of(first), identified);
+        assertEquals(0, second.refCount());
+        assertEquals(1, third.refCount());
+
+        pending.get(0).complete(IdentifyResult.noMatch());
+        assertEquals(List.of(first, third), identified);
+        pending.get(1).completeExceptionally(new IllegalStateException("down"));
+
+        stream.onComplete();
+        assertTrue(collector.done.await(5, TimeUnit.SECONDS));
+        assertTrue(stream.isClosed());
+        assertEquals(2, collector.results.size());
+        assertFalse(collector.results.get(0).isMatch());
+        assertNotNull(collector.results.get(1).getError());
+    }
+
+    @Test
+    void testStreamClosesAfterLastFrame() throws Exception {
+        PhotoBufferPool pool = new PhotoBufferPool(64, 8);
+        IdentifyStream stream = new IdentifyStream(photo -> {
+            photo.release();
+            return CompletableFuture.completedFuture(IdentifyResult.noMatch());
+        });
+        Collector collector = new Collector();
+        stream.subscribe(collector);
+
+        SubmissionPublisher<Photo> frames = new SubmissionPublisher<>();
+        frames.subscribe(stream);
+        for (int i = 0; i < 20; i++) {
+            frames.submit(pool.acquire(i));
+        }
+        frames.close();
+
+        assertTrue(collector.done.await(5, TimeUnit.SECONDS));
+        assertTrue(stream.isClosed());
+        assertFalse(collector.results.isEmpty());
+        // Every frame went back to the pool, identified or not
+        assertEquals(8, pool.getPooledCount());
+    }
+}
@@ -0,0 +1,64 @@
+package me.sebz.mondragon.pbl5.os;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class IntObjectMapTest {
+
+    @Test
+    void testPutGetRemove() {
+        IntObjectMap<String> map = new IntObjectMap<>();
+        assertTrue(map.isEmpty());
+        assertNull(map.putIfAbsent(7, "seven"));
+        assertEquals("seven", map.putIfAbsent(7, "other"));
+        assertEquals("seven", map.get(7));
+        assertTrue(map.containsKey(7));
+        assertNull(map.get(8));
+
+        assertEquals("seven", map.remove(7));
+        assertNull(map.remove(7));
+        assertFalse(map.containsKey(7));
+        assertEquals(0, map.size());
+        assertThrows(IllegalArgumentException.class, () -> map.putIfAbsent(1, null));
+    }
+
+    @Test
+    void testValuesKeepInsertionOrder() {
+        IntObjectMap<Integer> map = new IntObjectMap<>();
+        for (int key : new int[]{42, -3, 0, 100_000, 5}) {
+            map.putIfAbsent(key, key);
+        }
+        map.remove(0);
+        map.putIfAbsent(0, 0);
+        assertArrayEquals(new Integer[]{42, -3, 100_000, 5, 0}, map.values(new Integer[0]));
+    }
+
+    @Test
+    void testMatchesLinkedHashMapUnderRandomOperations() {
+        IntObjectMap<Integer> map = new IntObjectMap<>();
+        Map<Integer, Integer> expected = new LinkedHashMap<>();
+        Random random = new Random(11);
+        for (int i = 0; i < 200_000; i++) {
+            // A small key space forces collisions, removals and reinsertion
+            int key = random.nextInt(5000) * 64;
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                assertEquals(expected.putIfAbsent(key, i), map.putIfAbsent(key, i));
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        for (int key = 0; key < 5000 * 64; key += 64) {
+            assertEquals(expected.get(key), map.get(key));
+        }
+        List<Integer> values = new ArrayList<>(expected.values());
+        assertEquals(values, List.of(map.values(new Integer[0])));
+    }
+}
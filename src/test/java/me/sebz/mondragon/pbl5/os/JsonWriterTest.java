@@ -0,0 +1,58 @@
+package me.sebz.mondragon.pbl5.os;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+class JsonWriterTest {
+
+    @Test
+    void testObjectWithScalars() {
+        JsonWriter json = new JsonWriter(4);
+        json.beginObject()
+            .name("id").value(42L)
+            .name("neg").value(-7L)
+            .name("ok").value(true)
+            .name("info").value("Alice")
+            .name("missing").value((String) null)
+            .endObject();
+
+        assertEquals("{\"id\":42,\"neg\":-7,\"ok\":true,\"info\":\"Alice\",\"missing\":null}", json.toString());
+    }
+
+    @Test
+    void testStringEscaping() {
+        JsonWriter json = new JsonWriter();
+        json.value("a\"b\\c\nd\u0001\u00e9\u20ac\ud83d\ude00");
+
+        assertEquals("\"a\\\"b\\\\c\\nd\\u0001\u00e9\u20ac\ud83d\ude00\"", json.toString());
+    }
+
+    @Test
+    void testFloatArray() {
+        JsonWriter json = new JsonWriter();
+        json.beginObject()
+            .name("embedding").value(new float[]{0f, 1f, 0.5f, -0.25f, 0.123456f, 0.05f, Float.NaN, 1e-6f, 3e10f})
+            .endObject();
+
+        assertEquals("{\"embedding\":[0,1,0.5,-0.25,0.123456,0.05,null,1.0E-6," + Float.toString(3e10f) + "]}", json.toString());
+    }
+
+    @Test
+    void testResetReusesBuffer() {
+        JsonWriter json = new JsonWriter();
+        json.beginArray().value(1L).value(2L).endArray();
+        assertEquals("[1,2]", json.toString());
+
+        json.reset().beginArray().endArray();
+        assertEquals("[]", json.toString());
+        assertEquals(2, json.toByteArray().length);
+    }
+
+    @Test
+    void testLongExtremes() {
+        JsonWriter json = new JsonWriter();
+        json.beginArray().value(Long.MIN_VALUE).value(Long.MAX_VALUE).value(0L).endArray();
+
+        assertEquals("[-9223372036854775808,9223372036854775807,0]", json.toString());
+    }
+}
@@ -0,0 +1,89 @@
+package me.sebz.mondragon.pbl5.os;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.easymock.EasyMock.*;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.HdrHistogram.Histogram;
+import org.junit.jupiter.api.Test;
+
+class LoadGeneratorTest {
+
+    private static NodeRedServer serverMock() {
+        NodeRedServer serverMock = mock(NodeRedServer.class);
+        expect(serverMock.signup(anyString())).andReturn(CompletableFuture.completedFuture(1));
+        expect(serverMock.login(eq(1), anyString())).andReturn(CompletableFuture.completedFuture(5L));
+        return serverMock;
+    }
+
+    @Test
+    void testIssuesRequestsAtTargetRate() throws Exception {
+        NodeRedServer serverMock = serverMock();
+        expect(serverMock.identify(eq(5L), anyInt()))
+                .andAnswer(() -> CompletableFuture.completedFuture("Alice")).anyTimes();
+        expect(serverMock.addPerson(eq(5L), anyString(), anyInt()))
+                .andAnswer(() -> CompletableFuture.failedFuture(new IllegalArgumentException("No Face"))).anyTimes();
+        replay(serverMock);
+
+        LoadGenerator generator = new LoadGenerator(serverMock, 200, 0.5, 60_000);
+        generator.start().join();
+        Thread.sleep(1000);
+        String report = generator.stop().join();
+
+        long identify = generator.getHistogram(LoadGenerator.Operation.IDENTIFY).getTotalCount();
+        long addPerson = generator.getHistogram(LoadGenerator.Operation.ADD_PERSON).getTotalCount();
+        assertTrue(identify + addPerson >= 150 && identify + addPerson <= 220, "issued " + (identify + addPerson));
+        assertTrue(identify > 0 && addPerson > 0);
+        assertEquals(addPerson, generator.getErrorCount(LoadGenerator.Operation.ADD_PERSON));
+        assertEquals(0, generator.getErrorCount(LoadGenerator.Operation.IDENTIFY));
+        assertTrue(report.contains("identify: n=" + identify), report);
+        assertTrue(report.contains("p99.9="), report);
+        assertFalse(generator.isRunning());
+        assertSame(report, generator.stop().join());
+    }
+
+    @Test
+    void testLatencyIncludesQueueingBehindSlowServer() throws Exception {
+        // The server handles one request at a time in 100 ms while 20 arrive per second.
+        // A closed-loop client would only ever see ~100 ms; measured from the intended
+        // start time, the queue that builds up is visible.
+        ExecutorService slowServer = Executors.newSingleThreadExecutor();
+        NodeRedServer serverMock = serverMock();
+        expect(serverMock.identify(eq(5L), anyInt())).andAnswer(() -> CompletableFuture.supplyAsync(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return "Alice";
+        }, slowServer)).anyTimes();
+        replay(serverMock);
+
+        LoadGenerator generator = new LoadGenerator(serverMock, 20, 1.0, 60_000);
+        generator.start().join();
+        Thread.sleep(500);
+        generator.stop().join();
+        slowServer.shutdown();
+        while (!slowServer.isTerminated()) {
+            Thread.sleep(50);
+        }
+
+        Histogram histogram = generator.getHistogram(LoadGenerator.Operation.IDENTIFY);
+        assertTrue(histogram.getTotalCount() >= 8, "completed " + histogram.getTotalCount());
+        assertTrue(histogram.getMaxValue() >= 300_000, "max " + histogram.getMaxValue() + " us");
+        assertTrue(histogram.getValueAtPercentile(50) > 100_000);
+    }
+
+    @Test
+    void testRejectsInvalidSettings() {
+        NodeRedServer serverMock = mock(NodeRedServer.class);
+        assertThrows(IllegalArgumentException.class, () -> new LoadGenerator(serverMock, 0, 0.5, 1000));
+        assertThrows(IllegalArgumentException.class, () -> new LoadGenerator(serverMock, 10, 1.5, 1000));
+        assertThrows(IllegalArgumentException.class, () -> new LoadGenerator(serverMock, Double.NaN, 0.5, 1000));
+        assertThrows(IllegalArgumentException.class, () -> new LoadGenerator(serverMock, Double.POSITIVE_INFINITY, 0.5, 1000));
+        assertThrows(IllegalArgumentException.class, () -> new LoadGenerator(serverMock, 10, Double.NaN, 1000));
+    }
+}
@@ -0,0 +1,176 @@
+package me.sebz.mondragon.pbl5.os;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class LogTest {
+
+    private PrintStream originalOut;
+    private PrintStream originalErr;
+    private ByteArrayOutputStream out;
+    private ByteArrayOutputStream err;
+
+    @BeforeEach
+    void setUp() {
+        Log.flush(1000);
+        originalOut = System.out;
+        originalErr = System.err;
+        out = new ByteArrayOutputStream();
+        err = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(out, true));
+        System.setErr(new PrintStream(err, true));
+    }
+
+    @AfterEach
+    void tearDown() {
+        Log.flush(1000);
+        System.setOut(originalOut);
+        System.setErr(originalErr);
+        Log.setLevel(Log.Level.INFO);
+    }
+
+    // Servers left running by other tests in the same JVM may log meanwhile; keep only the
+    // lines a test wrote itself
+    private static String lines(ByteArrayOutputStream stream, String... prefixes) {
+        StringBuilder kept = new StringBuilder();
+        for (String line : stream.toString().split("\n")) {
+            for (String prefix : prefixes) {
+                if (line.startsWith(prefix)) {
+                    kept.append(line).append('\n');
+                    break;
+                }
+            }
+        }
+        return kept.toString();
+    }
+
+    @Test
+    void testFormat() {
+        assertEquals("plain", Log.format("plain", 0, null, null, null, null));
+        assertEquals("a 1 b 2", Log.format("a {} b {}", 2, 1, 2, null, null));
+        assertEquals("x=null {}", Log.format("x={} {}", 1, null, null, null, null));
+        assertEquals("1, 2, 3, 4", Log.format("{}, {}, {}, {}", 4, null, null, null, new Object[] {1, 2, 3, 4}));
+        assertEquals("failed: boom", Log.format("failed: {}", 1, new IllegalStateException("boom"), null, null, null));
+    }
+
+    @Test
+    void testLevelsAndStreams() {
+        Log.info("info {}", 1);
+        Log.debug("debug {}", 2);
+        Log.warn("warn {}", 3);
+        assertTrue(Log.flush(1000));
+
+        assertEquals("info 1\n", lines(out, "info ", "debug ", "warn "));
+        assertEquals("warn 3\n", lines(err, "info ", "debug ", "warn "));
+    }
+
+    @Test
+    void testDisabledLevelSkipsFormatting() {
+        AtomicInteger formatted = new AtomicInteger();
+        Object argument = new Object() {
+            @Override
+            public String toString() {
+                formatted.incrementAndGet();
+                return "arg";
+            }
+        };
+        Log.setLevel(Log.Level.WARN);
+        Log.info("hidden {}", argument);
+        Log.debug("hidden {}", argument);
+        assertTrue(Log.flush(1000));
+        assertEquals(0, formatted.get());
+        assertEquals("", lines(out, "hidden ", "shown "));
+
+        Log.setLevel(Log.Level.DEBUG);
+        Log.debug("shown {}", argument);
+        assertTrue(Log.flush(1000));
+        assertEquals(1, formatted.get());
+        assertEquals("shown arg\n", lines(out, "hidden ", "shown "));
+    }
+
+    @Test
+    void testThrowingArgumentDoesNotStopTheWriter() {
+        Object broken = new Object() {
+            @Override
+            public String toString() {
+                throw new IllegalStateException("no string");
+            }
+        };
+        Log.info("broken {}", broken);
+        Log.info("after {}", 1);
+        assertTrue(Log.flush(1000));
+
+        assertEquals("[unformattable log message \"broken {}\": java.lang.IllegalStateException]\nafter 1\n",
+                lines(out, "[unformattable log message \"broken", "after "));
+    }
+
+    @Test
+    void testConcurrentProducersLoseNothing() throws Exception {
+        int producers = 4;
+        int perProducer = 1000;
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    Log.info("producer {} message {}", producer, i);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(Log.flush(5000));
+
+        Set<String> lines = new HashSet<>(List.of(lines(out, "producer ").split("\n")));
+        assertEquals(producers * perProducer, lines.size());
+        assertTrue(lines.contains("producer 3 message 999"));
+    }
+
+    @Test
+    void testFullBufferDropsInsteadOfBlocking() throws Exception {
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+                writing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }));
+        Log.info("stall the writer");
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+
+        long droppedBefore = Log.getDroppedCount();
+        long start = System.nanoTime();
+        for (int i = 0; i < 10_000; i++) {
+            Log.info("message {}", i);
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        assertTrue(Log.getDroppedCount() - droppedBefore > 0);
+
+        release.countDown();
+        assertTrue(Log.flush(5000));
+        assertTrue(err.toString().contains("Log buffer full, dropped "), err.toString());
+    }
+}
@@ -1,6 +1,11 @@
 package me.sebz.mondragon.pbl5.os;
 
 import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+
 import org.junit.jupiter.api.Test;
 
 public class MainTest {
@@ -11,4 +16,63 @@ public class MainTest {
             Main.main(new String[]{});
         });
     }
+
+    @Test
+    void testLoadGeneratorCommands() throws Exception {
+        Main main = new Main("127.0.0.1", 0);
+
+        assertEquals("LOADGEN_NOT_RUNNING", main.handleCommand("LOADGEN_STATS"));
+        assertEquals("LOADGEN_NOT_RUNNING", main.handleCommand("LOADGEN_STOP"));
+        assertEquals("INVALID_ARGUMENT", main.handleCommand("LOADGEN_START fast"));
+        assertEquals("INVALID_ARGUMENT", main.handleCommand("LOADGEN_START -1"));
+
+        assertEquals("LOADGEN_STARTED", main.handleCommand("loadgen_start 20 0.5"));
+        assertEquals("LOADGEN_ALREADY_RUNNING", main.handleCommand("LOADGEN_START"));
+        Thread.sleep(1000);
+        String stats = main.handleCommand("LOADGEN_STATS");
+        assertTrue(stats.startsWith("identify: n="), stats);
+        assertTrue(stats.contains("add_person: n="), stats);
+        assertEquals("LOADGEN_STOPPED", main.handleCommand("LOADGEN_STOP"));
+    }
+
+    @Test
+    void testStatsCommand() {
+        Main main = new Main("127.0.0.1", 0);
+        main.handleCommand("GET_PHONE_COUNT");
+
+        String stats = main.handleCommand("STATS");
+        assertTrue(stats.endsWith("\nEND"), stats);
+        assertTrue(stats.contains("# TYPE phones_active gauge\nphones_active 0\n"), stats);
+        assertTrue(stats.contains("executor_queued_tasks{executor=\"nodered\"}"), stats);
+        assertTrue(stats.contains("analysis_queue_depth{server=\"embedding\"}"), stats);
+    }
+
+    @Test
+    void testTracesCommand() {
+        Main main = new Main("127.0.0.1", 0);
+        Trace trace = Trace.start("signup");
+        trace.finish(null);
+
+        String traces = main.handleCommand("TRACES 100");
+        assertTrue(traces.startsWith("traces seen: "), traces);
+        assertTrue(traces.endsWith("\nEND"), traces);
+        assertEquals("INVALID_ARGUMENT", main.handleCommand("TRACES all"));
+        assertEquals("INVALID_ARGUMENT", main.handleCommand("TRACES -1"));
+    }
+
+    @Test
+    void testSimulateCommand() {
+        Main main = new Main("127.0.0.1", 0);
+        CompletableFuture<String> report = main.handleCommandAsync("SIMULATE 10 600 7");
+        assertTrue(report.join().startsWith("simulated=600s phones=10 "), report.join());
+        assertEquals(report.join(), main.handleCommandAsync("SIMULATE 10 600 7").join());
+        assertEquals("ASYNC_ONLY", main.handleCommand("SIMULATE 10 600 7"));
+
+        assertEquals("INVALID_ARGUMENT", main.handleCommandAsync("SIMULATE 10").join());
+        assertEquals("INVALID_ARGUMENT", main.handleCommandAsync("SIMULATE -1 600").join());
+        assertEquals("INVALID_ARGUMENT", main.handleCommandAsync("SIMULATE 10 -600").join());
+        // Above the phone-seconds cap, and large enough to overflow in milliseconds
+        assertEquals("INVALID_ARGUMENT", main.handleCommandAsync("SIMULATE 1000000 1000").join());
+        assertEquals("INVALID_ARGUMENT", main.handleCommandAsync("SIMULATE 0 " + Long.MAX_VALUE).join());
+    }
 }
@@ -0,0 +1,102 @@
+package me.sebz.mondragon.pbl5.os;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+class MetricsTest {
+
+    @Test
+    void testCounterIsSharedAndRendered() {
+        Metrics.Counter counter = Metrics.counter("test_events_total", "Events seen by the test", "kind", "a");
+        assertSame(counter, Metrics.counter("test_events_total", "Events seen by the test", "kind", "a"));
+        counter.add(3);
+        Metrics.counter("test_events_total", "Events seen by the test", "kind", "b").increment();
+
+        String text = Metrics.scrape();
+        assertTrue(text.contains("# HELP test_events_total Events seen by the test\n"), text);
+        assertTrue(text.contains("# TYPE test_events_total counter\n"), text);
+        assertTrue(text.contains("test_events_total{kind=\"a\"} 3\n"), text);
+        assertTrue(text.contains("test_events_total{kind=\"b\"} 1\n"), text);
+    }
+
+    @Test
+    void testLatencyHistogramBuckets() {
+        Metrics.Histogram histogram = Metrics.latency("test_duration_seconds", "Test latency", "stage", "x\"y");
+        histogram.recordNanos(TimeUnit.MICROSECONDS.toNanos(500));
+        histogram.recordNanos(TimeUnit.MILLISECONDS.toNanos(30));
+        histogram.recordNanos(TimeUnit.SECONDS.toNanos(60));
+        assertEquals(3, histogram.getCount());
+
+        String text = Metrics.scrape();
+        assertTrue(text.contains("# TYPE test_duration_seconds histogram\n"), text);
+        assertTrue(text.contains("test_duration_seconds_bucket{stage=\"x\\\"y\",le=\"0.001\"} 1\n"), text);
+        assertTrue(text.contains("test_duration_seconds_bucket{stage=\"x\\\"y\",le=\"0.025\"} 1\n"), text);
+        assertTrue(text.contains("test_duration_seconds_bucket{stage=\"x\\\"y\",le=\"0.05\"} 2\n"), text);
+        assertTrue(text.contains("test_duration_seconds_bucket{stage=\"x\\\"y\",le=\"+Inf\"} 3\n"), text);
+        assertTrue(text.contains("test_duration_seconds_sum{stage=\"x\\\"y\"} 60.0305\n"), text);
+        assertTrue(text.contains("test_duration_seconds_count{stage=\"x\\\"y\"} 3\n"), text);
+    }
+
+    @Test
+    void testGaugeFollowsLatestRegistration() {
+        AtomicLong first = new AtomicLong(1);
+        AtomicLong second = new AtomicLong(2);
+        Metrics.gauge("test_depth", "Test gauge", first::get);
+        Metrics.gauge("test_depth", "Test gauge", second::get);
+        second.set(7);
+
+        assertTrue(Metrics.scrape().contains("test_depth 7\n"));
+        assertThrows(IllegalArgumentException.class, () -> Metrics.counter("test_depth", "clash"));
+        assertThrows(IllegalArgumentException.class, () -> Metrics.counter("test_odd_labels", "odd", "only-name"));
+    }
+
+    @Test
+    void testExecutorMonitoring() throws Exception {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(10));
+        Metrics.monitor("test_pool", pool);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        pool.execute(() -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        pool.execute(() -> { });
+        started.await();
+
+        String text = Metrics.scrape();
+        assertTrue(text.contains("executor_active_threads{executor=\"test_pool\"} 1\n"), text);
+        assertTrue(text.contains("executor_queued_tasks{executor=\"test_pool\"} 1\n"), text);
+
+        release.countDown();
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void testConcurrentIncrementsAreNotLost() throws Exception {
+        Metrics.Counter counter = Metrics.counter("test_concurrent_total", "Concurrent increments");
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 10_000; j++) {
+                    counter.increment();
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(80_000, counter.get());
+    }
+}
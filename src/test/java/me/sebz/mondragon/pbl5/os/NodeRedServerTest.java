@@ -4,7 +4,14 @@ import static org.junit.jupiter.api.Assertions.*;
 import static org.easymock.EasyMock.*;
 
 import java.lang.reflect.Field;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.jupiter.api.Test;
 
@@ -43,10 +50,10 @@ class NodeRedServerTest {
         expect(restMock.getValidatedGroup(1L))
                 .andReturn(CompletableFuture.completedFuture(new Group()));
 
-        expect(detectMock.analyzePhoto(5))
+        expect(detectMock.analyzePhoto(eq(5), anyObject(Trace.class)))
                 .andReturn(CompletableFuture.completedFuture(true));
 
-        expect(embedMock.analyzePhoto(5))
+        expect(embedMock.analyzePhoto(eq(5), anyObject(Trace.class)))
                 .andReturn(CompletableFuture.completedFuture(new float[]{1f, 0f}));
 
         expect(restMock.createPerson(eq(1L), eq("info"), aryEq(new float[]{1f, 0f})))
@@ -64,6 +71,352 @@ class NodeRedServerTest {
         verify(restMock, detectMock, embedMock);
     }
 
+    @Test
+    void testIdentifyPhotoReleasesFrame() throws Exception {
+        NodeRedServer server = new NodeRedServer();
+
+        RestServer restMock = mock(RestServer.class);
+        FaceDetectServer detectMock = mock(FaceDetectServer.class);
+        FaceEmbeddingServer embedMock = mock(FaceEmbeddingServer.class);
+
+        PhotoBufferPool pool = new PhotoBufferPool(64, 1);
+        Photo photo = pool.acquire(5);
+
+        expect(restMock.getValidatedGroup(1L))
+                .andReturn(CompletableFuture.completedFuture(new Group()));
+        expect(detectMock.analyzePhoto(same(photo), anyObject(Trace.class)))
+                .andReturn(CompletableFuture.completedFuture(true));
+        expect(embedMock.analyzePhoto(same(photo), anyObject(Trace.class)))
+                .andReturn(CompletableFuture.completedFuture(new float[]{1f, 0f}));
+        expect(restMock.identifyPerson(eq(1L), aryEq(new float[]{1f, 0f})))
+                .andReturn(CompletableFuture.completedFuture("Alice"));
+
+        replay(restMock, detectMock, embedMock);
+
+        inject(server, "restServer", restMock);
+        inject(server, "detectServer", detectMock);
+        inject(server, "embeddingServer", embedMock);
+
+        assertEquals("Alice", server.identify(1L, photo).join());
+        assertEquals(0, photo.refCount());
+        assertEquals(1, pool.getPooledCount());
+
+        verify(restMock, detectMock, embedMock);
+    }
+
+    @Test
+    void testSubmittedIdentifyIsPublishedToSessionResults() throws Exception {
+        NodeRedServer server = new NodeRedServer();
+
+        RestServer restMock = mock(RestServer.class);
+        FaceDetectServer detectMock = mock(FaceDetectServer.class);
+        FaceEmbeddingServer embedMock = mock(FaceEmbeddingServer.class);
+
+        PhotoBufferPool pool = new PhotoBufferPool(64, 2);
+        Photo photo = pool.acquire(5);
+        Photo second = pool.acquire(6);
+        Person alice = new Person();
+        alice.setInfo("Alice");
+        // Held back until the failed photo has been published
+        CompletableFuture<Boolean> detection = new CompletableFuture<>();
+
+        expect(restMock.getValidatedGroup(1L))
+                .andReturn(CompletableFuture.completedFuture(new Group())).times(2);
+        expect(detectMock.analyzePhoto(same(photo), anyObject(Trace.class)))
+                .andReturn(detection);
+        expect(detectMock.analyzePhoto(same(second), anyObject(Trace.class)))
+                .andReturn(CompletableFuture.failedFuture(new IllegalArgumentException("No Face")));
+        expect(embedMock.analyzePhoto(same(photo), anyObject(Trace.class)))
+                .andReturn(CompletableFuture.completedFuture(new float[]{1f, 0f}));
+        expect(restMock.findClosestPerson(eq(1L), aryEq(new float[]{1f, 0f})))
+                .andReturn(CompletableFuture.completedFuture(alice));
+
+        replay(restMock, detectMock, embedMock);
+
+        inject(server, "restServer", restMock);
+        inject(server, "detectServer", detectMock);
+        inject(server, "embeddingServer", embedMock);
+
+        List<IdentifyResult> results = new CopyOnWriteArrayList<>();
+        CountDownLatch first = new CountDownLatch(1);
+        CountDownLatch delivered = new CountDownLatch(2);
+        CountDownLatch closed = new CountDownLatch(1);
+        server.results(1L).subscribe(new Flow.Subscriber<IdentifyResult>() {
+            private Flow.Subscription subscription;
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(1);
+            }
+
+            @Override
+            public void onNext(IdentifyResult item) {
+                results.add(item);
+                first.countDown();
+                delivered.countDown();
+                subscription.request(1);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                closed.countDown();
+            }
+
+            @Override
+            public void onComplete() {
+                closed.countDown();
+            }
+        });
+
+        server.submitIdentify(1L, photo);
+        server.submitIdentify(1L, second);
+        assertTrue(first.await(5, TimeUnit.SECONDS));
+        detection.complete(true);
+        assertTrue(delivered.await(5, TimeUnit.SECONDS));
+        server.closeResults(1L);
+        assertTrue(closed.await(5, TimeUnit.SECONDS));
+
+        // The failed photo is published without waiting for the other one
+        assertEquals(2, results.size());
+        assertTrue(results.get(0).getError() instanceof IllegalArgumentException);
+        assertEquals("Alice", results.get(1).getInfo());
+        assertEquals(2, pool.getPooledCount());
+        // A failed login has no session to subscribe to
+        assertThrows(IllegalArgumentException.class, () -> server.results(null));
+
+        verify(restMock, detectMock, embedMock);
+    }
+
+    @Test
+    void testIdentifyBatchKeepsOrderAndPerItemErrors() throws Exception {
+        NodeRedServer server = new NodeRedServer();
+
+        RestServer restMock = mock(RestServer.class);
+        FaceDetectServer detectMock = mock(FaceDetectServer.class);
+        FaceEmbeddingServer embedMock = mock(FaceEmbeddingServer.class);
+
+        Group group = new Group();
+        Person alice = new Person();
+        alice.setInfo("Alice");
+
+        expect(restMock.getValidatedGroup(1L))
+                .andReturn(CompletableFuture.completedFuture(group));
+        expect(detectMock.analyzePhotos(aryEq(new int[]{1, 2, 3, 4}), anyObject(Trace.class)))
+                .andReturn(List.of(CompletableFuture.completedFuture(true),
+                        CompletableFuture.failedFuture(new IllegalArgumentException("No Face")),
+                        CompletableFuture.completedFuture(true),
+                        CompletableFuture.completedFuture(true)));
+        expect(embedMock.analyzePhotos(aryEq(new int[]{1, 3, 4}), anyObject(Trace.class)))
+                .andReturn(List.of(CompletableFuture.completedFuture(new float[]{1f, 0f}),
+                        CompletableFuture.completedFuture(new float[]{0f, 1f}),
+                        CompletableFuture.failedFuture(new IllegalStateException("embedding failed"))));
+        expect(restMock.findClosestPersons(same(group), anyObject(float[][].class)))
+                .andReturn(CompletableFuture.completedFuture(new Person[]{alice, null, null}));
+
+        replay(restMock, detectMock, embedMock);
+
+        inject(server, "restServer", restMock);
+        inject(server, "detectServer", detectMock);
+        inject(server, "embeddingServer", embedMock);
+
+        List<IdentifyResult> results = server.identifyBatch(1L, new int[]{1, 2, 3, 4}).join();
+
+        assertEquals(4, results.size());
+        assertTrue(results.get(0).isMatch());
+        assertEquals("Alice", results.get(0).getInfo());
+        assertEquals(alice.getId(), results.get(0).getPersonId());
+        assertEquals("No Face", results.get(1).getError().getMessage());
+        assertFalse(results.get(2).isMatch());
+        assertNull(results.get(2).getError());
+        assertTrue(results.get(3).getError() instanceof IllegalStateException);
+
+        verify(restMock, detectMock, embedMock);
+    }
+
+    @Test
+    void testIdentifyBatchRejectsInvalidSession() throws Exception {
+        NodeRedServer server = new NodeRedServer();
+
+        RestServer restMock = mock(RestServer.class);
+        FaceDetectServer detectMock = mock(FaceDetectServer.class);
+
+        expect(restMock.getValidatedGroup(9L))
+                .andReturn(CompletableFuture.failedFuture(new IllegalArgumentException("invalid session ID")));
+
+        replay(restMock, detectMock);
+
+        inject(server, "restServer", restMock);
+        inject(server, "detectServer", detectMock);
+
+        CompletionException e = assertThrows(CompletionException.class,
+                () -> server.identifyBatch(9L, new int[]{1, 2}).join());
+        assertTrue(e.getCause() instanceof IllegalArgumentException);
+
+        verify(restMock, detectMock);
+    }
+
+    @Test
+    void testIdentifyRejectsInvalidSessionBeforeDetection() throws Exception {
+        NodeRedServer server = new NodeRedServer();
+
+        RestServer restMock = mock(RestServer.class);
+        FaceDetectServer detectMock = mock(FaceDetectServer.class);
+        PhotoBufferPool pool = new PhotoBufferPool(64, 1);
+        Photo photo = pool.acquire(5);
+
+        expect(restMock.getValidatedGroup(9L))
+                .andReturn(CompletableFuture.failedFuture(new IllegalArgumentException("invalid session ID"))).times(2);
+
+        replay(restMock, detectMock);
+
+        inject(server, "restServer", restMock);
+        inject(server, "detectServer", detectMock);
+
+        CompletionException e = assertThrows(CompletionException.class, () -> server.identify(9L, photo).join());
+        assertTrue(e.getCause() instanceof IllegalArgumentException);
+        assertEquals(1, pool.getPooledCount());
+
+        e = assertThrows(CompletionException.class, () -> server.identify(9L, 5).join());
+        assertTrue(e.getCause() instanceof IllegalArgumentException);
+
+        verify(restMock, detectMock);
+    }
+
+    @Test
+    void testAddPersonsBulkCommitsOnceAndReleasesFrames() throws Exception {
+        NodeRedServer server = new NodeRedServer();
+
+        RestServer restMock = mock(RestServer.class);
+        FaceDetectServer detectMock = mock(FaceDetectServer.class);
+        FaceEmbeddingServer embedMock = mock(FaceEmbeddingServer.class);
+
+        PhotoBufferPool pool = new PhotoBufferPool(64, 3);
+        Photo anne = pool.acquire(1);
+        Photo bob = pool.acquire(2);
+        Photo carl = pool.acquire(3);
+        Group group = new Group();
+
+        expect(restMock.getValidatedGroup(1L))
+                .andReturn(CompletableFuture.completedFuture(group)).times(2);
+        expect(detectMock.analyzePhotos(aryEq(new Photo[]{anne, bob, carl}), anyObject(Trace.class)))
+                .andReturn(List.of(CompletableFuture.completedFuture(true),
+                        CompletableFuture.failedFuture(new IllegalArgumentException("No Face")),
+                        CompletableFuture.completedFuture(true)));
+        expect(embedMock.analyzePhoto(same(anne), anyObject(Trace.class)))
+                .andReturn(CompletableFuture.completedFuture(new float[]{1f, 0f}));
+        expect(embedMock.analyzePhoto(same(carl), anyObject(Trace.class)))
+                .andReturn(CompletableFuture.completedFuture(new float[]{0f, 1f}));
+        expect(restMock.createPersons(same(group), aryEq(new String[]{"Anne", "Bob", "Carl"}), anyObject(float[][].class)))
+                .andReturn(CompletableFuture.completedFuture(new int[]{11, -1, 12}));
+
+        replay(restMock, detectMock, embedMock);
+
+        inject(server, "restServer", restMock);
+        inject(server, "detectServer", detectMock);
+        inject(server, "embeddingServer", embedMock);
+
+        List<EnrollmentResult> results = server.addPersonsBulk(1L,
+                List.of(Map.entry("Anne", anne), Map.entry("Bob", bob), Map.entry("Carl", carl))).join();
+
+        assertEquals(11, results.get(0).getPersonId());
+        assertFalse(results.get(1).isEnrolled());
+        assertEquals("No Face", results.get(1).getError().getMessage());
+        assertEquals(12, results.get(2).getPersonId());
+        assertEquals(3, pool.getPooledCount());
+
+        verify(restMock, detectMock, embedMock);
+    }
+
+    @Test
+    void testAddPersonsBulkRevalidatesBeforeCommit() throws Exception {
+        NodeRedServer server = new NodeRedServer();
+
+        RestServer restMock = mock(RestServer.class);
+        FaceDetectServer detectMock = mock(FaceDetectServer.class);
+        FaceEmbeddingServer embedMock = mock(FaceEmbeddingServer.class);
+
+        PhotoBufferPool pool = new PhotoBufferPool(64, 1);
+        Photo anne = pool.acquire(1);
+
+        // The group is deleted while the photo is analyzed
+        expect(restMock.getValidatedGroup(1L))
+                .andReturn(CompletableFuture.completedFuture(new Group()))
+                .andReturn(CompletableFuture.failedFuture(new IllegalArgumentException("invalid session ID")));
+        expect(detectMock.analyzePhotos(aryEq(new Photo[]{anne}), anyObject(Trace.class)))
+                .andReturn(List.of(CompletableFuture.completedFuture(true)));
+        expect(embedMock.analyzePhoto(same(anne), anyObject(Trace.class)))
+                .andReturn(CompletableFuture.completedFuture(new float[]{1f, 0f}));
+
+        replay(restMock, detectMock, embedMock);
+
+        inject(server, "restServer", restMock);
+        inject(server, "detectServer", detectMock);
+        inject(server, "embeddingServer", embedMock);
+
+        CompletionException e = assertThrows(CompletionException.class,
+                () -> server.addPersonsBulk(1L, List.of(Map.entry("Anne", anne))).join());
+        assertTrue(e.getCause() instanceof IllegalArgumentException);
+        assertEquals(1, pool.getPooledCount());
+
+        verify(restMock, detectMock, embedMock);
+    }
+
+    @Test
+    void testAddPersonsBulkInvalidSessionReleasesFrames() throws Exception {
+        NodeRedServer server = new NodeRedServer();
+
+        RestServer restMock = mock(RestServer.class);
+        PhotoBufferPool pool = new PhotoBufferPool(64, 2);
+
+        expect(restMock.getValidatedGroup(9L))
+                .andReturn(CompletableFuture.failedFuture(new IllegalArgumentException("invalid session ID")));
+        replay(restMock);
+        inject(server, "restServer", restMock);
+
+        CompletableFuture<List<EnrollmentResult>> future = server.addPersonsBulk(9L,
+                List.of(Map.entry("Anne", pool.acquire(1)), Map.entry("Bob", pool.acquire(2))));
+
+        assertThrows(CompletionException.class, future::join);
+        assertEquals(2, pool.getPooledCount());
+        verify(restMock);
+    }
+
+    @Test
+    void testOverloadRejectsAndReleasesFrame() throws Exception {
+        NodeRedServer server = new NodeRedServer();
+
+        RestServer restMock = mock(RestServer.class);
+        FaceDetectServer detectMock = mock(FaceDetectServer.class);
+
+        PhotoBufferPool pool = new PhotoBufferPool(64, 2);
+        Photo first = pool.acquire(1);
+        Photo second = pool.acquire(2);
+        CompletableFuture<Boolean> detection = new CompletableFuture<>();
+
+        expect(restMock.getValidatedGroup(1L))
+                .andReturn(CompletableFuture.completedFuture(new Group()));
+        expect(detectMock.analyzePhoto(same(first), anyObject(Trace.class)))
+                .andReturn(detection);
+
+        replay(restMock, detectMock);
+
+        inject(server, "restServer", restMock);
+        inject(server, "detectServer", detectMock);
+        inject(server, "analysisLimiter", new ConcurrencyLimiter("test-nodered", 1, 1, 1));
+
+        CompletableFuture<String> admitted = server.identify(1L, first);
+        CompletionException e = assertThrows(CompletionException.class, () -> server.identify(1L, second).join());
+        assertTrue(e.getCause() instanceof OverloadException);
+        assertEquals(1, pool.getPooledCount());
+
+        detection.completeExceptionally(new IllegalArgumentException("No Face"));
+        assertThrows(CompletionException.class, admitted::join);
+        assertEquals(2, pool.getPooledCount());
+
+        verify(restMock, detectMock);
+    }
+
     @Test
     void testDeletePerson() throws Exception {
         NodeRedServer server = new NodeRedServer();
@@ -33,6 +33,34 @@ class PersonTest {
         assertNotEquals(99f, p.getFaceEmbedding()[1]);
     }
 
+    @Test
+    void testTemplatesAndCentroid() {
+        Person p = new Person();
+        assertEquals(0, p.getFaceTemplates().length);
+
+        p.addFaceTemplate(new float[]{2f, 0f});
+        assertArrayEquals(new float[]{2f, 0f}, p.getCentroid());
+        p.addFaceTemplate(new float[]{0f, 3f});
+        // Unit-length templates summed: both photos pull equally
+        assertArrayEquals(new float[]{1f, 1f}, p.getCentroid());
+        assertArrayEquals(new float[]{2f, 0f}, p.getFaceEmbedding());
+        assertThrows(IllegalArgumentException.class, () -> p.addFaceTemplate(new float[]{1f}));
+
+        for (int i = 0; i < Person.MAX_TEMPLATES; i++) {
+            p.addFaceTemplate(new float[]{i, 1f});
+        }
+        float[][] templates = p.getFaceTemplates();
+        assertEquals(Person.MAX_TEMPLATES, templates.length);
+        assertArrayEquals(new float[]{0f, 1f}, templates[0]);
+        // The enrolled embedding outlives its template
+        assertArrayEquals(new float[]{2f, 0f}, p.getFaceEmbedding());
+
+        // Replacing the face drops every template
+        p.setFaceEmbedding(new float[]{5f, 5f});
+        assertEquals(1, p.getFaceTemplates().length);
+        assertArrayEquals(new float[]{5f, 5f}, p.getFaceEmbedding());
+    }
+
     @Test
     void testInfo() {
         Person p = new Person();
@@ -0,0 +1,38 @@
+package me.sebz.mondragon.pbl5.os;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+class PhotoBufferPoolTest {
+
+    @Test
+    void testBuffersAreRecycled() {
+        PhotoBufferPool pool = new PhotoBufferPool(1024, 4);
+
+        Photo p1 = pool.acquire(1);
+        assertEquals(1, pool.getAllocatedCount());
+        assertTrue(p1.getPayload().isDirect());
+        assertEquals(1024, p1.getPayload().remaining());
+
+        p1.release();
+        assertEquals(1, pool.getPooledCount());
+
+        Photo p2 = pool.acquire(2);
+        assertEquals(1, pool.getAllocatedCount());
+        assertEquals(0, pool.getPooledCount());
+        p2.release();
+    }
+
+    @Test
+    void testPoolIsBounded() {
+        PhotoBufferPool pool = new PhotoBufferPool(64, 1);
+
+        Photo p1 = pool.acquire(1);
+        Photo p2 = pool.acquire(2);
+        p1.release();
+        p2.release();
+
+        assertEquals(2, pool.getAllocatedCount());
+        assertEquals(1, pool.getPooledCount());
+    }
+}
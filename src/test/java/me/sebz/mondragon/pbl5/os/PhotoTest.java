@@ -0,0 +1,50 @@
+package me.sebz.mondragon.pbl5.os;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+class PhotoTest {
+
+    @Test
+    void testRetainAndRelease() {
+        PhotoBufferPool pool = new PhotoBufferPool(64, 2);
+        Photo photo = pool.acquire(7);
+
+        assertEquals(7, photo.getId());
+        assertEquals(1, photo.refCount());
+
+        photo.retain();
+        assertFalse(photo.release());
+        assertEquals(0, pool.getPooledCount());
+
+        assertTrue(photo.release());
+        assertEquals(1, pool.getPooledCount());
+
+        assertThrows(IllegalStateException.class, photo::getPayload);
+        assertThrows(IllegalStateException.class, photo::checksum);
+        assertEquals(1, pool.getPooledCount());
+        assertThrows(IllegalStateException.class, photo::retain);
+        assertThrows(IllegalStateException.class, photo::release);
+    }
+
+    @Test
+    void testPayloadIsSharedReadOnlyView() {
+        PhotoBufferPool pool = new PhotoBufferPool(64, 2);
+        Photo photo = pool.acquire(1);
+        photo.getWritablePayload().putInt(0, 42);
+
+        ByteBuffer view = photo.getPayload();
+        assertTrue(view.isReadOnly());
+        assertEquals(42, view.getInt(0));
+
+        // consuming one view does not move the other stages' position
+        view.getLong();
+        assertEquals(0, photo.getPayload().position());
+        assertEquals(photo.checksum(), photo.checksum());
+        assertEquals(1, photo.refCount());
+
+        photo.release();
+    }
+}
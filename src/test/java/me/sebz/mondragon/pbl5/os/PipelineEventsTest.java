@@ -0,0 +1,104 @@
+package me.sebz.mondragon.pbl5.os;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+class PipelineEventsTest {
+
+    private static List<RecordedEvent> record(Runnable workload) throws Exception {
+        Path file = Files.createTempFile("pipeline", ".jfr");
+        try (Recording recording = new Recording()) {
+            for (String name : new String[]{"garaitu.QueueWait", "garaitu.Analysis", "garaitu.SimilarityScan",
+                    "garaitu.PasswordHash", "garaitu.SessionValidation"}) {
+                recording.enable(name).withThreshold(Duration.ZERO);
+            }
+            recording.start();
+            workload.run();
+            recording.stop();
+            recording.dump(file);
+            return RecordingFile.readAllEvents(file);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static List<RecordedEvent> named(List<RecordedEvent> events, String name) {
+        return events.stream().filter(e -> e.getEventType().getName().equals(name)).toList();
+    }
+
+    @Test
+    void testAnalysisStagesAreRecorded() throws Exception {
+        FaceEmbeddingServer server = new FaceEmbeddingServer(0, 0);
+        Thread worker = new Thread(server);
+
+        List<RecordedEvent> events = record(() -> {
+            CompletableFuture<float[]> first = server.analyzePhoto(41);
+            CompletableFuture<float[]> second = server.analyzePhoto(42);
+            worker.start();
+            first.join();
+            second.join();
+        });
+        server.stop().join();
+
+        List<RecordedEvent> waits = named(events, "garaitu.QueueWait");
+        assertEquals(2, waits.size());
+        assertEquals("embedding", waits.get(0).getString("server"));
+        assertTrue(waits.stream().anyMatch(e -> e.getInt("photoId") == 42));
+        assertTrue(waits.stream().allMatch(e -> e.getDuration("waitNanos").toNanos() > 0));
+
+        List<RecordedEvent> analyses = named(events, "garaitu.Analysis");
+        assertEquals(2, analyses.size());
+        assertTrue(analyses.stream().allMatch(e -> e.getBoolean("succeeded")));
+    }
+
+    @Test
+    void testScanAndPasswordEventsAreRecorded() throws Exception {
+        Group group = new Group();
+        for (int i = 0; i < 5; i++) {
+            Person person = new Person();
+            person.setFaceEmbedding(new float[]{i, 1f});
+            group.addMember(person);
+        }
+
+        List<RecordedEvent> events = record(() -> {
+            group.setPassword("pw");
+            group.checkPassword("wrong");
+            group.getClosestMember(new float[]{1f, 1f});
+            group.getClosestMembers(new float[][]{{1f, 0f}, {0f, 1f}});
+        });
+
+        List<RecordedEvent> hashes = named(events, "garaitu.PasswordHash");
+        assertEquals(2, hashes.size());
+        RecordedEvent check = hashes.stream().filter(e -> e.getBoolean("verification")).findFirst().orElseThrow();
+        assertFalse(check.getBoolean("matched"));
+        assertEquals(group.getId(), check.getInt("groupId"));
+
+        List<RecordedEvent> scans = named(events, "garaitu.SimilarityScan");
+        assertEquals(2, scans.size());
+        assertTrue(scans.stream().allMatch(e -> e.getInt("members") == 5));
+        assertTrue(scans.stream().anyMatch(e -> e.getInt("queries") == 2));
+    }
+
+    @Test
+    void testSessionValidationIsRecorded() throws Exception {
+        RestServer restServer = new RestServer();
+        List<RecordedEvent> events = record(() -> {
+            assertThrows(Exception.class, () -> restServer.getValidatedGroup(-1L).join());
+        });
+        restServer.shutdown().join();
+
+        List<RecordedEvent> validations = named(events, "garaitu.SessionValidation");
+        assertEquals(1, validations.size());
+        assertFalse(validations.get(0).getBoolean("valid"));
+    }
+}
@@ -4,8 +4,10 @@ import static org.junit.jupiter.api.Assertions.*;
 import static org.easymock.EasyMock.*;
 
 import java.lang.reflect.Field;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadPoolExecutor;
 
 import org.junit.jupiter.api.Test;
 
@@ -191,6 +193,64 @@ class RestServerTest {
         verify(dbMock);
     }
 
+    @Test
+    void testAddPersonTemplate() throws Exception {
+        RestServer rs = new RestServer();
+        Database dbMock = mock(Database.class);
+
+        Group g = new Group();
+        Person p = new Person();
+        p.setFaceEmbedding(new float[]{1f, 0f});
+        g.addMember(p);
+
+        expect(dbMock.getGroupFromSession(1L))
+                .andReturn(CompletableFuture.completedFuture(g))
+                .anyTimes();
+
+        replay(dbMock);
+        inject(rs, "database", dbMock);
+
+        rs.addPersonTemplate(1L, p.getId(), new float[]{0f, 1f}).join();
+        assertEquals(2, p.getFaceTemplates().length);
+
+        CompletionException ex = assertThrows(CompletionException.class,
+                () -> rs.addPersonTemplate(1L, p.getId(), new float[]{1f}).join());
+        assertTrue(ex.getCause() instanceof IllegalArgumentException);
+        verify(dbMock);
+    }
+
+    @Test
+    void testCreatePersonReturnsEnrolledDuplicate() throws Exception {
+        RestServer rs = new RestServer();
+        Database dbMock = mock(Database.class);
+        Group g = new Group();
+
+        expect(dbMock.getGroupFromSession(1L))
+                .andReturn(CompletableFuture.completedFuture(g))
+                .anyTimes();
+
+        replay(dbMock);
+        inject(rs, "database", dbMock);
+        assertEquals(0f, rs.getDuplicateThreshold());
+        rs.setDuplicateThreshold(0.95f);
+
+        long prevented = Metrics.counter("enrollment_duplicates_total", "").get();
+        int id = rs.createPerson(1L, "Alice", new float[]{1f, 0f}).join();
+        assertEquals(id, (int) rs.createPerson(1L, "Alice", new float[]{1f, 0f}).join());
+        int[] ids = rs.createPersons(g, new String[]{"Alice", "Bob", "Carl"},
+                new float[][]{{1f, 0f}, null, {0f, 1f}}).join();
+        assertEquals(id, ids[0]);
+        assertEquals(-1, ids[1]);
+        assertNotEquals(id, ids[2]);
+        assertEquals(2, g.getMembers().length);
+        assertEquals(prevented + 2, Metrics.counter("enrollment_duplicates_total", "").get());
+
+        rs.setDuplicateThreshold(0f);
+        assertNotEquals(id, (int) rs.createPerson(1L, "Alice", new float[]{1f, 0f}).join());
+        assertEquals(3, g.getMembers().length);
+        verify(dbMock);
+    }
+
     @Test
     void testIdentifyPersonNoMatch() throws Exception {
         RestServer rs = new RestServer();
@@ -210,6 +270,55 @@ class RestServerTest {
         verify(dbMock);
     }
 
+    @Test
+    void testOnlyScansAreHandedToTheExecutor() throws Exception {
+        RestServer rs = new RestServer();
+        Field f = RestServer.class.getDeclaredField("executor");
+        f.setAccessible(true);
+        ThreadPoolExecutor executor = (ThreadPoolExecutor) f.get(rs);
+
+        int groupId = rs.createGroup("pw").join();
+        Long session = rs.newSession(groupId, "pw").join();
+        long before = executor.getTaskCount();
+
+        // The duplicate check
+        int personId = rs.createPerson(session, "Alice", new float[]{1f, 0f}).join();
+        assertEquals(before + 1, executor.getTaskCount());
+
+        rs.editPersonInfo(session, personId, "Alicia").join();
+        rs.getValidatedGroup(session).join();
+        assertEquals(before + 1, executor.getTaskCount());
+
+        assertEquals("Alicia", rs.identifyPerson(session, new float[]{1f, 0f}).join());
+        assertEquals(before + 2, executor.getTaskCount());
+
+        rs.shutdown().join();
+    }
+
+    @Test
+    void testFindFaceSearchesEveryGroup() throws Exception {
+        RestServer rs = new RestServer();
+
+        int alices = rs.createGroup("pw").join();
+        int bobs = rs.createGroup("pw").join();
+        Long aliceSession = rs.newSession(alices, "pw").join();
+        Long bobSession = rs.newSession(bobs, "pw").join();
+        int alice = rs.createPerson(aliceSession, "Alice", new float[]{1f, 0f}).join();
+        int bob = rs.createPerson(bobSession, "Bob", new float[]{0f, 1f}).join();
+
+        List<FaceIndex.Match> matches = rs.findFace(aliceSession, new float[]{0.1f, 1f}, 2).join();
+        assertEquals(2, matches.size());
+        assertEquals(bobs, matches.get(0).getGroupId());
+        assertEquals(bob, matches.get(0).getPersonId());
+        assertEquals(alice, matches.get(1).getPersonId());
+
+        CompletionException ex = assertThrows(CompletionException.class,
+                () -> rs.findFace(-1L, new float[]{0f, 1f}, 1).join());
+        assertTrue(ex.getCause() instanceof IllegalArgumentException);
+
+        rs.shutdown().join();
+    }
+
     // ---------- helper ----------
 
     private static void inject(Object target, String field, Object value) throws Exception {
@@ -0,0 +1,86 @@
+package me.sebz.mondragon.pbl5.os;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+class RetryTest {
+
+    private static CompletableFuture<String> failUntil(AtomicInteger attempts, int succeedOn) {
+        if (attempts.incrementAndGet() < succeedOn) {
+            return CompletableFuture.failedFuture(new IllegalStateException("attempt " + attempts.get()));
+        }
+        return CompletableFuture.completedFuture("done");
+    }
+
+    @Test
+    void testRetriesUntilSuccess() {
+        Retry.Budget caller = new Retry.Budget("caller", 10, 1);
+        Retry retry = new Retry(5, 1, 5, caller, new Retry.Budget("global", 10, 1));
+        AtomicInteger attempts = new AtomicInteger();
+
+        assertEquals("done", retry.execute(() -> failUntil(attempts, 3)).join());
+        assertEquals(3, attempts.get());
+        // Two retries spent, one success earned back
+        assertEquals(9, caller.getTokens());
+    }
+
+    @Test
+    void testGivesUpAfterMaxAttempts() {
+        Retry retry = new Retry(3, 1, 5, new Retry.Budget("caller", 10, 1), new Retry.Budget("global", 10, 1));
+        AtomicInteger attempts = new AtomicInteger();
+
+        CompletionException e = assertThrows(CompletionException.class,
+                () -> retry.execute(() -> failUntil(attempts, 100)).join());
+        assertEquals("attempt 3", e.getCause().getMessage());
+        assertEquals(3, attempts.get());
+    }
+
+    @Test
+    void testCallerBudgetLimitsRetries() {
+        Retry retry = new Retry(10, 1, 5, new Retry.Budget("caller", 1, 1), new Retry.Budget("global", 10, 1));
+        AtomicInteger attempts = new AtomicInteger();
+
+        assertThrows(CompletionException.class, () -> retry.execute(() -> failUntil(attempts, 100)).join());
+        assertEquals(2, attempts.get());
+    }
+
+    @Test
+    void testGlobalBudgetIsShared() {
+        Retry.Budget global = new Retry.Budget("global", 1, 1);
+        Retry.Budget first = new Retry.Budget("first", 10, 1);
+        Retry.Budget second = new Retry.Budget("second", 10, 1);
+        AtomicInteger attempts = new AtomicInteger();
+
+        assertThrows(CompletionException.class,
+                () -> new Retry(10, 1, 5, first, global).execute(() -> failUntil(attempts, 100)).join());
+        assertEquals(2, attempts.get());
+
+        attempts.set(0);
+        assertThrows(CompletionException.class,
+                () -> new Retry(10, 1, 5, second, global).execute(() -> failUntil(attempts, 100)).join());
+        assertEquals(1, attempts.get());
+        // The caller's token is refunded when the global budget refuses
+        assertEquals(10, second.getTokens());
+    }
+
+    @Test
+    void testFullJitterStaysUnderTheCeiling() {
+        Retry retry = new Retry(10, 100, 1000, new Retry.Budget("caller", 10, 1));
+        Set<Long> delays = new HashSet<>();
+        for (int i = 0; i < 200; i++) {
+            long first = retry.delayFor(1);
+            long late = retry.delayFor(9);
+            assertTrue(first >= 0 && first <= 100, "first retry waited " + first);
+            assertTrue(late >= 0 && late <= 1000, "late retry waited " + late);
+            delays.add(first);
+        }
+        assertTrue(delays.size() > 10);
+    }
+}
@@ -0,0 +1,42 @@
+package me.sebz.mondragon.pbl5.os;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+class SimulationTest {
+
+    private static final long HOUR_MS = 3_600_000L;
+
+    @Test
+    void testSameSeedGivesSameReport() {
+        String first = new Simulation(7, 200).run(600_000);
+        String second = new Simulation(7, 200).run(600_000);
+        assertEquals(first, second);
+        assertNotEquals(first, new Simulation(8, 200).run(600_000));
+    }
+
+    @Test
+    void testLightLoadDoesNotQueue() {
+        Simulation simulation = new Simulation(1, 1);
+        simulation.run(HOUR_MS);
+
+        // One press every 5 to 5.5 seconds, each served in well under a second
+        assertTrue(simulation.getPressed() >= 650 && simulation.getPressed() <= 721, "pressed " + simulation.getPressed());
+        assertEquals(0, simulation.getRejected());
+        long latency = simulation.getLatencies().getMaxValue();
+        assertTrue(latency >= 500_000 && latency < 700_000, "latency " + latency);
+        assertTrue(simulation.report().contains("wait p50=0.0ms p99=0.0ms max=0.0ms"));
+    }
+
+    @Test
+    void testOverloadIsRejectedAtTheAdmissionLimit() {
+        // 4 embedding workers take about 9 photos a second; 2000 phones send about 380
+        Simulation simulation = new Simulation(3, 2000, 4, 64);
+        String report = simulation.run(600_000);
+
+        assertTrue(simulation.getRejected() > simulation.getPressed() / 2, report);
+        assertTrue(simulation.getLatencies().getTotalCount() > 0);
+        assertThrows(IllegalStateException.class, () -> simulation.run(1000));
+    }
+}
@@ -0,0 +1,79 @@
+package me.sebz.mondragon.pbl5.os;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.junit.jupiter.api.Test;
+
+class TraceTest {
+
+    @Test
+    void testSpansAreRecordedInOrder() {
+        Trace trace = Trace.start("addPerson");
+        assertEquals(10, trace.span("rest.createPerson", () -> CompletableFuture.completedFuture(10)).join());
+        CompletableFuture<Integer> failed = trace.span("rest.validateSession",
+                () -> CompletableFuture.failedFuture(new IllegalArgumentException("invalid session ID")));
+        assertThrows(CompletionException.class, failed::join);
+        trace.finish(new CompletionException(new IllegalArgumentException("invalid session ID")));
+
+        List<Trace.Span> spans = trace.getSpans();
+        assertEquals(2, spans.size());
+        assertEquals("rest.createPerson", spans.get(0).getName());
+        assertFalse(spans.get(0).isFailed());
+        assertTrue(spans.get(1).isFailed());
+        assertTrue(trace.isFinished());
+        assertEquals("IllegalArgumentException: invalid session ID", trace.getError());
+
+        String text = trace.toString();
+        assertTrue(text.startsWith("trace " + trace.getId() + " addPerson "), text);
+        assertTrue(text.contains(" rest.validateSession "), text);
+        assertTrue(text.contains(" failed [" + Thread.currentThread().getName() + "]"), text);
+    }
+
+    @Test
+    void testAnalysisTasksCarryTheTrace() throws Exception {
+        FaceEmbeddingServer server = new FaceEmbeddingServer(0, 0);
+        Thread worker = new Thread(server, "TraceTestEmbeddingThread");
+        worker.start();
+        try {
+            Trace trace = Trace.start("identify");
+            server.analyzePhoto(7, trace).join();
+            server.analyzePhoto(8).join();
+
+            List<Trace.Span> spans = trace.getSpans();
+            assertEquals(2, spans.size());
+            assertEquals("embedding.queue photo 7", spans.get(0).getName());
+            assertEquals("embedding photo 7", spans.get(1).getName());
+            assertEquals("TraceTestEmbeddingThread", spans.get(1).getThread());
+        } finally {
+            server.stop().join();
+        }
+    }
+
+    @Test
+    void testSamplerKeepsSlowest() throws Exception {
+        TraceSampler.clear();
+        Trace slow = Trace.start("slow");
+        Thread.sleep(50);
+        slow.finish(null);
+        Trace fast = Trace.start("fast");
+        fast.finish(null);
+
+        // Requests still finishing from other tests may land in the sampler too
+        assertEquals(1, TraceSampler.getSlowest(1).size());
+        List<Trace> slowest = TraceSampler.getSlowest(32);
+        assertTrue(slowest.contains(slow));
+        assertTrue(slowest.contains(fast));
+        assertTrue(slowest.indexOf(slow) < slowest.indexOf(fast));
+
+        assertTrue(TraceSampler.getSlowest(-1).isEmpty());
+
+        String dump = TraceSampler.dump(10);
+        assertTrue(dump.startsWith("traces seen: "), dump);
+        assertTrue(dump.contains("trace " + slow.getId() + " slow "), dump);
+        assertTrue(dump.indexOf(" slow ") < dump.indexOf(" fast "), dump);
+    }
+}
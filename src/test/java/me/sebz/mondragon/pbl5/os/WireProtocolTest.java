@@ -0,0 +1,145 @@
+package me.sebz.mondragon.pbl5.os;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+class WireProtocolTest {
+
+    private static float[] randomEmbedding(Random random) {
+        float[] embedding = new float[128];
+        for (int i = 0; i < embedding.length; i++) {
+            embedding[i] = random.nextFloat();
+        }
+        return embedding;
+    }
+
+    @Test
+    void testEmbeddingRoundTrip() {
+        float[] embedding = randomEmbedding(new Random(1));
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+
+        int written = WireEncoder.encodeEmbedding(buffer, embedding, false);
+        assertEquals(WireEncoder.embeddingSize(128, false), written);
+        assertEquals(8 + 2 + 128 * 4, written);
+
+        buffer.flip();
+        WireDecoder decoder = new WireDecoder().wrap(buffer);
+        assertEquals(WireFormat.TYPE_EMBEDDING, decoder.type());
+        assertFalse(decoder.isFloat16());
+        assertArrayEquals(embedding, decoder.readEmbedding());
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    void testFloat16EmbeddingRoundTrip() {
+        float[] embedding = randomEmbedding(new Random(2));
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1024);
+
+        int written = WireEncoder.encodeIdentifyRequest(buffer, 42L, embedding, true);
+        assertEquals(8 + 8 + 2 + 128 * 2, written);
+
+        buffer.flip();
+        WireDecoder decoder = new WireDecoder().wrap(buffer);
+        assertEquals(WireFormat.TYPE_IDENTIFY_REQUEST, decoder.type());
+        assertTrue(decoder.isFloat16());
+        assertEquals(42L, decoder.sessionId());
+
+        float[] decoded = decoder.readEmbedding(new float[decoder.embeddingDimensions()]);
+        for (int i = 0; i < embedding.length; i++) {
+            assertEquals(embedding[i], decoded[i], 1e-3f);
+        }
+    }
+
+    @Test
+    void testFloat16Conversion() {
+        float[] exact = {0f, -0f, 1f, -2f, 0.5f, 65504f, 0x1p-14f, 0x1p-24f};
+        for (float value : exact) {
+            assertEquals(value, WireFormat.fromFloat16(WireFormat.toFloat16(value)));
+        }
+        assertEquals(Float.POSITIVE_INFINITY, WireFormat.fromFloat16(WireFormat.toFloat16(1e6f)));
+        assertEquals(Float.NEGATIVE_INFINITY, WireFormat.fromFloat16(WireFormat.toFloat16(Float.NEGATIVE_INFINITY)));
+        assertTrue(Float.isNaN(WireFormat.fromFloat16(WireFormat.toFloat16(Float.NaN))));
+        assertEquals(0f, WireFormat.fromFloat16(WireFormat.toFloat16(1e-10f)));
+        // 1 + 2^-11 is halfway between two halves and rounds to even
+        assertEquals(1f, WireFormat.fromFloat16(WireFormat.toFloat16(1f + 0x1p-11f)));
+    }
+
+    @Test
+    void testIdentifyResultAndErrorRoundTrip() {
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        WireEncoder.encodeIdentifyResult(buffer, WireFormat.STATUS_MATCH, 7, "Ane \u00d1");
+        WireEncoder.encodeIdentifyResult(buffer, WireFormat.STATUS_NO_MATCH, -1, null);
+        WireEncoder.encodeError(buffer, "invalid session ID");
+        buffer.flip();
+
+        WireDecoder decoder = new WireDecoder();
+        decoder.wrap(buffer);
+        assertEquals(WireFormat.STATUS_MATCH, decoder.status());
+        assertEquals(7, decoder.personId());
+        assertEquals("Ane \u00d1", decoder.info());
+
+        decoder.wrap(buffer);
+        assertEquals(WireFormat.STATUS_NO_MATCH, decoder.status());
+        assertNull(decoder.info());
+
+        decoder.wrap(buffer);
+        assertEquals(WireFormat.TYPE_ERROR, decoder.type());
+        assertEquals("invalid session ID", decoder.errorMessage());
+        assertThrows(IllegalArgumentException.class, decoder::status);
+    }
+
+    @Test
+    void testPersonResultMapping() {
+        Person person = new Person();
+        person.setInfo("Alice");
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        WireEncoder.encodeIdentifyResult(buffer, person, null);
+        WireEncoder.encodeIdentifyResult(buffer, null, new IllegalArgumentException("invalid session ID"));
+        buffer.flip();
+
+        WireDecoder decoder = new WireDecoder().wrap(buffer);
+        assertEquals(person.getId(), decoder.personId());
+        assertEquals("Alice", decoder.info());
+        decoder.wrap(buffer);
+        assertEquals(WireFormat.STATUS_ERROR, decoder.status());
+        assertEquals("invalid session ID", decoder.info());
+    }
+
+    @Test
+    void testIncompleteAndInvalidFrames() {
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        WireEncoder.encodeEmbedding(buffer, new float[]{1f, 2f}, false);
+        buffer.flip();
+
+        ByteBuffer partial = buffer.duplicate();
+        partial.limit(buffer.limit() - 1);
+        assertEquals(-1, WireDecoder.frameLength(partial));
+        assertEquals(buffer.limit(), WireDecoder.frameLength(buffer));
+
+        ByteBuffer wrongVersion = ByteBuffer.allocate(16);
+        wrongVersion.put(0, WireFormat.MAGIC).put(1, (byte) 9);
+        assertThrows(IllegalArgumentException.class, () -> WireDecoder.frameLength(wrongVersion));
+
+        ByteBuffer text = ByteBuffer.wrap("GET_PHONE_COUNT\n".getBytes());
+        assertThrows(IllegalArgumentException.class, () -> WireDecoder.frameLength(text));
+    }
+
+    @Test
+    void testLongStringsAreTruncated() {
+        String info = "\u00e9".repeat(WireFormat.MAX_STRING_BYTES);
+        ByteBuffer buffer = ByteBuffer.allocate(WireEncoder.identifyResultMaxSize(info));
+
+        WireEncoder.encodeIdentifyResult(buffer, WireFormat.STATUS_MATCH, 1, info);
+        buffer.flip();
+        String decoded = new WireDecoder().wrap(buffer).info();
+        assertEquals(WireFormat.MAX_STRING_BYTES / 2, decoded.length());
+        assertTrue(info.startsWith(decoded));
+
+        // A surrogate pair is never split
+        String emoji = "a" + "\ud83d\ude00".repeat(WireFormat.MAX_STRING_BYTES);
+        assertEquals(1 + 2 * ((WireFormat.MAX_STRING_BYTES - 1) / 4), WireEncoder.fittingChars(emoji, WireFormat.MAX_STRING_BYTES));
+    }
+}